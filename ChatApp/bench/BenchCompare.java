@@ -0,0 +1,206 @@
+package bench;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+
+// 比较两次 JMH 结果（-rf json 输出）：
+//   java -cp bench/target/benchmarks.jar bench.BenchCompare 基线.json 本次.json [阈值百分比，默认 10]
+// 按 基准名 + 参数 对齐，打印两边的分数和变化；变慢超过阈值（且超出两边误差范围）的标 REGRESSION，
+// 有这样的行时退出码为 1，方便放进发布脚本。
+// 两边的运行设置（fork 数、预热/测量轮次、JDK、JVM 参数）不同时先打印出来，这种比较结果只能参考。
+public class BenchCompare {
+    private static final String[] SETTINGS = {"forks", "warmupIterations", "warmupTime", "measurementIterations",
+            "measurementTime", "jdkVersion", "vmVersion", "jvmArgs"};
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("usage: BenchCompare <baseline.json> <current.json> [threshold%]");
+            System.exit(2);
+        }
+        double threshold = args.length >= 3 ? Double.parseDouble(args[2]) : 10;
+        Object baseJson = parse(args[0]);
+        Object curJson = parse(args[1]);
+        Map<String, Result> base = load(baseJson);
+        Map<String, Result> cur = load(curJson);
+        Map<String, String> bs = settings(baseJson);
+        Map<String, String> cs = settings(curJson);
+        for (String k : SETTINGS) {
+            if (!Objects.equals(bs.get(k), cs.get(k))) {
+                System.out.printf("settings differ: %s baseline=%s current=%s%n", k, bs.get(k), cs.get(k));
+            }
+        }
+
+        boolean regressed = false;
+        System.out.printf("%-60s %14s %14s %9s%n", "benchmark", "baseline", "current", "change");
+        for (Map.Entry<String, Result> e : cur.entrySet()) {
+            Result c = e.getValue();
+            Result b = base.get(e.getKey());
+            if (b == null) {
+                System.out.printf("%-60s %14s %14s %9s%n", e.getKey(), "-", c.show(), "new");
+                continue;
+            }
+            // 正数表示变好：avgt/sample/ss 越小越好，thrpt 越大越好
+            double change = (c.score - b.score) / b.score * 100;
+            if (!c.higherIsBetter()) change = -change;
+            boolean beyondNoise = Math.abs(c.score - b.score) > c.error + b.error;
+            String flag = change < -threshold && beyondNoise ? "  REGRESSION" : "";
+            if (!flag.isEmpty()) regressed = true;
+            System.out.printf("%-60s %14s %14s %+8.1f%%%s%n", e.getKey(), b.show(), c.show(), change, flag);
+        }
+        for (String k : base.keySet()) {
+            if (!cur.containsKey(k)) System.out.printf("%-60s %14s %14s %9s%n", k, base.get(k).show(), "-", "gone");
+        }
+        if (regressed) System.exit(1);
+    }
+
+    private static final class Result {
+        String mode;
+        double score;
+        double error;
+        String unit;
+
+        boolean higherIsBetter() {
+            return "thrpt".equals(mode);
+        }
+
+        String show() {
+            return String.format("%.1f %s", score, unit);
+        }
+    }
+
+    private static Object parse(String file) throws IOException {
+        return new Parser(Files.readString(Paths.get(file), StandardCharsets.UTF_8)).value();
+    }
+
+    // 每项设置在所有结果里出现过的值（一般只有一个）
+    @SuppressWarnings("unchecked")
+    private static Map<String, String> settings(Object json) {
+        Map<String, String> out = new HashMap<>();
+        for (String k : SETTINGS) {
+            Set<String> vals = new TreeSet<>();
+            for (Object o : (List<Object>) json) vals.add(String.valueOf(((Map<String, Object>) o).get(k)));
+            out.put(k, String.join("|", vals));
+        }
+        return out;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Result> load(Object json) {
+        Map<String, Result> out = new TreeMap<>();
+        for (Object o : (List<Object>) json) {
+            Map<String, Object> run = (Map<String, Object>) o;
+            StringBuilder key = new StringBuilder((String) run.get("benchmark"));
+            Map<String, Object> params = (Map<String, Object>) run.get("params");
+            if (params != null) {
+                for (Map.Entry<String, Object> p : new TreeMap<>(params).entrySet()) {
+                    key.append(' ').append(p.getKey()).append('=').append(p.getValue());
+                }
+            }
+            Map<String, Object> metric = (Map<String, Object>) run.get("primaryMetric");
+            Result r = new Result();
+            r.mode = (String) run.get("mode");
+            r.score = ((Number) metric.get("score")).doubleValue();
+            Object err = metric.get("scoreError");
+            r.error = err instanceof Number n && !Double.isNaN(n.doubleValue()) ? n.doubleValue() : 0;
+            r.unit = (String) metric.get("scoreUnit");
+            String name = key.toString();
+            if (name.startsWith("bench.")) name = name.substring("bench.".length());
+            out.put(name, r);
+        }
+        return out;
+    }
+
+    // 够读 JMH 结果文件用的最小 JSON 解析：对象 -> LinkedHashMap，数组 -> ArrayList，数字 -> Double
+    private static final class Parser {
+        private final String s;
+        private int i;
+
+        Parser(String s) {
+            this.s = s;
+        }
+
+        Object value() {
+            skipWs();
+            char c = s.charAt(i);
+            switch (c) {
+                case '{': {
+                    i++;
+                    Map<String, Object> m = new LinkedHashMap<>();
+                    skipWs();
+                    if (s.charAt(i) == '}') { i++; return m; }
+                    while (true) {
+                        skipWs();
+                        String k = string();
+                        skipWs();
+                        expect(':');
+                        m.put(k, value());
+                        skipWs();
+                        if (s.charAt(i++) == '}') return m;
+                    }
+                }
+                case '[': {
+                    i++;
+                    List<Object> l = new ArrayList<>();
+                    skipWs();
+                    if (s.charAt(i) == ']') { i++; return l; }
+                    while (true) {
+                        l.add(value());
+                        skipWs();
+                        if (s.charAt(i++) == ']') return l;
+                    }
+                }
+                case '"':
+                    return string();
+                default: {
+                    int start = i;
+                    while (i < s.length() && ",}] \t\r\n".indexOf(s.charAt(i)) < 0) i++;
+                    String t = s.substring(start, i);
+                    switch (t) {
+                        case "true": return Boolean.TRUE;
+                        case "false": return Boolean.FALSE;
+                        case "null": return null;
+                        case "NaN": return Double.NaN;
+                        default: return Double.parseDouble(t);
+                    }
+                }
+            }
+        }
+
+        private String string() {
+            expect('"');
+            StringBuilder sb = new StringBuilder();
+            while (true) {
+                char c = s.charAt(i++);
+                if (c == '"') return sb.toString();
+                if (c != '\\') {
+                    sb.append(c);
+                    continue;
+                }
+                char e = s.charAt(i++);
+                switch (e) {
+                    case 'n' -> sb.append('\n');
+                    case 't' -> sb.append('\t');
+                    case 'r' -> sb.append('\r');
+                    case 'b' -> sb.append('\b');
+                    case 'f' -> sb.append('\f');
+                    case 'u' -> {
+                        sb.append((char) Integer.parseInt(s.substring(i, i + 4), 16));
+                        i += 4;
+                    }
+                    default -> sb.append(e);
+                }
+            }
+        }
+
+        private void expect(char c) {
+            if (s.charAt(i) != c) throw new IllegalArgumentException("expected '" + c + "' at " + i);
+            i++;
+        }
+
+        private void skipWs() {
+            while (i < s.length() && Character.isWhitespace(s.charAt(i))) i++;
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package bench;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+// 基准用的临时数据目录：每个 @Setup 一个，@TearDown 时删掉
+final class BenchFiles {
+    private BenchFiles() {}
+
+    static Path tempDir(String prefix) throws IOException {
+        return Files.createTempDirectory("chatapp-" + prefix);
+    }
+
+    static void deleteTree(Path dir) throws IOException {
+        if (dir == null || !Files.exists(dir)) return;
+        try (Stream<Path> s = Files.walk(dir)) {
+            for (Path p : (Iterable<Path>) s.sorted(Comparator.reverseOrder())::iterator) Files.deleteIfExists(p);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package bench;
+import protocol.BinaryCodec;
+import protocol.Message;
+import protocol.SimpleJson;
+import java.lang.management.ManagementFactory;
+
+// 编解码分配量/耗时基准：java -cp bench/target/benchmarks.jar bench.CodecAllocBench [次数]
+// 用 HotSpot 的线程分配计数器统计每条消息平均分配的字节数；legacy 两行是换成单遍编解码之前的实现，作对照
+public class CodecAllocBench {
+    public static void main(String[] args) throws Exception {
+        int n = args.length >= 1 ? Integer.parseInt(args[0]) : 2_000_000;
+        Message m = Message.of("CHAT", "alice", "bob", "你好，晚上一起吃饭吗？\n地点：\"老地方\" C:\\path");
+        String line = SimpleJson.toJson(m);
+        byte[] frame = SimpleJson.toFrame(m);
+        byte[] bin = BinaryCodec.encode(m);
+        int[] hdr = new int[2];
+        BinaryCodec.readHeader(bin, 0, bin.length, hdr);
+
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long tid = Thread.currentThread().threadId();
+        long sink = 0;
+
+        // 预热
+        for (int i = 0; i < n / 4; i++) {
+            sink += SimpleJson.toJson(m).length();
+            sink += SimpleJson.fromJson(line).timestamp;
+            sink += LegacySimpleJson.toJson(m).length();
+            sink += LegacySimpleJson.fromJson(line).timestamp;
+        }
+
+        long l0 = mx.getThreadAllocatedBytes(tid);
+        long u0 = System.nanoTime();
+        for (int i = 0; i < n; i++) sink += LegacySimpleJson.toJson(m).length();
+        long u1 = System.nanoTime();
+        long l1 = mx.getThreadAllocatedBytes(tid);
+        for (int i = 0; i < n; i++) sink += LegacySimpleJson.fromJson(line).timestamp;
+        long u2 = System.nanoTime();
+        long l2 = mx.getThreadAllocatedBytes(tid);
+
+        long a0 = mx.getThreadAllocatedBytes(tid);
+        long t0 = System.nanoTime();
+        for (int i = 0; i < n; i++) sink += SimpleJson.toJson(m).length();
+        long t1 = System.nanoTime();
+        long a1 = mx.getThreadAllocatedBytes(tid);
+        for (int i = 0; i < n; i++) sink += SimpleJson.fromJson(line).timestamp;
+        long t2 = System.nanoTime();
+        long a2 = mx.getThreadAllocatedBytes(tid);
+
+        for (int i = 0; i < n; i++) sink += SimpleJson.toFrame(m).length;
+        long t3 = System.nanoTime();
+        long a3 = mx.getThreadAllocatedBytes(tid);
+        for (int i = 0; i < n; i++) sink += SimpleJson.fromJson(frame, 0, frame.length - 1).timestamp;
+        long t4 = System.nanoTime();
+        long a4 = mx.getThreadAllocatedBytes(tid);
+        for (int i = 0; i < n; i++) sink += BinaryCodec.encode(m).length;
+        long t5 = System.nanoTime();
+        long a5 = mx.getThreadAllocatedBytes(tid);
+        for (int i = 0; i < n; i++) sink += BinaryCodec.decode(bin[0], bin, hdr[1], hdr[0]).timestamp;
+        long t6 = System.nanoTime();
+        long a6 = mx.getThreadAllocatedBytes(tid);
+
+        System.out.printf("legacy toJson:   %6.1f B/msg  %6.0f ns/msg%n", (l1 - l0) / (double) n, (u1 - u0) / (double) n);
+        System.out.printf("legacy fromJson: %6.1f B/msg  %6.0f ns/msg%n", (l2 - l1) / (double) n, (u2 - u1) / (double) n);
+        System.out.printf("toJson:          %6.1f B/msg  %6.0f ns/msg%n", (a1 - a0) / (double) n, (t1 - t0) / (double) n);
+        System.out.printf("fromJson(String):%6.1f B/msg  %6.0f ns/msg%n", (a2 - a1) / (double) n, (t2 - t1) / (double) n);
+        System.out.printf("toFrame:         %6.1f B/msg  %6.0f ns/msg%n", (a3 - a2) / (double) n, (t3 - t2) / (double) n);
+        System.out.printf("fromJson(bytes): %6.1f B/msg  %6.0f ns/msg%n", (a4 - a3) / (double) n, (t4 - t3) / (double) n);
+        System.out.printf("binary encode:   %6.1f B/msg  %6.0f ns/msg%n", (a5 - a4) / (double) n, (t5 - t4) / (double) n);
+        System.out.printf("binary decode:   %6.1f B/msg  %6.0f ns/msg%n", (a6 - a5) / (double) n, (t6 - t5) / (double) n);
+        System.out.println("wire size: json " + frame.length + " B, binary " + bin.length + " B");
+        System.out.println("(sink " + sink + ")");
+    }
+}
@@ -0,0 +1,95 @@
+package bench;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import protocol.BinaryCodec;
+import protocol.Message;
+import protocol.SimpleJson;
+
+// SimpleJson / BinaryCodec 编解码。kind：
+//   chat         一句普通的中文聊天
+//   chat_long    约 1KB、带换行/引号/反斜杠的长消息
+//   friend_list  200 个好友（带备注）的 FRIEND_LIST_RES
+// *Legacy 是换成单遍编解码之前的实现（LegacySimpleJson），作对照
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 1)
+@Fork(3)
+public class CodecBench {
+    @Param({"chat", "chat_long", "friend_list"})
+    public String kind;
+
+    private Message m;
+    private String line;
+    private byte[] frame;
+    private byte[] bin;
+    private final int[] hdr = new int[2];
+
+    @Setup
+    public void setup() throws Exception {
+        m = switch (kind) {
+            case "chat_long" -> {
+                StringBuilder sb = new StringBuilder();
+                while (sb.length() < 1024) sb.append("第").append(sb.length()).append("行：\"引号\" 和 C:\\path\\to\\file\n");
+                yield Message.of("CHAT", "alice", "bob", sb.toString());
+            }
+            case "friend_list" -> {
+                StringBuilder sb = new StringBuilder();
+                for (int i = 0; i < 200; i++) {
+                    if (i > 0) sb.append(';');
+                    sb.append("user").append(i);
+                    if (i % 3 == 0) sb.append("|同学").append(i);
+                }
+                Message r = Message.of("FRIEND_LIST_RES", "server", "alice", "");
+                r.data = sb.toString();
+                yield r;
+            }
+            default -> Message.of("CHAT", "alice", "bob", "你好，晚上一起吃饭吗？");
+        };
+        line = SimpleJson.toJson(m);
+        frame = SimpleJson.toFrame(m);
+        bin = BinaryCodec.encode(m);
+        BinaryCodec.readHeader(bin, 0, bin.length, hdr);
+    }
+
+    @Benchmark
+    public String toJson() {
+        return SimpleJson.toJson(m);
+    }
+
+    @Benchmark
+    public Message fromJsonString() {
+        return SimpleJson.fromJson(line);
+    }
+
+    @Benchmark
+    public String toJsonLegacy() {
+        return LegacySimpleJson.toJson(m);
+    }
+
+    @Benchmark
+    public Message fromJsonStringLegacy() {
+        return LegacySimpleJson.fromJson(line);
+    }
+
+    @Benchmark
+    public byte[] toFrame() {
+        return SimpleJson.toFrame(m);
+    }
+
+    @Benchmark
+    public Message fromJsonBytes() {
+        return SimpleJson.fromJson(frame, 0, frame.length - 1);
+    }
+
+    @Benchmark
+    public byte[] binaryEncode() {
+        return BinaryCodec.encode(m);
+    }
+
+    @Benchmark
+    public Message binaryDecode() throws Exception {
+        return BinaryCodec.decode(bin[0], bin, hdr[1], hdr[0]);
+    }
+}
@@ -0,0 +1,80 @@
+package bench;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import server.FriendStore;
+
+// FriendStore：10k 账号、每人 20 个好友（三分之一带备注）的快照上读、写。
+// 写操作每次都追加并 flush 一行日志；为了不让好友表越跑越大，写基准一次调用做“加一个再删掉”。
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 1)
+@Fork(3)
+public class FriendStoreBench {
+    static final int USERS = 10_000;
+    static final int FRIENDS = 20;
+
+    private Path dir;
+    private FriendStore store;
+    private String[] names;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        dir = BenchFiles.tempDir("friends");
+        names = new String[USERS];
+        for (int u = 0; u < USERS; u++) names[u] = user(u);
+        StringBuilder sb = new StringBuilder();
+        for (int u = 0; u < USERS; u++) {
+            sb.append(user(u)).append(':');
+            for (int k = 1; k <= FRIENDS; k++) {
+                if (k > 1) sb.append(',');
+                sb.append(user((u + k * 37) % USERS));
+                if (k % 3 == 0) sb.append("|备注").append(k);
+            }
+            sb.append('\n');
+        }
+        Path db = dir.resolve("friends_db.txt");
+        Files.writeString(db, sb.toString(), StandardCharsets.UTF_8);
+        store = new FriendStore(db.toString());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        BenchFiles.deleteTree(dir);
+    }
+
+    static String user(int i) {
+        return "u" + i;
+    }
+
+    // 轮流取账号，避免总命中同一个缓存行
+    private String pick() {
+        int i = next;
+        next = i + 7919 >= USERS ? i + 7919 - USERS : i + 7919;
+        return names[i];
+    }
+
+    @Benchmark
+    public List<String> listFriends() {
+        return store.listFriends(pick());
+    }
+
+    @Benchmark
+    public Set<String> subscribersOf() {
+        return store.subscribersOf(pick());
+    }
+
+    @Benchmark
+    public void addThenDeleteFriend() {
+        String u = pick();
+        store.addFriend(u, "newcomer");
+        store.deleteFriend(u, "newcomer");
+    }
+}
@@ -0,0 +1,58 @@
+package bench;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.openjdk.jmh.annotations.*;
+import server.HistoryStore;
+
+// HistoryStore.appendChat，4 个线程同时写。conv：
+//   own     每个线程写自己的会话（常见情况，只争引擎里的共享结构）
+//   shared  所有线程写同一个会话（群聊刷屏式的最坏情况）
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 1)
+@Fork(3)
+@Threads(4)
+public class HistoryAppendBench {
+    @Param({"text", "mapped"})
+    public String engine;
+
+    @Param({"own", "shared"})
+    public String conv;
+
+    private Path dir;
+    private HistoryStore store;
+    private final AtomicInteger threads = new AtomicInteger();
+
+    @State(Scope.Thread)
+    public static class Writer {
+        String from;
+        String to;
+
+        @Setup
+        public void setup(HistoryAppendBench b) {
+            int i = b.threads.getAndIncrement();
+            from = "shared".equals(b.conv) ? "alice" : "writer" + i;
+            to = "shared".equals(b.conv) ? "bob" : "reader" + i;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        dir = BenchFiles.tempDir("his-append");
+        store = HistoryBenchSupport.open(dir, engine);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        store.close();
+        BenchFiles.deleteTree(dir);
+    }
+
+    @Benchmark
+    public void appendChat(Writer w) {
+        store.appendChat(w.from, w.to, "晚上一起吃饭吗？老地方见", System.currentTimeMillis());
+    }
+}
@@ -0,0 +1,17 @@
+package bench;
+import java.nio.file.Path;
+import server.HistoryStore;
+import server.MappedHistoryEngine;
+import server.Metrics;
+
+// 按名字打开一个指定引擎的 HistoryStore，和 ChatServer 的 --his-engine 一致
+final class HistoryBenchSupport {
+    private HistoryBenchSupport() {}
+
+    static HistoryStore open(Path dir, String engine) throws Exception {
+        HistoryStore hs = new HistoryStore(dir.resolve("history"), new Metrics());
+        if ("mapped".equals(engine)) hs.setEngine(new MappedHistoryEngine(hs.baseDir(), 1024 * 1024));
+        hs.loadConversationIndex(1);
+        return hs;
+    }
+}
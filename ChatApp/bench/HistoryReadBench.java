@@ -0,0 +1,52 @@
+package bench;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import server.HistoryStore;
+
+// 会话上的读：readHistory（旧版 HIS_READ）对比只取最新一页。records 条记录、每条约 90 字节：
+// 2000 条（约 180 KB）时 readHistory 整个读出；100000 条（约 9 MB）超过一页的字节上限，只读最近放得下的部分。
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 1)
+@Fork(3)
+public class HistoryReadBench {
+    @Param({"text", "mapped"})
+    public String engine;
+
+    @Param({"2000", "100000"})
+    public int records;
+
+    private Path dir;
+    private HistoryStore store;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        dir = BenchFiles.tempDir("his-read");
+        store = HistoryBenchSupport.open(dir, engine);
+        long ts = System.currentTimeMillis() - records * 1000L;
+        for (int i = 0; i < records; i++) {
+            String from = (i & 1) == 0 ? "alice" : "bob";
+            String to = (i & 1) == 0 ? "bob" : "alice";
+            store.appendChat(from, to, "第 " + i + " 条消息，晚上一起吃饭吗？老地方见", ts + i * 1000L);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        store.close();
+        BenchFiles.deleteTree(dir);
+    }
+
+    @Benchmark
+    public String readHistory() {
+        return store.readHistory("alice", "bob");
+    }
+
+    @Benchmark
+    public HistoryStore.Page readLatestPage() throws Exception {
+        return store.readLatest("alice", "bob", 50);
+    }
+}
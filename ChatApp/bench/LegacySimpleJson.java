@@ -1,8 +1,12 @@
-package server;
+package bench;
 import java.util.*;
+import protocol.Message;
 
+// 换成单遍编解码之前的 SimpleJson 原样留一份，只给基准做对照（CodecBench 的 *Legacy、CodecAllocBench），
+// 服务端和客户端都不用它
+final class LegacySimpleJson {
+    private LegacySimpleJson() {}
 
-public class SimpleJson {
     // 将 Message -> JSON(单行)
     public static String toJson(Message m) {
         Map<String, String> map = new LinkedHashMap<>();
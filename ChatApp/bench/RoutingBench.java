@@ -0,0 +1,84 @@
+package bench;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import protocol.Message;
+import server.ChatServer;
+import server.ClientHandler;
+
+// 进程内跑 handleChat 的完整路径：鉴权、写聊天记录、查在线表、按接收方格式编码、入发送队列。
+// 连接没有 socket，入队后当场取走丢掉（代替写线程），不含网络开销。
+//   online   发给在线的 bob
+//   offline  发给不在线的 cathy（只存记录，给发送方回 CHAT_OFFLINE_SAVED）
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 1)
+@Fork(3)
+public class RoutingBench {
+    private Path dir;
+    private ChatServer server;
+    private ClientHandler alice;
+    private Message toOnline;
+    private Message toOffline;
+
+    // 发送队列一有数据就清空
+    static final class DiscardingHandler extends ClientHandler {
+        DiscardingHandler(ChatServer server) {
+            super(null, server);
+        }
+
+        @Override
+        protected void wakeWriter() {
+            while (outbox.poll() != null) {
+                // 丢弃
+            }
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        dir = BenchFiles.tempDir("routing");
+        Files.writeString(dir.resolve("friends_db.txt"), "alice:bob\nbob:alice\ncathy:\n", StandardCharsets.UTF_8);
+        server = new ChatServer(dir);
+        server.startServices();
+        alice = login(server, "alice");
+        login(server, "bob");
+        toOnline = Message.of("CHAT", "alice", "bob", "晚上一起吃饭吗？老地方见");
+        toOffline = Message.of("CHAT", "alice", "cathy", "晚上一起吃饭吗？老地方见");
+    }
+
+    private static ClientHandler login(ChatServer server, String user) throws InterruptedException {
+        ClientHandler h = new DiscardingHandler(server);
+        Message m = Message.of("LOGIN", user, "server", "123");
+        m.data = "proto=bin";
+        h.dispatch(m);
+        // 密码在校验线程里验，登录是异步完成的
+        long deadline = System.nanoTime() + 10_000_000_000L;
+        while (!server.isAuthed(h)) {
+            if (System.nanoTime() > deadline) throw new IllegalStateException("login failed: " + user);
+            Thread.sleep(1);
+        }
+        return h;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        server.historyStore.close();
+        server.users.close();
+        BenchFiles.deleteTree(dir);
+    }
+
+    @Benchmark
+    public void online() {
+        alice.dispatch(toOnline);
+    }
+
+    @Benchmark
+    public void offline() {
+        alice.dispatch(toOffline);
+    }
+}
@@ -5,13 +5,23 @@ import java.io.*;
 import java.net.Socket;
 import java.util.*;
 import java.util.List;
+import protocol.BinaryCodec;
+import protocol.FrameReader;
+import protocol.Message;
+import protocol.SimpleJson;
 
 public class ChatClientGUI extends JFrame {
     // 网络
     private Socket socket;
-    private BufferedReader in;
-    private BufferedWriter out;
+    private FrameReader in;
+    private OutputStream out;
     private ClientReceiver receiver;
+    // 服务端在 LOGIN_OK 中同意后，发送改用二进制帧
+    private volatile boolean binaryOut = false;
+    // 服务端同意 deflate 后，不小于这么多字节的帧压缩后再发；0 表示不压缩
+    private volatile int deflateMin = 0;
+    // 登录后断线：窗口留着，只能看本地缓存的聊天记录
+    private volatile boolean offline = false;
 
     // 登录用户
     private String me = null;
@@ -19,6 +29,9 @@ public class ChatClientGUI extends JFrame {
     // 好友与状态
     private final DefaultListModel<FriendItem> friendModel = new DefaultListModel<>();
     private final Map<String, String> statusMap = new HashMap<>(); // acc -> ONLINE/OFFLINE
+    // 我所在的群，显示在好友列表末尾（账号一栏为 "#群名"）
+    private List<String> rooms = new ArrayList<>();
+    private String lastFriendData = "";
 
     // UI组件
     private final JLabel topInfo = new JLabel("未登录");
@@ -33,11 +46,20 @@ public class ChatClientGUI extends JFrame {
     private final JButton historyListBtn = new JButton("列出记录文件");
     private final JButton historyOpenBtn = new JButton("打开记录");
     private final JButton historyDelBtn = new JButton("删除记录");
+    private final JButton historySearchBtn = new JButton("搜索记录");
+    private final JButton roomCreateBtn = new JButton("建群");
+    private final JButton roomJoinBtn = new JButton("加入群");
+    private final JButton roomLeaveBtn = new JButton("退出群");
 
     private final JList<FriendItem> friendList = new JList<>(friendModel);
 
     // 聊天记录窗口（可复用）
     private HistoryFrame historyFrame;
+    private static final int HISTORY_PAGE = 100;
+    // 本地记录缓存（登录成功后创建），以及聊天记录窗口当前显示的对方
+    private LocalHistoryCache historyCache;
+    private String historyPeer;
+    private boolean historyChanged;
 
     // 当前聊天对象
     private String currentPeer = null;
@@ -51,8 +73,8 @@ public class ChatClientGUI extends JFrame {
 
     private void connect(String host, int port) throws Exception {
         socket = new Socket(host, port);
-        in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
-        out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"));
+        in = new FrameReader(socket.getInputStream());
+        out = new BufferedOutputStream(socket.getOutputStream());
         receiver = new ClientReceiver(in, this);
         receiver.start();
     }
@@ -91,7 +113,14 @@ public class ChatClientGUI extends JFrame {
         leftBtns.add(remarkBtn);
         leftBtns.add(delFriendBtn);
         leftBtns.add(refreshStatusBtn);
-        left.add(leftBtns, BorderLayout.SOUTH);
+        JPanel roomBtns = new JPanel(new GridLayout(1, 3, 6, 6));
+        roomBtns.add(roomCreateBtn);
+        roomBtns.add(roomJoinBtn);
+        roomBtns.add(roomLeaveBtn);
+        JPanel leftSouth = new JPanel(new BorderLayout(6, 6));
+        leftSouth.add(leftBtns, BorderLayout.CENTER);
+        leftSouth.add(roomBtns, BorderLayout.SOUTH);
+        left.add(leftSouth, BorderLayout.SOUTH);
 
         // 右侧聊天区
         chatArea.setEditable(false);
@@ -113,6 +142,7 @@ public class ChatClientGUI extends JFrame {
         bottom.add(historyListBtn);
         bottom.add(historyOpenBtn);
         bottom.add(historyDelBtn);
+        bottom.add(historySearchBtn);
 
         // 主布局
         JSplitPane split = new JSplitPane(JSplitPane.HORIZONTAL_SPLIT, left, right);
@@ -136,6 +166,11 @@ public class ChatClientGUI extends JFrame {
         historyListBtn.addActionListener(e -> sendSafe(Message.of("HIS_LIST", me, "server", "")));
         historyOpenBtn.addActionListener(e -> doOpenHistory());
         historyDelBtn.addActionListener(e -> doDeleteHistory());
+        historySearchBtn.addActionListener(e -> doSearchHistory());
+
+        roomCreateBtn.addActionListener(e -> doRoomOp("ROOM_CREATE", "输入新群名：", "建群"));
+        roomJoinBtn.addActionListener(e -> doRoomOp("ROOM_JOIN", "输入要加入的群名：", "加入群"));
+        roomLeaveBtn.addActionListener(e -> doLeaveRoom());
 
         setVisible(true);
     }
@@ -143,7 +178,11 @@ public class ChatClientGUI extends JFrame {
     private void showLogin() {
         LoginFrame lf = new LoginFrame((u, p) -> {
             this.me = u;
-            sendSafe(Message.of("LOGIN", u, "server", p));
+            Message login = Message.of("LOGIN", u, "server", p);
+            // 请求二进制帧、大帧压缩、登录时一帧下发好友/状态/群（LOGIN_BOOT），并声明会回 PONG（ping）；
+            // 旧服务端会忽略，仍走 JSON 和逐个请求
+            login.data = "proto=bin;deflate;boot;ping";
+            sendSafe(login);
         });
         lf.setVisible(true);
 
@@ -166,7 +205,9 @@ public class ChatClientGUI extends JFrame {
         String text = inputField.getText().trim();
         if (text.isEmpty()) return;
 
-        Message m = Message.of("CHAT", me, currentPeer, text);
+        Message m = isRoom(currentPeer)
+                ? Message.of("ROOM_CHAT", me, currentPeer.substring(1), text)
+                : Message.of("CHAT", me, currentPeer, text);
         sendSafe(m);
         appendMe(text);
         inputField.setText("");
@@ -188,6 +229,10 @@ public class ChatClientGUI extends JFrame {
             JOptionPane.showMessageDialog(this, "请先选择要修改备注的好友。", "提示", JOptionPane.WARNING_MESSAGE);
             return;
         }
+        if (isRoom(it.account)) {
+            JOptionPane.showMessageDialog(this, "群不是好友，请用“退出群”。", "提示", JOptionPane.WARNING_MESSAGE);
+            return;
+        }
         String r = JOptionPane.showInputDialog(this, "输入新备注（可为空）：", "修改备注 - " + it.account, JOptionPane.PLAIN_MESSAGE);
         if (r == null) return;
         r = r.trim();
@@ -201,6 +246,10 @@ public class ChatClientGUI extends JFrame {
             JOptionPane.showMessageDialog(this, "请先选择要删除的好友。", "提示", JOptionPane.WARNING_MESSAGE);
             return;
         }
+        if (isRoom(it.account)) {
+            JOptionPane.showMessageDialog(this, "群不是好友，请用“退出群”。", "提示", JOptionPane.WARNING_MESSAGE);
+            return;
+        }
         int ok = JOptionPane.showConfirmDialog(this, "确定删除好友：" + it.account + " ?", "确认删除",
                 JOptionPane.YES_NO_OPTION);
         if (ok == JOptionPane.YES_OPTION) {
@@ -208,13 +257,58 @@ public class ChatClientGUI extends JFrame {
         }
     }
 
-    private void doOpenHistory() {
+    private static boolean isRoom(String account) {
+        return account != null && account.startsWith("#");
+    }
+
+    private void doRoomOp(String type, String prompt, String title) {
+        if (me == null) return;
+        String r = JOptionPane.showInputDialog(this, prompt, title, JOptionPane.PLAIN_MESSAGE);
+        if (r == null || r.isBlank()) return;
+        sendSafe(Message.of(type, me, "server", r.trim().replaceFirst("^#", "")));
+    }
+
+    private void doLeaveRoom() {
         if (me == null) return;
+        FriendItem it = friendList.getSelectedValue();
+        if (it == null || !isRoom(it.account)) {
+            JOptionPane.showMessageDialog(this, "请先在左侧选择一个群。", "提示", JOptionPane.WARNING_MESSAGE);
+            return;
+        }
+        int ok = JOptionPane.showConfirmDialog(this, "确定退出群：" + it.account + " ?", "退出群",
+                JOptionPane.YES_NO_OPTION);
+        if (ok == JOptionPane.YES_OPTION) {
+            sendSafe(Message.of("ROOM_LEAVE", me, "server", it.account.substring(1)));
+        }
+    }
+
+    // 群聊记录直接按页向服务端要（不进本地缓存）
+    private void requestRoomHistory(String room, String cursor) {
+        Message m = Message.of("ROOM_HIS", me, "server", room);
+        m.data = cursor + ";limit=" + HISTORY_PAGE;
+        sendSafe(m);
+    }
+
+    private void doOpenHistory() {
+        if (me == null || historyCache == null) return;
 
         String peer = null;
         FriendItem it = friendList.getSelectedValue();
         if (it != null) peer = it.account;
 
+        if (isRoom(peer)) {
+            final String room = peer.substring(1);
+            if (historyFrame == null) historyFrame = new HistoryFrame("群聊记录 - " + peer);
+            else historyFrame.setTitle("群聊记录 - " + peer);
+            historyFrame.setPager(c -> requestRoomHistory(room, c));
+            historyFrame.setText("(正在读取…)");
+            historyFrame.setVisible(true);
+            historyFrame.toFront();
+            historyPeer = null;
+            requestRoomHistory(room, "");
+            return;
+        }
+
         if (peer == null) {
             peer = JOptionPane.showInputDialog(this, "输入对方账号（读取你和TA的聊天记录）：", "打开聊天记录", JOptionPane.PLAIN_MESSAGE);
             if (peer == null) return;
@@ -231,7 +325,60 @@ public class ChatClientGUI extends JFrame {
         historyFrame.setVisible(true);
         historyFrame.toFront();
 
-        sendSafe(Message.of("HIS_READ", me, "server", peer));
+        // 先显示本地缓存的最新一页（离线也能看），再向服务端要缓存之后新增的记录
+        final String p = peer;
+        historyPeer = peer;
+        historyChanged = false;
+        historyFrame.setPager(c -> showLocalHistory(p, c));
+        if (historyCache.isEmpty(peer)) {
+            historyFrame.setText(offline ? "(离线，本地没有缓存的记录)" : "(正在同步…)");
+        } else {
+            showLocalHistory(peer, "");
+        }
+        if (!offline) requestHistorySync(peer);
+    }
+
+    // 翻页都在本地缓存里做；cursor 为 HistoryFrame 给的 "before=序号" / "after=序号"，空串表示最新一页
+    private void showLocalHistory(String peer, String cursor) {
+        LocalHistoryCache.Page page;
+        if (BinaryCodec.opt(cursor, "before") != null) {
+            page = historyCache.readBefore(peer, (int) parseLong(BinaryCodec.opt(cursor, "before")), HISTORY_PAGE);
+        } else if (BinaryCodec.opt(cursor, "after") != null) {
+            page = historyCache.readAfter(peer, (int) parseLong(BinaryCodec.opt(cursor, "after")), HISTORY_PAGE);
+        } else {
+            page = historyCache.readLatest(peer, HISTORY_PAGE);
+        }
+        historyFrame.setPage(page.text, page.start, page.end, page.hasBefore, page.hasAfter);
+    }
+
+    private void requestHistorySync(String peer) {
+        Message m = Message.of("HIS_SYNC", me, "server", peer);
+        m.data = "after=" + historyCache.serverOffset(peer) + ";epoch=" + historyCache.epoch(peer);
+        sendSafe(m);
+    }
+
+    // 同步结果写进缓存；服务端说还有就接着要，同步完且有变化再刷新窗口
+    private void onHistorySync(Message m) {
+        String peer = BinaryCodec.opt(m.data, "peer");
+        if (peer == null || historyCache == null) return;
+        boolean showing = peer.equals(historyPeer) && historyFrame != null;
+        if (BinaryCodec.hasOpt(m.data, "error=1")) {
+            if (showing && historyCache.isEmpty(peer)) historyFrame.setText(m.content);
+            return;
+        }
+        if ("1".equals(BinaryCodec.opt(m.data, "reset"))) {
+            historyCache.reset(peer);
+            historyChanged = true;
+        }
+        if (m.content != null && !m.content.isEmpty()) historyChanged = true;
+        historyCache.append(peer, m.content, BinaryCodec.opt(m.data, "epoch"),
+                parseLong(BinaryCodec.opt(m.data, "end")));
+        if ("1".equals(BinaryCodec.opt(m.data, "more_after"))) {
+            requestHistorySync(peer);
+        } else if (showing && (historyChanged || historyCache.isEmpty(peer))) {
+            historyChanged = false;
+            showLocalHistory(peer, "");
+        }
     }
 
     private void doDeleteHistory() {
@@ -248,13 +395,26 @@ public class ChatClientGUI extends JFrame {
         }
     }
 
+    private void doSearchHistory() {
+        if (me == null) return;
+        String q = JOptionPane.showInputDialog(this, "输入关键词（多个词用空格分开）：", "搜索聊天记录", JOptionPane.PLAIN_MESSAGE);
+        if (q == null || q.isBlank()) return;
+        Message m = Message.of("HIS_SEARCH", me, "server", q.trim());
+        // 选中了好友就只搜和 TA 的记录，选中了群就只搜群聊记录
+        FriendItem it = friendList.getSelectedValue();
+        if (it == null) m.data = "";
+        else m.data = isRoom(it.account) ? "room=" + it.account.substring(1) : "peer=" + it.account;
+        sendSafe(m);
+    }
+
     private void sendSafe(Message m) {
-        if (m == null) return;
+        if (m == null || offline) return;
         try {
-            String line = SimpleJson.toJson(m);
+            byte[] frame = binaryOut ? BinaryCodec.encode(m) : SimpleJson.toFrame(m);
+            int min = deflateMin;
+            if (min > 0 && frame.length >= min) frame = BinaryCodec.deflate(frame, 1);
             synchronized (out) {
-                out.write(line);
-                out.write("\n");
+                out.write(frame);
                 out.flush();
             }
         } catch (Exception e) {
@@ -262,6 +422,21 @@ public class ChatClientGUI extends JFrame {
         }
     }
 
+    // 由接收线程在收到服务端 PING 时调用
+    void pong() {
+        sendSafe(Message.of("PONG", me == null ? "" : me, "server", ""));
+    }
+
+    // 由接收线程在收到同意二进制的 LOGIN_OK 时调用（早于该消息在 EDT 上的处理）
+    void useBinary() {
+        binaryOut = true;
+    }
+
+    // 同上，LOGIN_OK 带 deflate=阈值 时调用
+    void useDeflate(int minBytes) {
+        deflateMin = Math.max(1, minBytes);
+    }
+
     // ========== 服务端消息回调 ==========
     public void onMessage(Message m) {
         // Swing 线程安全：切回 EDT
@@ -272,15 +447,39 @@ public class ChatClientGUI extends JFrame {
         switch (m.type) {
             case "LOGIN_OK" -> {
                 topInfo.setText("当前用户：" + me + "    状态：在线");
+                historyCache = new LocalHistoryCache(me);
                 appendSys("登录成功。");
-                // 登录成功后主动拉取好友列表、状态（服务端一般也会推一次，这里双保险）
-                sendSafe(Message.of("FRIEND_LIST", me, "server", ""));
-                sendSafe(Message.of("STATUS_QUERY", me, "server", ""));
+                // 服务端答应了 boot：好友、状态、群紧跟着在 LOGIN_BOOT 里，不用再请求；
+                // 旧服务端：主动拉取好友列表、状态、群
+                if (!BinaryCodec.hasOpt(m.data, "boot")) {
+                    sendSafe(Message.of("FRIEND_LIST", me, "server", ""));
+                    sendSafe(Message.of("STATUS_QUERY", me, "server", ""));
+                    sendSafe(Message.of("ROOM_LIST", me, "server", ""));
+                }
                 // 关闭所有登录窗口
                 closeLoginFrames();
             }
+            // data 每行 key=value：friends、status、rooms 分别同 FRIEND_LIST_RES、STATUS_RES、ROOM_LIST_RES 的 data
+            case "LOGIN_BOOT" -> {
+                Map<String, String> boot = new HashMap<>();
+                for (String line : m.data.split("\n")) {
+                    int idx = line.indexOf('=');
+                    if (idx > 0) boot.put(line.substring(0, idx), line.substring(idx + 1));
+                }
+                rooms = parseList(boot.getOrDefault("rooms", ""));
+                rebuildFriendList(boot.getOrDefault("friends", ""));
+                applyStatusPairs(boot.getOrDefault("status", ""));
+                friendList.repaint();
+                appendSys("好友列表、在线状态已同步。");
+            }
             case "LOGIN_FAIL" -> JOptionPane.showMessageDialog(this, m.content, "登录失败", JOptionPane.ERROR_MESSAGE);
 
+            // 服务器接入满了，连接马上会被关掉
+            case "BUSY" -> {
+                JOptionPane.showMessageDialog(this, m.content, "服务器繁忙", JOptionPane.WARNING_MESSAGE);
+                System.exit(0);
+            }
+
             case "KICK" -> {
                 JOptionPane.showMessageDialog(this, m.content, "下线通知", JOptionPane.WARNING_MESSAGE);
                 System.exit(0);
@@ -293,6 +492,29 @@ public class ChatClientGUI extends JFrame {
 
             case "CHAT_OFFLINE_SAVED" -> appendSys(m.content);
 
+            case "ROOM_CHAT" -> appendPeer(m.from + " @#" + m.to, m.content);
+
+            case "ROOM_LIST_RES" -> {
+                rooms = parseList(m.data);
+                rebuildFriendList(lastFriendData);
+            }
+
+            case "ROOM_OP_OK" -> {
+                appendSys(m.content + "：#" + BinaryCodec.opt(m.data, "room"));
+                sendSafe(Message.of("ROOM_LIST", me, "server", ""));
+            }
+            case "ROOM_OP_FAIL" -> JOptionPane.showMessageDialog(this, m.content, "群操作失败", JOptionPane.ERROR_MESSAGE);
+
+            case "ROOM_HIS_RES" -> {
+                if (historyFrame == null) historyFrame = new HistoryFrame("群聊记录");
+                historyFrame.setPage(m.content, parseLong(BinaryCodec.opt(m.data, "start")),
+                        parseLong(BinaryCodec.opt(m.data, "end")),
+                        "1".equals(BinaryCodec.opt(m.data, "more_before")),
+                        "1".equals(BinaryCodec.opt(m.data, "more_after")));
+                historyFrame.setVisible(true);
+                historyFrame.toFront();
+            }
+
             case "FRIEND_LIST_RES" -> {
                 rebuildFriendList(m.data);
                 appendSys("好友列表已更新。");
@@ -318,7 +540,19 @@ public class ChatClientGUI extends JFrame {
                 if (files.isEmpty()) {
                     JOptionPane.showMessageDialog(this, "暂无聊天记录文件。", "聊天记录", JOptionPane.INFORMATION_MESSAGE);
                 } else {
-                    JTextArea a = new JTextArea(String.join("\n", files));
+                    // 新服务端在 content 里带 "文件名=最后时间,条数,字节数"，有就一并显示
+                    Map<String, String> meta = new HashMap<>();
+                    for (String p : parseList(m.content)) {
+                        String[] kv = p.split("=", 2);
+                        String[] v = kv.length == 2 ? kv[1].split(",") : new String[0];
+                        if (v.length == 3) {
+                            meta.put(kv[0], String.format("  最后 %1$tF %1$tR  %2$s 条  %3$.1f KB",
+                                    parseLong(v[0]), v[1], parseLong(v[2]) / 1024.0));
+                        }
+                    }
+                    StringBuilder sb = new StringBuilder();
+                    for (String f : files) sb.append(f).append(meta.getOrDefault(f, "")).append("\n");
+                    JTextArea a = new JTextArea(sb.toString().trim());
                     a.setEditable(false);
                     a.setLineWrap(true);
                     JOptionPane.showMessageDialog(this, new JScrollPane(a), "聊天记录文件列表", JOptionPane.INFORMATION_MESSAGE);
@@ -329,7 +563,26 @@ public class ChatClientGUI extends JFrame {
                 if (historyFrame == null) {
                     historyFrame = new HistoryFrame("聊天记录");
                 }
-                historyFrame.setText(m.content);
+                if (BinaryCodec.hasOpt(m.data, "page")) {
+                    historyFrame.setPage(m.content, parseLong(BinaryCodec.opt(m.data, "start")),
+                            parseLong(BinaryCodec.opt(m.data, "end")),
+                            "1".equals(BinaryCodec.opt(m.data, "more_before")),
+                            "1".equals(BinaryCodec.opt(m.data, "more_after")));
+                } else {
+                    historyFrame.setText(m.content);
+                }
+                historyFrame.setVisible(true);
+                historyFrame.toFront();
+            }
+
+            case "HIS_SYNC_RES" -> onHistorySync(m);
+
+            case "HIS_SEARCH_RES" -> {
+                if (historyFrame == null) {
+                    historyFrame = new HistoryFrame("搜索结果");
+                }
+                historyFrame.setTitle("搜索结果（" + BinaryCodec.opt(m.data, "count") + " 条）");
+                historyFrame.setText(m.content.isEmpty() ? "(没有找到)" : m.content);
                 historyFrame.setVisible(true);
                 historyFrame.toFront();
             }
@@ -345,8 +598,18 @@ public class ChatClientGUI extends JFrame {
 
     public void onDisconnected() {
         SwingUtilities.invokeLater(() -> {
-            JOptionPane.showMessageDialog(this, "与服务器连接断开。", "网络错误", JOptionPane.ERROR_MESSAGE);
-            System.exit(0);
+            if (offline) return;
+            if (historyCache == null) {
+                JOptionPane.showMessageDialog(this, "与服务器连接断开。", "网络错误", JOptionPane.ERROR_MESSAGE);
+                System.exit(0);
+            }
+            // 已登录：留在离线模式，还能翻本地缓存的聊天记录
+            offline = true;
+            topInfo.setText("当前用户：" + me + "    状态：离线");
+            sendBtn.setEnabled(false);
+            inputField.setEditable(false);
+            JOptionPane.showMessageDialog(this, "与服务器连接断开，仍可查看本地缓存的聊天记录。", "网络错误",
+                    JOptionPane.ERROR_MESSAGE);
         });
     }
 
@@ -360,6 +623,8 @@ public class ChatClientGUI extends JFrame {
 
     // ========== 好友/状态处理 ==========
     private void rebuildFriendList(String data) {
+        lastFriendData = data == null ? "" : data;
+        String selected = currentPeer;
         friendModel.clear();
         List<String> items = parseList(data); // "bob|室友; cathy"
         for (String item : items) {
@@ -369,6 +634,10 @@ public class ChatClientGUI extends JFrame {
             String remark = parts.length > 1 ? parts[1].trim() : "";
             friendModel.addElement(new FriendItem(acc, remark));
         }
+        for (String r : rooms) friendModel.addElement(new FriendItem("#" + r, ""));
+        for (int i = 0; i < friendModel.size(); i++) {
+            if (friendModel.get(i).account.equals(selected)) friendList.setSelectedIndex(i);
+        }
         if (!friendModel.isEmpty() && friendList.getSelectedIndex() < 0) {
             friendList.setSelectedIndex(0);
         }
@@ -385,6 +654,14 @@ public class ChatClientGUI extends JFrame {
         }
     }
 
+    private static long parseLong(String s) {
+        try {
+            return s == null ? 0 : Long.parseLong(s);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
     private List<String> parseList(String data) {
         List<String> out = new ArrayList<>();
         if (data == null || data.isBlank()) return out;
@@ -418,6 +695,10 @@ public class ChatClientGUI extends JFrame {
                                                       boolean isSelected, boolean cellHasFocus) {
             super.getListCellRendererComponent(list, value, index, isSelected, cellHasFocus);
             FriendItem it = (FriendItem) value;
+            if (isRoom(it.account)) {
+                setText(it.account + "  [群]");
+                return this;
+            }
             String st = statusMap.getOrDefault(it.account, "UNKNOWN");
             String stCn = "ONLINE".equals(st) ? "在线" : ("OFFLINE".equals(st) ? "离线" : "未知");
             String name = it.account + (it.remark.isEmpty() ? "" : ("（" + it.remark + "）"));
@@ -1,11 +1,13 @@
 package client_gui;
-import java.io.BufferedReader;
+import protocol.BinaryCodec;
+import protocol.FrameReader;
+import protocol.Message;
 
 public class ClientReceiver extends Thread {
-    private final BufferedReader in;
+    private final FrameReader in;
     private final ChatClientGUI gui;
 
-    public ClientReceiver(BufferedReader in, ChatClientGUI gui) {
+    public ClientReceiver(FrameReader in, ChatClientGUI gui) {
         this.in = in;
         this.gui = gui;
         setName("ClientReceiver");
@@ -15,13 +17,33 @@ public class ClientReceiver extends Thread {
     @Override
     public void run() {
         try {
-            String line;
-            while ((line = in.readLine()) != null) {
-                Message m = SimpleJson.fromJson(line);
+            Message m;
+            while ((m = in.read()) != null) {
+                // 协商结果要在后续请求发出前生效，所以在接收线程里切换，不等 EDT
+                if ("LOGIN_OK".equals(m.type) && BinaryCodec.hasOpt(m.data, "proto=bin")) {
+                    gui.useBinary();
+                    // 阈值不是数字就当没协商 deflate，照常不压缩，不能让接收线程因此退出
+                    int min = parseInt(BinaryCodec.opt(m.data, "deflate"));
+                    if (min >= 0) gui.useDeflate(min);
+                }
+                // 心跳直接在接收线程里回，不经过 EDT（界面卡住时也不会被当成断线）
+                if ("PING".equals(m.type)) {
+                    gui.pong();
+                    continue;
+                }
                 gui.onMessage(m);
             }
         } catch (Exception e) {
             gui.onDisconnected();
         }
     }
+
+    // 没有或格式不对返回 -1
+    private static int parseInt(String s) {
+        try {
+            return s == null ? -1 : Integer.parseInt(s.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
 }
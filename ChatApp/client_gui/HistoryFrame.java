@@ -3,9 +3,15 @@ import javax.swing.*;
 import java.awt.*;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
+import java.util.function.Consumer;
 
 public class HistoryFrame extends JFrame {
     private final JTextArea area = new JTextArea();
+    private final JButton olderBtn = new JButton("更早");
+    private final JButton newerBtn = new JButton("更新");
+    // 翻页：参数为 "before=偏移" / "after=偏移"
+    private Consumer<String> pager;
+    private long start, end;
 
     public HistoryFrame(String title) {
         setTitle(title);
@@ -18,10 +24,35 @@ public class HistoryFrame extends JFrame {
 
         setLayout(new BorderLayout(8, 8));
         add(new JScrollPane(area), BorderLayout.CENTER);
+
+        JPanel nav = new JPanel(new FlowLayout(FlowLayout.RIGHT));
+        nav.add(olderBtn);
+        nav.add(newerBtn);
+        add(nav, BorderLayout.SOUTH);
+        olderBtn.setEnabled(false);
+        newerBtn.setEnabled(false);
+        olderBtn.addActionListener(e -> { if (pager != null) pager.accept("before=" + start); });
+        newerBtn.addActionListener(e -> { if (pager != null) pager.accept("after=" + end); });
+    }
+
+    public void setPager(Consumer<String> pager) {
+        this.pager = pager;
     }
 
     public void setText(String text) {
         area.setText(text == null ? "" : text);
         area.setCaretPosition(0);
+        olderBtn.setEnabled(false);
+        newerBtn.setEnabled(false);
+    }
+
+    // 分页结果：显示这一页并按服务端提示启用翻页按钮
+    public void setPage(String text, long start, long end, boolean moreBefore, boolean moreAfter) {
+        this.start = start;
+        this.end = end;
+        area.setText(text == null || text.isEmpty() ? "(没有更多记录)" : text);
+        area.setCaretPosition(0);
+        olderBtn.setEnabled(moreBefore);
+        newerBtn.setEnabled(moreAfter);
     }
 }
@@ -0,0 +1,206 @@
+package client_gui;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+// 本地聊天记录缓存：~/.chatapp/history/<我>/<对方>.txt 存记录原文，.meta 存服务端纪元和已同步到的偏移。
+// 打开记录时先显示本地内容，再用 HIS_SYNC 只取偏移之后新增的部分。只在 EDT 上使用。
+public class LocalHistoryCache {
+    public static final class Page {
+        public final String text;
+        public final int start; // 记录序号，[start, end)
+        public final int end;
+        public final boolean hasBefore;
+        public final boolean hasAfter;
+
+        Page(String text, int start, int end, boolean hasBefore, boolean hasAfter) {
+            this.text = text;
+            this.start = start;
+            this.end = end;
+            this.hasBefore = hasBefore;
+            this.hasAfter = hasAfter;
+        }
+    }
+
+    private static final class Entry {
+        String epoch = "";
+        long serverOffset;
+        long[] starts; // starts[i] 为第 i 条记录的起始位置，starts[count] 为文件长度；null 表示还没建
+        int count;
+    }
+
+    private final Path dir;
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    public LocalHistoryCache(String me) {
+        dir = Paths.get(System.getProperty("user.home"), ".chatapp", "history", safe(me));
+    }
+
+    // 账号用作文件名：UTF-8 字节里 a-z、0-9、_、- 原样保留，其余（含大写字母和 %）写成 %XX。
+    // 可逆，不同账号不会落到同一个文件；大写也转义，在不区分大小写的文件系统上 Bob 和 bob 也不会撞
+    private static String safe(String s) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : s.getBytes(StandardCharsets.UTF_8)) {
+            int c = b & 0xFF;
+            if ((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '_' || c == '-') {
+                sb.append((char) c);
+            } else {
+                sb.append('%').append(Character.toUpperCase(Character.forDigit(c >> 4, 16)))
+                        .append(Character.toUpperCase(Character.forDigit(c & 0xF, 16)));
+            }
+        }
+        return sb.toString();
+    }
+
+    private Path textFile(String peer) {
+        return dir.resolve(safe(peer) + ".txt");
+    }
+
+    private Path metaFile(String peer) {
+        return dir.resolve(safe(peer) + ".meta");
+    }
+
+    private Entry entry(String peer) {
+        Entry e = entries.get(peer);
+        if (e != null) return e;
+        e = new Entry();
+        try {
+            List<String> meta = Files.readAllLines(metaFile(peer), StandardCharsets.UTF_8);
+            if (meta.size() >= 2 && Files.exists(textFile(peer))) {
+                e.epoch = meta.get(0).trim();
+                e.serverOffset = Long.parseLong(meta.get(1).trim());
+            }
+        } catch (IOException | NumberFormatException ignore) {
+            // 没有或坏了就当没缓存
+        }
+        entries.put(peer, e);
+        return e;
+    }
+
+    public String epoch(String peer) {
+        return entry(peer).epoch;
+    }
+
+    public long serverOffset(String peer) {
+        return entry(peer).serverOffset;
+    }
+
+    public boolean isEmpty(String peer) {
+        return index(peer).count == 0;
+    }
+
+    // 服务端说纪元变了（记录被删过）：清掉重来
+    public void reset(String peer) {
+        Entry e = entry(peer);
+        e.epoch = "";
+        e.serverOffset = 0;
+        e.starts = new long[]{0};
+        e.count = 0;
+        try {
+            Files.deleteIfExists(textFile(peer));
+            Files.deleteIfExists(metaFile(peer));
+        } catch (IOException ex) {
+            System.err.println("history cache: " + ex.getMessage());
+        }
+    }
+
+    // 追加一段同步下来的记录，并记下新的纪元和服务端偏移
+    public void append(String peer, String text, String epoch, long serverOffset) {
+        Entry e = index(peer);
+        try {
+            Files.createDirectories(dir);
+            if (text != null && !text.isEmpty()) {
+                byte[] b = text.getBytes(StandardCharsets.UTF_8);
+                long base = e.starts[e.count];
+                try (OutputStream os = Files.newOutputStream(textFile(peer),
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+                    os.write(b);
+                }
+                addRecords(e, b, 0, b.length, base);
+            }
+            e.epoch = epoch;
+            e.serverOffset = serverOffset;
+            Path tmp = dir.resolve(safe(peer) + ".meta.tmp");
+            Files.writeString(tmp, epoch + "\n" + serverOffset + "\n", StandardCharsets.UTF_8);
+            Files.move(tmp, metaFile(peer), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            // 写缓存失败只影响下次打开的速度，丢掉缓存让下次全量同步
+            System.err.println("history cache: " + ex.getMessage());
+            reset(peer);
+        }
+    }
+
+    // ---- 分页读，游标是本地记录序号 ----
+
+    public Page readLatest(String peer, int limit) {
+        Entry e = index(peer);
+        return read(peer, Math.max(0, e.count - limit), e.count);
+    }
+
+    public Page readBefore(String peer, int cursor, int limit) {
+        Entry e = index(peer);
+        int to = Math.max(0, Math.min(cursor, e.count));
+        return read(peer, Math.max(0, to - limit), to);
+    }
+
+    public Page readAfter(String peer, int cursor, int limit) {
+        Entry e = index(peer);
+        int from = Math.max(0, Math.min(cursor, e.count));
+        return read(peer, from, Math.min(e.count, from + limit));
+    }
+
+    private Page read(String peer, int from, int to) {
+        Entry e = entry(peer);
+        String text = "";
+        if (to > from) {
+            byte[] b = new byte[(int) (e.starts[to] - e.starts[from])];
+            try (RandomAccessFile f = new RandomAccessFile(textFile(peer).toFile(), "r")) {
+                f.seek(e.starts[from]);
+                f.readFully(b);
+                text = new String(b, StandardCharsets.UTF_8);
+            } catch (IOException ex) {
+                System.err.println("history cache: " + ex.getMessage());
+                reset(peer);
+                return new Page("", 0, 0, false, false);
+            }
+        }
+        return new Page(text, from, to, from > 0, to < e.count);
+    }
+
+    // 第一次用到时扫一遍本地文件，记下每条记录的起始位置
+    private Entry index(String peer) {
+        Entry e = entry(peer);
+        if (e.starts != null) return e;
+        e.starts = new long[]{0};
+        e.count = 0;
+        if (e.epoch.isEmpty()) return e;
+        try {
+            byte[] b = Files.readAllBytes(textFile(peer));
+            addRecords(e, b, 0, b.length, 0);
+        } catch (IOException ex) {
+            reset(peer);
+        }
+        return e;
+    }
+
+    // 记录以 "[yyyy-MM-dd HH:mm:ss] " 开头；内容里自带的换行不算新记录
+    private static void addRecords(Entry e, byte[] b, int from, int to, long base) {
+        for (int i = from; i < to; i++) {
+            if (b[i] != '\n' || i + 1 >= to || !isHeader(b, i + 1, to)) continue;
+            add(e, base + i + 1);
+        }
+        if (to > from) add(e, base + to); // 最后一条的结尾，同时是下一段的起点
+    }
+
+    private static void add(Entry e, long pos) {
+        if (e.count + 1 >= e.starts.length) e.starts = Arrays.copyOf(e.starts, e.starts.length * 2 + 1);
+        e.starts[++e.count] = pos;
+    }
+
+    private static boolean isHeader(byte[] b, int i, int to) {
+        if (i + 22 > to) return false;
+        return b[i] == '[' && b[i + 5] == '-' && b[i + 8] == '-' && b[i + 11] == ' ' && b[i + 14] == ':'
+                && b[i + 17] == ':' && b[i + 20] == ']' && b[i + 21] == ' ';
+    }
+}
@@ -0,0 +1,79 @@
+package loadgen;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// 延迟直方图（纳秒）：每个 2 的幂区间再均分 32 格，相对误差约 3%，记录时无锁、不分配。
+// 上限 2^40 ns（约 18 分钟），更长的记在最后一格。
+public final class LatencyHistogram {
+    private static final int SUB_BITS = 5;
+    private static final int SUB = 1 << SUB_BITS;
+    private static final int RANGES = 41 - SUB_BITS;
+    private static final int BUCKETS = (RANGES + 1) * SUB;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        counts.incrementAndGet(index(nanos));
+        total.increment();
+        sum.add(nanos);
+        long m = max.get();
+        while (nanos > m && !max.compareAndSet(m, nanos)) m = max.get();
+    }
+
+    // [0, SUB) 一格一个值；之后第 r 个区间 [SUB·2^(r-1), SUB·2^r) 分 SUB 格
+    private static int index(long v) {
+        if (v < SUB) return (int) v;
+        int r = 64 - Long.numberOfLeadingZeros(v) - SUB_BITS;
+        if (r > RANGES) return BUCKETS - 1;
+        return r * SUB + (int) ((v >>> (r - 1)) - SUB);
+    }
+
+    // 格子的上界（含）
+    private static long upper(int i) {
+        if (i < SUB) return i;
+        int r = i / SUB;
+        long lo = (long) (SUB + i % SUB) << (r - 1);
+        return lo + (1L << (r - 1)) - 1;
+    }
+
+    public long count() {
+        return total.sum();
+    }
+
+    public double meanMillis() {
+        long n = total.sum();
+        return n == 0 ? 0 : sum.sum() / 1e6 / n;
+    }
+
+    public double maxMillis() {
+        return max.get() / 1e6;
+    }
+
+    public double percentileMillis(double p) {
+        long[] snap = new long[BUCKETS];
+        long n = 0;
+        for (int i = 0; i < BUCKETS; i++) n += snap[i] = counts.get(i);
+        if (n == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(p * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snap[i];
+            if (seen >= rank) return Math.min(upper(i), max.get()) / 1e6;
+        }
+        return max.get() / 1e6;
+    }
+
+    // 报告里的一段 JSON 对象
+    public String toJson() {
+        return String.format(java.util.Locale.ROOT,
+                "{\"count\": %d, \"mean_ms\": %.3f, \"p50_ms\": %.3f, \"p90_ms\": %.3f, \"p99_ms\": %.3f, "
+                        + "\"p999_ms\": %.3f, \"max_ms\": %.3f}",
+                count(), meanMillis(), percentileMillis(0.5), percentileMillis(0.9), percentileMillis(0.99),
+                percentileMillis(0.999), maxMillis());
+    }
+}
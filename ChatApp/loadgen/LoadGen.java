@@ -0,0 +1,248 @@
+package loadgen;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// 无界面压测客户端：模拟 N 个用户连到 ChatServer，按设定速率登录、发消息、读聊天记录，
+// 统计端到端投递延迟（发送方计划发送时刻 -> 接收方收到 CHAT）分位数、吞吐、错误和被踢次数，结果写成 JSON。
+//
+// 用法：LoadGen [--host=127.0.0.1] [--port=9000] [--users=1000] [--user-prefix=lg] [--password=123]
+//               [--login-rate=200/s] [--msg-rate=1000/s] [--payload=64 字节] [--his-mix=0.05] [--his-page=50]
+//               [--friends=0] [--proto=json|bin] [--boot=on|off] [--senders=N] [--warmup-sec=5] [--duration-sec=30]
+//               [--drain-sec=3] [--report=loadgen-report.json]
+//       LoadGen --init-users=path [--users=N] [--user-prefix=lg] [--password=123]
+//               只生成服务端账号文件（每行 账号:密码）后退出
+//
+// 发送是开环的：第 k 条消息的计划时刻固定为 开始 + k/速率，发送线程落后时照样按计划时刻记延迟，
+// 服务端变慢造成的排队因此算进结果里，不会被“等上一条发完再发”掩盖。
+public class LoadGen {
+    static final class Stats {
+        final LongAdder connectErrors = new LongAdder();
+        final LongAdder loginFailures = new LongAdder();
+        final LongAdder loginRetries = new LongAdder(); // 被服务端接入控制拒绝后按 retry_after 重试的次数
+        final LongAdder loggedIn = new LongAdder();
+        final LongAdder disconnects = new LongAdder();
+        final LongAdder kicks = new LongAdder();
+        final LongAdder opFailures = new LongAdder();
+        final LongAdder sent = new LongAdder();
+        final LongAdder sentMeasured = new LongAdder();
+        final LongAdder delivered = new LongAdder();
+        final LongAdder offlineSaved = new LongAdder();
+        final LongAdder noPeer = new LongAdder();
+        final LongAdder hisSent = new LongAdder();
+        final LongAdder hisSkipped = new LongAdder();
+        final LongAdder received = new LongAdder();
+        final LongAdder bytesOut = new LongAdder();
+        final LatencyHistogram loginLatency = new LatencyHistogram();
+        final LatencyHistogram deliveryLatency = new LatencyHistogram();
+        final LatencyHistogram historyLatency = new LatencyHistogram();
+    }
+
+    final Stats stats = new Stats();
+
+    private String host = "127.0.0.1";
+    private int port = 9000;
+    private int userCount = 1000;
+    private String prefix = "lg";
+    private String password = "123";
+    private double loginRate = 200;
+    private double msgRate = 1000;
+    private int payload = 64;
+    private double hisMix = 0.05;
+    private int hisPage = 50;
+    private int friends = 0;
+    private boolean binary = false;
+    boolean boot = true; // 登录时要求 LOGIN_BOOT
+    private int senders = Math.min(4, Runtime.getRuntime().availableProcessors());
+    private long warmupSec = 5;
+    private long durationSec = 30;
+    private long drainSec = 3;
+    private String report = "loadgen-report.json";
+
+    private SimUser[] users;
+    private volatile long measureFrom = Long.MAX_VALUE;
+    private volatile boolean stopping;
+
+    long measureFrom() {
+        return measureFrom;
+    }
+
+    boolean stopping() {
+        return stopping;
+    }
+
+    void onLoggedIn(SimUser u) {
+        stats.loggedIn.increment();
+        ThreadLocalRandom r = ThreadLocalRandom.current();
+        for (int i = 0; i < friends; i++) u.addFriend(users[r.nextInt(users.length)].name);
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadGen g = new LoadGen();
+        String initUsers = null;
+        for (String a : args) {
+            if (a.startsWith("--host=")) g.host = a.substring("--host=".length());
+            else if (a.startsWith("--port=")) g.port = Integer.parseInt(a.substring("--port=".length()));
+            else if (a.startsWith("--users=")) g.userCount = Integer.parseInt(a.substring("--users=".length()));
+            else if (a.startsWith("--user-prefix=")) g.prefix = a.substring("--user-prefix=".length());
+            else if (a.startsWith("--password=")) g.password = a.substring("--password=".length());
+            else if (a.startsWith("--login-rate=")) g.loginRate = Double.parseDouble(a.substring("--login-rate=".length()));
+            else if (a.startsWith("--msg-rate=")) g.msgRate = Double.parseDouble(a.substring("--msg-rate=".length()));
+            else if (a.startsWith("--payload=")) g.payload = Integer.parseInt(a.substring("--payload=".length()));
+            else if (a.startsWith("--his-mix=")) g.hisMix = Double.parseDouble(a.substring("--his-mix=".length()));
+            else if (a.startsWith("--his-page=")) g.hisPage = Integer.parseInt(a.substring("--his-page=".length()));
+            else if (a.startsWith("--friends=")) g.friends = Integer.parseInt(a.substring("--friends=".length()));
+            else if (a.startsWith("--proto=")) g.binary = "bin".equals(a.substring("--proto=".length()));
+            else if (a.startsWith("--boot=")) g.boot = !"off".equals(a.substring("--boot=".length()));
+            else if (a.startsWith("--senders=")) g.senders = Math.max(1, Integer.parseInt(a.substring("--senders=".length())));
+            else if (a.startsWith("--warmup-sec=")) g.warmupSec = Long.parseLong(a.substring("--warmup-sec=".length()));
+            else if (a.startsWith("--duration-sec=")) g.durationSec = Long.parseLong(a.substring("--duration-sec=".length()));
+            else if (a.startsWith("--drain-sec=")) g.drainSec = Long.parseLong(a.substring("--drain-sec=".length()));
+            else if (a.startsWith("--report=")) g.report = a.substring("--report=".length());
+            else if (a.startsWith("--init-users=")) initUsers = a.substring("--init-users=".length());
+            else throw new IllegalArgumentException("unknown option: " + a);
+        }
+        if (initUsers != null) {
+            g.writeUsers(Paths.get(initUsers));
+            return;
+        }
+        g.run();
+    }
+
+    private String userName(int i) {
+        return prefix + i;
+    }
+
+    private void writeUsers(Path file) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < userCount; i++) sb.append(userName(i)).append(':').append(password).append('\n');
+        Files.writeString(file, sb.toString(), StandardCharsets.UTF_8);
+        System.out.println("wrote " + userCount + " accounts to " + file);
+    }
+
+    private void run() throws Exception {
+        users = new SimUser[userCount];
+        for (int i = 0; i < userCount; i++) users[i] = new SimUser(userName(i), this);
+
+        // 1. 按速率登录
+        long t0 = System.nanoTime();
+        long loginGap = (long) (1e9 / loginRate);
+        for (int i = 0; i < userCount; i++) {
+            parkUntil(t0 + i * loginGap);
+            users[i].connectAndLogin(host, port, password, binary);
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (stats.loggedIn.sum() + stats.loginFailures.sum() + stats.connectErrors.sum() < userCount
+                && System.nanoTime() < deadline) {
+            Thread.sleep(20);
+        }
+        double loginSec = (System.nanoTime() - t0) / 1e9;
+        System.out.printf(Locale.ROOT, "logged in %d/%d in %.1f s (failures %d, connect errors %d)%n",
+                stats.loggedIn.sum(), userCount, loginSec, stats.loginFailures.sum(), stats.connectErrors.sum());
+        if (stats.loggedIn.sum() < 2) throw new IllegalStateException("fewer than 2 users logged in");
+
+        // 2. 预热 + 测量：senders 个线程各按 msgRate/senders 开环发送
+        String padding = padding(payload);
+        long start = System.nanoTime();
+        measureFrom = start + TimeUnit.SECONDS.toNanos(warmupSec);
+        long end = measureFrom + TimeUnit.SECONDS.toNanos(durationSec);
+        Thread[] ts = new Thread[senders];
+        for (int s = 0; s < senders; s++) {
+            long offset = s;
+            ts[s] = new Thread(() -> sendLoop(start, end, offset, padding), "lg-sender-" + s);
+            ts[s].start();
+        }
+        for (Thread t : ts) t.join();
+
+        // 3. 等在途消息到达后收尾
+        Thread.sleep(TimeUnit.SECONDS.toMillis(drainSec));
+        stopping = true;
+        for (SimUser u : users) u.close();
+
+        String json = reportJson(loginSec);
+        Files.writeString(Paths.get(report), json, StandardCharsets.UTF_8);
+        System.out.print(json);
+        System.out.println("report written to " + report);
+    }
+
+    private void sendLoop(long start, long end, long offset, String padding) {
+        ThreadLocalRandom r = ThreadLocalRandom.current();
+        double gap = 1e9 * senders / msgRate;
+        for (long k = 0; ; k++) {
+            long planned = start + (long) ((k + offset / (double) senders) * gap);
+            if (planned >= end) return;
+            parkUntil(planned);
+            SimUser from = pickOnline(r);
+            SimUser to = pickOnline(r);
+            if (from == null || to == null || from == to) {
+                stats.noPeer.increment();
+                continue;
+            }
+            if (r.nextDouble() < hisMix) {
+                stats.hisSent.increment();
+                from.readHistory(to.name, hisPage);
+                continue;
+            }
+            if (from.chat(to.name, k, planned, padding) && planned >= measureFrom) stats.sentMeasured.increment();
+        }
+    }
+
+    private SimUser pickOnline(ThreadLocalRandom r) {
+        for (int i = 0; i < 4; i++) {
+            SimUser u = users[r.nextInt(users.length)];
+            if (u.online) return u;
+        }
+        return null;
+    }
+
+    private static void parkUntil(long nanoTime) {
+        long d;
+        while ((d = nanoTime - System.nanoTime()) > 0) LockSupport.parkNanos(d);
+    }
+
+    // 填充到大约 payload 字节（含前缀），ASCII 以免 UTF-8 长度和字符数不一致
+    private static String padding(int payload) {
+        int n = Math.max(0, payload - 32);
+        StringBuilder sb = new StringBuilder(n);
+        for (int i = 0; i < n; i++) sb.append((char) ('a' + i % 26));
+        return sb.toString();
+    }
+
+    private String reportJson(double loginSec) {
+        Stats s = stats;
+        long measured = s.deliveryLatency.count();
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n");
+        sb.append(String.format(Locale.ROOT,
+                "  \"config\": {\"host\": \"%s\", \"port\": %d, \"users\": %d, \"proto\": \"%s\", \"boot\": %b, \"login_rate\": %.1f, "
+                        + "\"msg_rate\": %.1f, \"payload\": %d, \"his_mix\": %.3f, \"his_page\": %d, \"friends\": %d, "
+                        + "\"senders\": %d, \"warmup_sec\": %d, \"duration_sec\": %d},%n",
+                host, port, userCount, binary ? "bin" : "json", boot, loginRate, msgRate, payload, hisMix, hisPage,
+                friends, senders, warmupSec, durationSec));
+        sb.append(String.format(Locale.ROOT, "  \"login\": {\"ok\": %d, \"failed\": %d, \"connect_errors\": %d, "
+                        + "\"retries\": %d, \"seconds\": %.2f, \"latency\": %s},%n",
+                s.loggedIn.sum(), s.loginFailures.sum(), s.connectErrors.sum(), s.loginRetries.sum(), loginSec,
+                s.loginLatency.toJson()));
+        sb.append(String.format(Locale.ROOT, "  \"chat\": {\"sent\": %d, \"sent_measured\": %d, \"delivered\": %d, "
+                        + "\"delivered_measured\": %d, \"lost_measured\": %d, \"offline_saved\": %d, "
+                        + "\"throughput_per_sec\": %.1f, \"latency\": %s},%n",
+                s.sent.sum(), s.sentMeasured.sum(), s.delivered.sum(), measured,
+                Math.max(0, s.sentMeasured.sum() - measured), s.offlineSaved.sum(),
+                durationSec > 0 ? measured / (double) durationSec : 0, s.deliveryLatency.toJson()));
+        sb.append(String.format(Locale.ROOT, "  \"history\": {\"sent\": %d, \"skipped_outstanding\": %d, \"latency\": %s},%n",
+                s.hisSent.sum(), s.hisSkipped.sum(), s.historyLatency.toJson()));
+        sb.append(String.format(Locale.ROOT, "  \"errors\": {\"disconnects\": %d, \"kicks\": %d, \"op_failures\": %d, "
+                        + "\"no_online_peer\": %d},%n",
+                s.disconnects.sum(), s.kicks.sum(), s.opFailures.sum(), s.noPeer.sum()));
+        sb.append(String.format(Locale.ROOT, "  \"frames_received\": %d,%n  \"bytes_sent\": %d%n}%n",
+                s.received.sum(), s.bytesOut.sum()));
+        return sb.toString();
+    }
+}
@@ -0,0 +1,223 @@
+package loadgen;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.locks.ReentrantLock;
+import protocol.BinaryCodec;
+import protocol.FrameReader;
+import protocol.Message;
+import protocol.SimpleJson;
+
+// 一个模拟用户：一条连接，收包在自己的虚拟线程里，发包由 LoadGen 的调度线程调用 send。
+// 协议流程和 ChatClientGUI 一致：LOGIN（可协商二进制帧）→ 服务端推 FRIEND_LIST_RES / STATUS_RES → CHAT、HIS_READ ...
+final class SimUser {
+    // 压测消息的 content 前缀：LG|发送序号|计划发送时刻(nanoTime)|填充
+    static final String TAG = "LG|";
+    private static final int MAX_RETRIES = 5;
+
+    final String name;
+    private final LoadGen gen;
+    private volatile Socket socket;
+    private OutputStream out;
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private volatile boolean binaryOut;
+    volatile boolean online;
+    volatile boolean dead;
+    private volatile long loginSentAt;
+    // 登录延迟记到好友和在线状态都到手为止：LOGIN_BOOT，或（不用 boot 时）服务端随后推的 STATUS_RES
+    private volatile boolean awaitingBootstrap;
+    // 还没收到回复的 HIS_READ 发出时刻，0 表示没有
+    private volatile long hisSentAt;
+    // 登录参数，被拒绝后重连用
+    private String host;
+    private int port;
+    private String password;
+    private boolean binary;
+    private int retries;
+    private volatile boolean retrying;
+
+    SimUser(String name, LoadGen gen) {
+        this.name = name;
+        this.gen = gen;
+    }
+
+    void connectAndLogin(String host, int port, String password, boolean binary) {
+        this.host = host;
+        this.port = port;
+        this.password = password;
+        this.binary = binary;
+        try {
+            Socket s = new Socket();
+            socket = s;
+            s.connect(new InetSocketAddress(host, port), 5000);
+            s.setTcpNoDelay(true);
+            out = new BufferedOutputStream(s.getOutputStream());
+            FrameReader in = new FrameReader(s.getInputStream());
+            Thread.ofVirtual().name("lg-" + name).start(() -> readLoop(in, s));
+            Message login = Message.of("LOGIN", name, "server", password);
+            // ping：会回 PONG，服务端据此对本连接做心跳和空闲回收
+            login.data = (binary ? "proto=bin;" : "") + (gen.boot ? "boot;" : "") + "ping";
+            loginSentAt = System.nanoTime();
+            awaitingBootstrap = true;
+            send(login);
+        } catch (IOException e) {
+            gen.stats.connectErrors.increment();
+            dead = true;
+        }
+    }
+
+    boolean send(Message m) {
+        if (dead) return false;
+        byte[] frame = binaryOut ? BinaryCodec.encode(m) : SimpleJson.toFrame(m);
+        writeLock.lock();
+        try {
+            out.write(frame);
+            out.flush();
+            gen.stats.bytesOut.add(frame.length);
+            return true;
+        } catch (IOException e) {
+            lost();
+            return false;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    boolean chat(String to, long seq, long plannedNanos, String padding) {
+        if (!send(Message.of("CHAT", name, to, TAG + seq + "|" + plannedNanos + "|" + padding))) return false;
+        gen.stats.sent.increment();
+        return true;
+    }
+
+    // 同一时刻最多一个未完成的 HIS_READ，避免慢回复越堆越多
+    void readHistory(String peer, int pageSize) {
+        if (hisSentAt != 0) {
+            gen.stats.hisSkipped.increment();
+            return;
+        }
+        Message m = Message.of("HIS_READ", name, "server", peer);
+        if (pageSize > 0) m.data = "limit=" + pageSize;
+        hisSentAt = System.nanoTime();
+        if (!send(m)) hisSentAt = 0;
+    }
+
+    void addFriend(String friend) {
+        send(Message.of("FRIEND_ADD", name, "server", friend));
+    }
+
+    private void readLoop(FrameReader in, Socket s) {
+        try {
+            Message m;
+            while ((m = in.read()) != null) onMessage(m);
+        } catch (IOException | RuntimeException e) {
+            // 连接断了或收到坏帧
+        }
+        // 重试时旧连接是自己关的，不算掉线
+        if (s == socket && !retrying) lost();
+    }
+
+    private void onMessage(Message m) {
+        long now = System.nanoTime();
+        switch (m.type) {
+            case "LOGIN_OK" -> {
+                if (BinaryCodec.hasOpt(m.data, "proto=bin")) binaryOut = true;
+                online = true;
+                gen.onLoggedIn(this);
+            }
+            case "LOGIN_FAIL" -> {
+                if (!retryLater(m.data)) {
+                    gen.stats.loginFailures.increment();
+                    close();
+                }
+            }
+            case "BUSY" -> {
+                if (!retryLater(m.data)) {
+                    gen.stats.connectErrors.increment();
+                    close();
+                }
+            }
+            case "CHAT" -> onChat(m.content, now);
+            case "CHAT_OFFLINE_SAVED" -> gen.stats.offlineSaved.increment();
+            case "HIS_READ_RES" -> {
+                long t = hisSentAt;
+                hisSentAt = 0;
+                if (t != 0) gen.stats.historyLatency.record(now - t);
+            }
+            case "LOGIN_BOOT", "STATUS_RES" -> {
+                if (awaitingBootstrap) {
+                    awaitingBootstrap = false;
+                    gen.stats.loginLatency.record(now - loginSentAt);
+                }
+            }
+            case "KICK" -> gen.stats.kicks.increment();
+            case "PING" -> send(Message.of("PONG", name, "server", ""));
+            case "FRIEND_OP_FAIL", "ROOM_OP_FAIL" -> gen.stats.opFailures.increment();
+            default -> {
+                // FRIEND_LIST_RES、STATUS_RES、STATUS_PUSH、SYS_NOTICE 等只计数
+            }
+        }
+        gen.stats.received.increment();
+    }
+
+    // 端到端延迟：计划发送时刻 -> 接收方收到 CHAT（同一进程内，nanoTime 可比）
+    private void onChat(String content, long now) {
+        if (content == null || !content.startsWith(TAG)) return;
+        int a = TAG.length();
+        int b = content.indexOf('|', a);
+        int c = b < 0 ? -1 : content.indexOf('|', b + 1);
+        if (c < 0) return;
+        long planned;
+        try {
+            planned = Long.parseLong(content, b + 1, c, 10);
+        } catch (NumberFormatException e) {
+            return;
+        }
+        gen.stats.delivered.increment();
+        if (planned >= gen.measureFrom()) gen.stats.deliveryLatency.record(now - planned);
+    }
+
+    // 服务端接入控制拒绝（BUSY 或带 retry_after 的 LOGIN_FAIL）：按提示的间隔重连，最多 MAX_RETRIES 次
+    private boolean retryLater(String data) {
+        String v = BinaryCodec.opt(data, "retry_after");
+        if (v == null || retries >= MAX_RETRIES || gen.stopping()) return false;
+        retries++;
+        long ms = Long.parseLong(v);
+        gen.stats.loginRetries.increment();
+        retrying = true;
+        closeSocket();
+        Thread.ofVirtual().name("lg-retry-" + name).start(() -> {
+            try {
+                Thread.sleep(ms);
+            } catch (InterruptedException e) {
+                return;
+            }
+            retrying = false;
+            connectAndLogin(host, port, password, binary);
+        });
+        return true;
+    }
+
+    private void lost() {
+        if (dead) return;
+        dead = true;
+        online = false;
+        // 不重连：压测期间掉线本身就是要暴露的问题
+        if (!gen.stopping()) gen.stats.disconnects.increment();
+        closeSocket();
+    }
+
+    void close() {
+        dead = true;
+        online = false;
+        closeSocket();
+    }
+
+    private void closeSocket() {
+        try {
+            if (socket != null) socket.close();
+        } catch (IOException ignore) {
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package protocol;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// 紧凑二进制帧（登录时协商，默认仍是 JSON 行）：
+//   [0x80|类型码 1B][varint 负载长度][负载]
+//   负载 = varint(zigzag timestamp) + from/to/content/data 各自 varint 长度 + UTF-8 字节
+// 类型码为 0（即首字节 0x80）时负载最前面多一个长度前缀的 type 字符串。
+// 首字节最高位为 1，不可能是 JSON 行的 '{'，读端据此逐帧区分两种格式。
+// 压缩帧（登录时协商 deflate）：[0xFF][varint 负载长度][varint 原帧长度][原帧 deflate 后的字节]，
+// 原帧是一个完整的普通二进制帧；类型码 127 因此保留，TYPES 不能长到这里。
+public class BinaryCodec {
+    // 单帧上限（阻塞读、NIO、解压都按它）；服务端的回复（记录分页等）要保证在这以内
+    public static final int MAX_FRAME = 1 << 20;
+    // 登录完成前的单帧上限：没认证的连接只该发 LOGIN 这种小帧
+    public static final int MAX_LOGIN_FRAME = 64 << 10;
+    public static final int COMPRESSED = 0xFF;
+
+    // 只能在末尾追加（客户端、服务端、集群链路共用这张表，旧版本靠序号互通）
+    private static final String[] TYPES = {
+            null, "LOGIN", "LOGIN_OK", "LOGIN_FAIL", "KICK", "CHAT", "CHAT_OFFLINE_SAVED",
+            "FRIEND_LIST", "FRIEND_LIST_RES", "FRIEND_ADD", "FRIEND_REMARK", "FRIEND_DEL",
+            "FRIEND_OP_OK", "FRIEND_OP_FAIL", "SYS_NOTICE", "STATUS_QUERY", "STATUS_RES", "STATUS_PUSH",
+            "HIS_LIST", "HIS_LIST_RES", "HIS_READ", "HIS_READ_RES", "HIS_DEL", "HIS_DEL_OK", "HIS_DEL_FAIL",
+            "HIS_SEARCH", "HIS_SEARCH_RES", "HIS_SYNC", "HIS_SYNC_RES",
+            "ROOM_CREATE", "ROOM_JOIN", "ROOM_LEAVE", "ROOM_LIST", "ROOM_LIST_RES", "ROOM_CHAT",
+            "ROOM_OP_OK", "ROOM_OP_FAIL", "ROOM_HIS", "ROOM_HIS_RES",
+            "STATS", "STATS_RES", "BUSY", "PING", "PONG", "LOGIN_BOOT"
+    };
+    private static final Map<String, Integer> CODES = new HashMap<>();
+    static {
+        for (int i = 1; i < TYPES.length; i++) CODES.put(TYPES[i], i);
+    }
+
+    private static final ThreadLocal<ByteSink> BYTES = ThreadLocal.withInitial(ByteSink::new);
+    private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(Deflater::new);
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(Inflater::new);
+
+    public static boolean isBinaryStart(int firstByte) {
+        return (firstByte & 0x80) != 0;
+    }
+
+    public static byte[] encode(Message m) {
+        ByteSink b = BYTES.get();
+        b.n = 0;
+        Integer code = m.type == null ? null : CODES.get(m.type);
+        if (code == null) field(b, m.type);
+        b.varint((m.timestamp << 1) ^ (m.timestamp >> 63));
+        field(b, m.from);
+        field(b, m.to);
+        field(b, m.content);
+        field(b, m.data);
+
+        int len = b.n;
+        byte[] out = new byte[1 + varintSize(len) + len];
+        out[0] = (byte) (0x80 | (code == null ? 0 : code));
+        int p = 1;
+        long v = len;
+        while ((v & ~0x7FL) != 0) {
+            out[p++] = (byte) ((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        out[p++] = (byte) v;
+        System.arraycopy(b.buf, 0, out, p, len);
+        if (b.buf.length > 64 * 1024) BYTES.remove();
+        return out;
+    }
+
+    // 把一个普通二进制帧压成压缩帧；压完不更小就原样返回
+    public static byte[] deflate(byte[] frame, int level) {
+        Deflater d = DEFLATER.get();
+        d.reset();
+        d.setLevel(level);
+        d.setInput(frame);
+        d.finish();
+        ByteSink b = BYTES.get();
+        b.n = 0;
+        b.varint(frame.length);
+        while (!d.finished()) {
+            b.ensure(Math.max(256, frame.length / 4));
+            b.n += d.deflate(b.buf, b.n, b.buf.length - b.n);
+        }
+        int len = b.n;
+        int total = 1 + varintSize(len) + len;
+        if (total >= frame.length) return frame;
+        byte[] out = new byte[total];
+        out[0] = (byte) COMPRESSED;
+        int p = 1;
+        long v = len;
+        while ((v & ~0x7FL) != 0) {
+            out[p++] = (byte) ((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        out[p++] = (byte) v;
+        System.arraycopy(b.buf, 0, out, p, len);
+        if (b.buf.length > 64 * 1024) BYTES.remove();
+        return out;
+    }
+
+    // 解压缩帧负载并解析里面的普通帧；原帧长度受 MAX_FRAME 限制，防止解压炸弹
+    private static Message inflate(byte[] b, int off, int len) throws IOException {
+        int[] pos = {off};
+        long raw = varint(b, pos, off + len);
+        if (raw < 2 || raw > MAX_FRAME) throw new IOException("bad compressed frame");
+        byte[] frame = new byte[(int) raw];
+        Inflater inf = INFLATER.get();
+        inf.reset();
+        inf.setInput(b, pos[0], off + len - pos[0]);
+        try {
+            int n = 0;
+            while (n < frame.length) {
+                int k = inf.inflate(frame, n, frame.length - n);
+                if (k == 0 && (inf.finished() || inf.needsInput())) break;
+                n += k;
+            }
+            if (n != frame.length || !inf.finished()) throw new IOException("bad compressed frame");
+        } catch (DataFormatException e) {
+            throw new IOException("bad compressed frame", e);
+        }
+        int[] hdr = new int[2];
+        if ((frame[0] & 0xFF) == COMPRESSED || !isBinaryStart(frame[0])
+                || !readHeader(frame, 0, frame.length, hdr) || hdr[0] + hdr[1] != frame.length) {
+            throw new IOException("bad compressed frame");
+        }
+        return decode(frame[0], frame, hdr[1], hdr[0]);
+    }
+
+    // 解析负载；typeByte 为帧首字节（压缩帧在这里解压）
+    public static Message decode(int typeByte, byte[] b, int off, int len) throws IOException {
+        if ((typeByte & 0xFF) == COMPRESSED) return inflate(b, off, len);
+        int[] pos = {off};
+        int end = off + len;
+        int code = typeByte & 0x7F;
+        Message m = new Message();
+        if (code == 0) m.type = field(b, pos, end);
+        else m.type = code < TYPES.length ? TYPES[code] : "";
+        long zz = varint(b, pos, end);
+        m.timestamp = (zz >>> 1) ^ -(zz & 1);
+        m.from = field(b, pos, end);
+        m.to = field(b, pos, end);
+        m.content = field(b, pos, end);
+        m.data = field(b, pos, end);
+        return m;
+    }
+
+    private static void field(ByteSink b, String s) {
+        b.varint(ByteSink.utf8Length(s));
+        b.utf8(s, false);
+    }
+
+    private static String field(byte[] b, int[] pos, int end) throws IOException {
+        int len = (int) varint(b, pos, end);
+        if (len < 0 || pos[0] + len > end) throw new IOException("bad binary frame");
+        String s = len == 0 ? "" : new String(b, pos[0], len, StandardCharsets.UTF_8);
+        pos[0] += len;
+        return s;
+    }
+
+    private static long varint(byte[] b, int[] pos, int end) throws IOException {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (pos[0] >= end) throw new IOException("bad binary frame");
+            int x = b[pos[0]++];
+            v |= (long) (x & 0x7F) << shift;
+            if ((x & 0x80) == 0) return v;
+        }
+        throw new IOException("bad binary frame");
+    }
+
+    // 从 b[off..end) 解析帧头；数据还不够返回 false。成功时 out[0] 为负载长度，out[1] 为帧头字节数
+    public static boolean readHeader(byte[] b, int off, int end, int[] out) throws IOException {
+        int len = 0;
+        int p = off + 1;
+        for (int shift = 0; ; shift += 7) {
+            if (p >= end) return false;
+            if (shift > 28) throw new IOException("bad binary frame");
+            int x = b[p++];
+            len |= (x & 0x7F) << shift;
+            if ((x & 0x80) == 0) break;
+        }
+        if (len < 0 || len > MAX_FRAME) throw new IOException("binary frame too large: " + len);
+        out[0] = len;
+        out[1] = p - off;
+        return true;
+    }
+
+    private static int varintSize(int v) {
+        int n = 1;
+        while ((v & ~0x7F) != 0) {
+            n++;
+            v >>>= 7;
+        }
+        return n;
+    }
+
+    // 协商选项："proto=bin;..." 里是否带某一项
+    public static boolean hasOpt(String data, String opt) {
+        if (data == null || data.isEmpty()) return false;
+        for (String p : data.split(";")) {
+            if (p.trim().equals(opt)) return true;
+        }
+        return false;
+    }
+
+    // "k1=v1;k2=v2" 里取某一项的值，没有返回 null
+    public static String opt(String data, String key) {
+        if (data == null || data.isEmpty()) return null;
+        for (String p : data.split(";")) {
+            int eq = p.indexOf('=');
+            if (eq > 0 && p.substring(0, eq).trim().equals(key)) return p.substring(eq + 1).trim();
+        }
+        return null;
+    }
+}
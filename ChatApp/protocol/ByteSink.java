@@ -0,0 +1,95 @@
+package protocol;
+import java.util.Arrays;
+
+// 线程复用的字节输出缓冲，SimpleJson.toFrame 与 BinaryCodec 共用
+final class ByteSink {
+    byte[] buf = new byte[512];
+    int n;
+
+    void ensure(int more) {
+        if (n + more > buf.length) buf = Arrays.copyOf(buf, Math.max(buf.length * 2, n + more));
+    }
+
+    void ascii(String s) {
+        ensure(s.length());
+        for (int i = 0; i < s.length(); i++) buf[n++] = (byte) s.charAt(i);
+    }
+
+    void put(int b) {
+        ensure(1);
+        buf[n++] = (byte) b;
+    }
+
+    // 十进制数字，不经过 Long.toString
+    void number(long v) {
+        if (v == Long.MIN_VALUE) { ascii(Long.toString(v)); return; }
+        ensure(20);
+        if (v < 0) { buf[n++] = '-'; v = -v; }
+        int digits = 1;
+        for (long t = v; t >= 10; t /= 10) digits++;
+        for (int k = n + digits - 1; k >= n; k--) {
+            buf[k] = (byte) ('0' + (v % 10));
+            v /= 10;
+        }
+        n += digits;
+    }
+
+    // 无符号 LEB128 变长整数
+    void varint(long v) {
+        ensure(10);
+        while ((v & ~0x7FL) != 0) {
+            buf[n++] = (byte) ((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        buf[n++] = (byte) v;
+    }
+
+    // UTF-8 编码；json=true 时顺带做 JSON 转义（\ " \n \r）
+    void utf8(String s, boolean json) {
+        if (s == null) return;
+        ensure(s.length() * 3); // 每个 char 最多 3 字节（代理对 2 个 char 共 4 字节）
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                if (json && (c == '\\' || c == '"' || c == '\n' || c == '\r')) {
+                    buf[n++] = '\\';
+                    buf[n++] = (byte) (c == '\n' ? 'n' : c == '\r' ? 'r' : c);
+                } else {
+                    buf[n++] = (byte) c;
+                }
+            } else if (c < 0x800) {
+                buf[n++] = (byte) (0xC0 | (c >> 6));
+                buf[n++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                buf[n++] = (byte) (0xF0 | (cp >> 18));
+                buf[n++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                buf[n++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                buf[n++] = (byte) (0x80 | (cp & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                buf[n++] = '?'; // 落单的代理字符，与 String.getBytes(UTF_8) 的处理一致
+            } else {
+                buf[n++] = (byte) (0xE0 | (c >> 12));
+                buf[n++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buf[n++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+    }
+
+    // 不转义时的 UTF-8 字节数
+    static int utf8Length(String s) {
+        if (s == null) return 0;
+        int len = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) len++;
+            else if (c < 0x800) len += 2;
+            else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                    && Character.isLowSurrogate(s.charAt(i + 1))) { len += 4; i++; }
+            else if (Character.isSurrogate(c)) len++;
+            else len += 3;
+        }
+        return len;
+    }
+}
@@ -0,0 +1,75 @@
+package protocol;
+import java.io.*;
+import java.util.Arrays;
+
+// 阻塞流上的读帧：按首字节区分 JSON 行与二进制帧，两种格式可以在同一连接上混用。
+// 缓冲随实际收到的字节增长，不按帧头里声称的长度一次分配
+public class FrameReader {
+    private final InputStream in;
+    private byte[] buf = new byte[1024];
+    private volatile int maxFrame = BinaryCodec.MAX_FRAME;
+
+    public FrameReader(InputStream in) {
+        this.in = new BufferedInputStream(in, 8192);
+    }
+
+    // 单帧上限，超过即抛 IOException（服务端登录前用 MAX_LOGIN_FRAME，登录后放开到 MAX_FRAME）
+    public void setMaxFrame(int n) {
+        this.maxFrame = n;
+    }
+
+    // 读下一帧，流结束返回 null
+    public Message read() throws IOException {
+        int c;
+        do {
+            c = in.read();
+        } while (c == '\n' || c == '\r');
+        if (c < 0) return null;
+        if (BinaryCodec.isBinaryStart(c)) return readBinary(c);
+        return readLine(c);
+    }
+
+    private Message readLine(int first) throws IOException {
+        int n = 0;
+        int c = first;
+        while (c >= 0 && c != '\n') {
+            if (n == buf.length) {
+                if (n >= maxFrame) throw new IOException("line too long");
+                buf = Arrays.copyOf(buf, n * 2);
+            }
+            buf[n++] = (byte) c;
+            c = in.read();
+        }
+        if (n > 0 && buf[n - 1] == '\r') n--;
+        Message m = SimpleJson.fromJson(buf, 0, n);
+        shrink();
+        return m;
+    }
+
+    private Message readBinary(int typeByte) throws IOException {
+        int len = 0;
+        for (int shift = 0; ; shift += 7) {
+            int x = in.read();
+            if (x < 0) throw new EOFException();
+            if (shift > 28) throw new IOException("bad binary frame");
+            len |= (x & 0x7F) << shift;
+            if ((x & 0x80) == 0) break;
+        }
+        if (len < 0 || len > maxFrame) throw new IOException("binary frame too large: " + len);
+        int n = 0;
+        while (n < len) {
+            if (n == buf.length) buf = Arrays.copyOf(buf, Math.min(len, buf.length * 2));
+            int r = in.read(buf, n, Math.min(buf.length, len) - n);
+            if (r < 0) throw new EOFException();
+            n += r;
+        }
+        Message m = BinaryCodec.decode(typeByte, buf, 0, len);
+        shrink();
+        return m;
+    }
+
+    // 偶尔的大帧过后不长期占着大缓冲
+    private void shrink() {
+        if (buf.length > 64 * 1024) buf = new byte[1024];
+    }
+}
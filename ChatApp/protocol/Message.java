@@ -1,4 +1,4 @@
-package server;
+package protocol;
 public class Message {
     public String type;     // LOGIN, LOGIN_OK, LOGIN_FAIL, CHAT, FRIEND_LIST, FRIEND_ADD, ...
     public String from;
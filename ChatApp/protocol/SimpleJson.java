@@ -0,0 +1,310 @@
+package protocol;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// 本项目的扁平 JSON：{"type":"..","from":"..","to":"..","content":"..","data":"..","timestamp":123}
+// 单遍编解码：写直接写进线程复用的缓冲，读一遍扫描直接填 Message 字段，不建中间 Map/List。
+// 写出格式与旧实现逐字节一致（只转义 \ " \n \r），读入支持完整的 JSON 字符串转义。
+public class SimpleJson {
+    private static final int F_TYPE = 0, F_FROM = 1, F_TO = 2, F_CONTENT = 3, F_DATA = 4, F_TIMESTAMP = 5, F_OTHER = -1;
+    private static final int MAX_KEEP = 64 * 1024; // 复用缓冲超过这个大小就不再留着
+
+    private static final ThreadLocal<StringBuilder> TEXT = ThreadLocal.withInitial(() -> new StringBuilder(256));
+    private static final ThreadLocal<StringBuilder> SCRATCH = ThreadLocal.withInitial(() -> new StringBuilder(64));
+    private static final ThreadLocal<ByteSink> BYTES = ThreadLocal.withInitial(ByteSink::new);
+
+    // 将 Message -> JSON(单行)
+    public static String toJson(Message m) {
+        StringBuilder sb = TEXT.get();
+        sb.setLength(0);
+        writeTo(m, sb);
+        String s = sb.toString();
+        if (sb.capacity() > MAX_KEEP) TEXT.remove();
+        return s;
+    }
+
+    public static void writeTo(Message m, StringBuilder sb) {
+        sb.append("{\"type\":\"");
+        escape(sb, m.type);
+        sb.append("\",\"from\":\"");
+        escape(sb, m.from);
+        sb.append("\",\"to\":\"");
+        escape(sb, m.to);
+        sb.append("\",\"content\":\"");
+        escape(sb, m.content);
+        sb.append("\",\"data\":\"");
+        escape(sb, m.data);
+        sb.append("\",\"timestamp\":").append(m.timestamp).append('}');
+    }
+
+    // 将 Message -> UTF-8 帧（含结尾 \n），直接编码进复用缓冲，只分配结果数组
+    public static byte[] toFrame(Message m) {
+        ByteSink b = BYTES.get();
+        b.n = 0;
+        b.ascii("{\"type\":\"");
+        b.utf8(m.type, true);
+        b.ascii("\",\"from\":\"");
+        b.utf8(m.from, true);
+        b.ascii("\",\"to\":\"");
+        b.utf8(m.to, true);
+        b.ascii("\",\"content\":\"");
+        b.utf8(m.content, true);
+        b.ascii("\",\"data\":\"");
+        b.utf8(m.data, true);
+        b.ascii("\",\"timestamp\":");
+        b.number(m.timestamp);
+        b.ascii("}\n");
+        byte[] out = Arrays.copyOf(b.buf, b.n);
+        if (b.buf.length > MAX_KEEP) BYTES.remove();
+        return out;
+    }
+
+    // JSON(单行) -> Message（仅解析本项目字段，未知字段跳过）
+    public static Message fromJson(String s) {
+        Message m = empty();
+        int n = s.length();
+        int i = skipWs(s, 0, n);
+        if (i < n && s.charAt(i) == '{') i++;
+        while (true) {
+            i = skipWs(s, i, n);
+            if (i >= n || s.charAt(i) == '}') break;
+            if (s.charAt(i) == ',') { i++; continue; }
+            if (s.charAt(i) != '"') break; // 格式不对，能解析多少算多少
+
+            int ks = i + 1;
+            int ke = ks;
+            while (ke < n && s.charAt(ke) != '"') ke++;
+            int field = fieldOf(s, ks, ke);
+            i = skipWs(s, ke + 1, n);
+            if (i < n && s.charAt(i) == ':') i++;
+            i = skipWs(s, i, n);
+            if (i >= n) break;
+
+            if (s.charAt(i) == '"') {
+                int vs = i + 1;
+                int ve = vs;
+                boolean esc = false;
+                while (ve < n && s.charAt(ve) != '"') {
+                    if (s.charAt(ve) == '\\') { esc = true; ve++; }
+                    ve++;
+                }
+                if (ve > n) ve = n;
+                if (field != F_OTHER) {
+                    String v = esc ? unescape(s, vs, ve) : s.substring(vs, ve);
+                    set(m, field, v);
+                }
+                i = ve + 1;
+            } else {
+                int ve = i;
+                while (ve < n && s.charAt(ve) != ',' && s.charAt(ve) != '}') ve++;
+                if (field == F_TIMESTAMP) m.timestamp = parseLong(s, i, ve);
+                i = ve;
+            }
+        }
+        return m;
+    }
+
+    // UTF-8 字节 -> Message，NIO 模式直接在读缓冲上解析，不先转成整行 String
+    public static Message fromJson(byte[] b, int off, int len) {
+        Message m = empty();
+        int n = off + len;
+        int i = skipWs(b, off, n);
+        if (i < n && b[i] == '{') i++;
+        while (true) {
+            i = skipWs(b, i, n);
+            if (i >= n || b[i] == '}') break;
+            if (b[i] == ',') { i++; continue; }
+            if (b[i] != '"') break;
+
+            int ks = i + 1;
+            int ke = ks;
+            while (ke < n && b[ke] != '"') ke++;
+            int field = fieldOf(b, ks, ke);
+            i = skipWs(b, ke + 1, n);
+            if (i < n && b[i] == ':') i++;
+            i = skipWs(b, i, n);
+            if (i >= n) break;
+
+            if (b[i] == '"') {
+                // UTF-8 多字节序列里不会出现 '"' 和 '\\'，可以直接按字节找结束引号
+                int vs = i + 1;
+                int ve = vs;
+                boolean esc = false;
+                while (ve < n && b[ve] != '"') {
+                    if (b[ve] == '\\') { esc = true; ve++; }
+                    ve++;
+                }
+                if (ve > n) ve = n;
+                if (field != F_OTHER) {
+                    String raw = new String(b, vs, ve - vs, StandardCharsets.UTF_8);
+                    set(m, field, esc ? unescape(raw, 0, raw.length()) : raw);
+                }
+                i = ve + 1;
+            } else {
+                int ve = i;
+                while (ve < n && b[ve] != ',' && b[ve] != '}') ve++;
+                if (field == F_TIMESTAMP) m.timestamp = parseLong(b, i, ve);
+                i = ve;
+            }
+        }
+        return m;
+    }
+
+    // --------- helpers ----------
+    private static Message empty() {
+        Message m = new Message();
+        m.type = "";
+        m.from = "";
+        m.to = "";
+        m.content = "";
+        m.data = "";
+        m.timestamp = 0;
+        return m;
+    }
+
+    private static void set(Message m, int field, String v) {
+        switch (field) {
+            case F_TYPE -> m.type = v;
+            case F_FROM -> m.from = v;
+            case F_TO -> m.to = v;
+            case F_CONTENT -> m.content = v;
+            case F_DATA -> m.data = v;
+            case F_TIMESTAMP -> m.timestamp = parseLong(v, 0, v.length());
+            default -> { }
+        }
+    }
+
+    private static int fieldOf(String s, int ks, int ke) {
+        return switch (ke - ks) {
+            case 2 -> s.regionMatches(ks, "to", 0, 2) ? F_TO : F_OTHER;
+            case 4 -> s.regionMatches(ks, "type", 0, 4) ? F_TYPE
+                    : s.regionMatches(ks, "from", 0, 4) ? F_FROM
+                    : s.regionMatches(ks, "data", 0, 4) ? F_DATA : F_OTHER;
+            case 7 -> s.regionMatches(ks, "content", 0, 7) ? F_CONTENT : F_OTHER;
+            case 9 -> s.regionMatches(ks, "timestamp", 0, 9) ? F_TIMESTAMP : F_OTHER;
+            default -> F_OTHER;
+        };
+    }
+
+    private static int fieldOf(byte[] b, int ks, int ke) {
+        return switch (ke - ks) {
+            case 2 -> is(b, ks, "to") ? F_TO : F_OTHER;
+            case 4 -> is(b, ks, "type") ? F_TYPE
+                    : is(b, ks, "from") ? F_FROM
+                    : is(b, ks, "data") ? F_DATA : F_OTHER;
+            case 7 -> is(b, ks, "content") ? F_CONTENT : F_OTHER;
+            case 9 -> is(b, ks, "timestamp") ? F_TIMESTAMP : F_OTHER;
+            default -> F_OTHER;
+        };
+    }
+
+    private static boolean is(byte[] b, int off, String key) {
+        for (int i = 0; i < key.length(); i++) {
+            if (b[off + i] != key.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private static int skipWs(String s, int i, int n) {
+        while (i < n && s.charAt(i) <= ' ') i++;
+        return i;
+    }
+
+    private static int skipWs(byte[] b, int i, int n) {
+        while (i < n && b[i] <= ' ' && b[i] >= 0) i++;
+        return i;
+    }
+
+    // 解析失败按 0 处理（与旧实现一致）
+    private static long parseLong(CharSequence s, int i, int e) {
+        while (i < e && s.charAt(i) <= ' ') i++;
+        while (e > i && s.charAt(e - 1) <= ' ') e--;
+        if (i >= e) return 0;
+        boolean neg = s.charAt(i) == '-';
+        if (neg) i++;
+        if (i >= e) return 0;
+        long v = 0;
+        for (; i < e; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') return 0;
+            v = v * 10 + (c - '0');
+        }
+        return neg ? -v : v;
+    }
+
+    private static long parseLong(byte[] b, int i, int e) {
+        while (i < e && b[i] <= ' ' && b[i] >= 0) i++;
+        while (e > i && b[e - 1] <= ' ' && b[e - 1] >= 0) e--;
+        if (i >= e) return 0;
+        boolean neg = b[i] == '-';
+        if (neg) i++;
+        if (i >= e) return 0;
+        long v = 0;
+        for (; i < e; i++) {
+            int c = b[i];
+            if (c < '0' || c > '9') return 0;
+            v = v * 10 + (c - '0');
+        }
+        return neg ? -v : v;
+    }
+
+    private static void escape(StringBuilder sb, String s) {
+        if (s == null) return;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '\\' -> sb.append("\\\\");
+                case '"' -> sb.append("\\\"");
+                case '\n' -> sb.append("\\n");
+                case '\r' -> sb.append("\\r");
+                default -> sb.append(c);
+            }
+        }
+    }
+
+    // 支持 \" \\ \/ \b \f \n \r \t \\uXXXX；不认识的转义保留原字符
+    private static String unescape(String s, int from, int to) {
+        StringBuilder sb = SCRATCH.get();
+        sb.setLength(0);
+        for (int i = from; i < to; i++) {
+            char c = s.charAt(i);
+            if (c != '\\' || i + 1 >= to) {
+                sb.append(c);
+                continue;
+            }
+            char e = s.charAt(++i);
+            switch (e) {
+                case 'n' -> sb.append('\n');
+                case 'r' -> sb.append('\r');
+                case 't' -> sb.append('\t');
+                case 'b' -> sb.append('\b');
+                case 'f' -> sb.append('\f');
+                case 'u' -> {
+                    if (i + 4 < to) {
+                        int cp = hex4(s, i + 1);
+                        if (cp >= 0) {
+                            sb.append((char) cp);
+                            i += 4;
+                            break;
+                        }
+                    }
+                    sb.append('\\').append('u');
+                }
+                default -> sb.append(e); // \" \\ \/ 以及其它
+            }
+        }
+        String out = sb.toString();
+        if (sb.capacity() > MAX_KEEP) SCRATCH.remove();
+        return out;
+    }
+
+    private static int hex4(String s, int i) {
+        int v = 0;
+        for (int k = 0; k < 4; k++) {
+            int d = Character.digit(s.charAt(i + k), 16);
+            if (d < 0) return -1;
+            v = (v << 4) | d;
+        }
+        return v;
+    }
+}
@@ -0,0 +1,163 @@
+package server;
+import java.net.InetAddress;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import protocol.Message;
+
+// 接入控制：重启后大批客户端同时重连时，让服务器按上限稳定地拒绝多出来的部分，而不是全部接下来一起拖垮。
+//   - 总连接数上限、未完成登录的连接数上限（登录要算 PBKDF2，最贵）
+//   - 每个来源 IP 两个令牌桶：接入速率、LOGIN 速率（本机地址不限，压测/运维用）
+//   - 接入后 loginTimeoutSec 秒内没登录成功的连接直接断开，不一直占着名额
+// 被拒绝时告诉客户端多久后重试（retry_after=毫秒），全局上限的提示带随机抖动，避免大家同一时刻再涌回来。
+public class AdmissionControl {
+    // 一个令牌桶；只在 ConcurrentHashMap.compute 里访问，不另加锁
+    private static final class Bucket {
+        double tokens;
+        long last;
+
+        Bucket(double burst, long now) {
+            this.tokens = burst;
+            this.last = now;
+        }
+    }
+
+    volatile int maxConnections = 100_000;
+    volatile int maxUnauthed = 2_000;
+    volatile double ipConnRate = 20;   // 每个 IP 每秒新连接数，0 表示不限
+    volatile double ipConnBurst = 100;
+    volatile double ipLoginRate = 10;  // 每个 IP 每秒 LOGIN 次数，0 表示不限
+    volatile double ipLoginBurst = 50;
+    volatile long retryAfterMs = 2000; // 全局上限时的基础重试间隔
+    volatile long loginTimeoutSec = 30;
+
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicInteger unauthed = new AtomicInteger();
+    private final ConcurrentHashMap<InetAddress, Bucket> connBuckets = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<InetAddress, Bucket> loginBuckets = new ConcurrentHashMap<>();
+    private final TimingWheel timers;
+
+    private final LongAdder refusedFull = new LongAdder();
+    private final LongAdder refusedUnauthed = new LongAdder();
+    private final LongAdder refusedIp = new LongAdder();
+    private final LongAdder refusedLogin = new LongAdder();
+    private final LongAdder loginTimeouts = new LongAdder();
+
+    // 登录超时、清理 IP 表都挂在 timers 上
+    public AdmissionControl(TimingWheel timers) {
+        this.timers = timers;
+        timers.schedule(this::sweep, 60, TimeUnit.SECONDS);
+    }
+
+    // 接入时调用：放行返回 0 并占一个名额，拒绝返回建议的重试间隔（毫秒）
+    public long tryAdmit(InetAddress ip) {
+        if (connections.incrementAndGet() > maxConnections) {
+            connections.decrementAndGet();
+            refusedFull.increment();
+            return jitter();
+        }
+        if (unauthed.incrementAndGet() > maxUnauthed) {
+            unauthed.decrementAndGet();
+            connections.decrementAndGet();
+            refusedUnauthed.increment();
+            return jitter();
+        }
+        long wait = take(connBuckets, ip, ipConnRate, ipConnBurst);
+        if (wait > 0) {
+            unauthed.decrementAndGet();
+            connections.decrementAndGet();
+            refusedIp.increment();
+        }
+        return wait;
+    }
+
+    // 突发量按 5 秒的量给
+    public void setIpConnRate(double perSec) {
+        ipConnRate = perSec;
+        ipConnBurst = Math.max(1, perSec * 5);
+    }
+
+    public void setIpLoginRate(double perSec) {
+        ipLoginRate = perSec;
+        ipLoginBurst = Math.max(1, perSec * 5);
+    }
+
+    // 放行后由连接调用：登录超时检查
+    void watch(ClientHandler h) {
+        long sec = loginTimeoutSec;
+        if (sec <= 0) return;
+        timers.schedule(() -> {
+            if (h.getUsername() == null && !h.isClosed()) {
+                loginTimeouts.increment();
+                h.close();
+            }
+        }, sec, TimeUnit.SECONDS);
+    }
+
+    // 收到 LOGIN 时调用：放行返回 0，否则返回建议的重试间隔（毫秒）
+    public long tryLogin(InetAddress ip) {
+        long wait = take(loginBuckets, ip, ipLoginRate, ipLoginBurst);
+        if (wait > 0) refusedLogin.increment();
+        return wait;
+    }
+
+    // 连接第一次登录成功
+    void authed() {
+        unauthed.decrementAndGet();
+    }
+
+    // 连接断开；wasAuthed 为 false 时同时归还未登录名额
+    void released(boolean wasAuthed) {
+        if (!wasAuthed) unauthed.decrementAndGet();
+        connections.decrementAndGet();
+    }
+
+    public int connections() {
+        return connections.get();
+    }
+
+    public int unauthed() {
+        return unauthed.get();
+    }
+
+    // 拒绝接入时发给客户端的一帧（此时还没协商二进制，用 JSON）
+    public static Message busy(long retryMs) {
+        Message m = Message.of("BUSY", "server", "", "服务器繁忙，请 " + (retryMs + 999) / 1000 + " 秒后重试");
+        m.data = "retry_after=" + retryMs;
+        return m;
+    }
+
+    public String report() {
+        return String.format("admission conns=%d unauthed=%d refused_full=%d refused_unauthed=%d refused_ip=%d"
+                        + " refused_login=%d login_timeouts=%d%n", connections.get(), unauthed.get(), refusedFull.sum(),
+                refusedUnauthed.sum(), refusedIp.sum(), refusedLogin.sum(), loginTimeouts.sum());
+    }
+
+    private long jitter() {
+        long base = retryAfterMs;
+        return base + ThreadLocalRandom.current().nextLong(base + 1);
+    }
+
+    private static long take(ConcurrentHashMap<InetAddress, Bucket> buckets, InetAddress ip, double rate, double burst) {
+        if (rate <= 0 || ip == null || ip.isLoopbackAddress()) return 0;
+        long now = System.nanoTime();
+        long[] wait = new long[1];
+        buckets.compute(ip, (k, old) -> {
+            Bucket x = old != null ? old : new Bucket(burst, now);
+            x.tokens = Math.min(burst, x.tokens + (now - x.last) / 1e9 * rate);
+            x.last = now;
+            if (x.tokens >= 1) x.tokens -= 1;
+            else wait[0] = (long) Math.ceil((1 - x.tokens) / rate * 1000);
+            return x;
+        });
+        return wait[0];
+    }
+
+    // 定期清掉一分钟没动过的桶，IP 表不会无限长
+    private void sweep() {
+        long idle = System.nanoTime() - TimeUnit.MINUTES.toNanos(1);
+        connBuckets.values().removeIf(b -> b.last < idle);
+        loginBuckets.values().removeIf(b -> b.last < idle);
+        timers.schedule(this::sweep, 60, TimeUnit.SECONDS);
+    }
+}
@@ -1,69 +1,469 @@
 package server;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import javax.management.ObjectName;
+import protocol.Message;
+import protocol.SimpleJson;
 
 public class ChatServer {
     public final ConcurrentHashMap<String, ClientHandler> online = new ConcurrentHashMap<>();
-    public final FriendStore friendStore = new FriendStore("friends_db.txt");
-    public final HistoryStore historyStore = new HistoryStore();
+    // 运行指标，STATS 请求 / JMX（server:type=ChatMetrics）/ --metrics-file 定时落盘
+    public final Metrics metrics = new Metrics();
+    public final UserStore users;
+    public final FriendStore friendStore;
+    public final HistoryStore historyStore;
+    public final RoomStore roomStore;
+    // 粗粒度定时器（登录超时、心跳），每连接一个也只是 O(1)
+    final TimingWheel timers = new TimingWheel(100, TimeUnit.MILLISECONDS, 512, "timers");
+    // 接入控制：连接数、未登录连接数、每 IP 速率上限
+    public final AdmissionControl admission = new AdmissionControl(timers);
+    // 心跳和空闲连接回收
+    final Heartbeat heartbeat = new Heartbeat(this, timers);
+    // listen 队列长度（--backlog）
+    int backlog = 1024;
+    // 登录/顶号/下线按账号原子完成，状态推送在锁外按顺序进行
+    private final SessionRegistry sessions = new SessionRegistry(online, new SessionRegistry.PresenceSink() {
+        @Override
+        public void publish(String user, String status, boolean lost) {
+            ClusterNode c = cluster;
+            if (c == null || c.isDataNode()) broadcastStatus(user, status);
+            // 好友名单只在数据节点上：本节点会话引起的变化交给它推；其它节点失联由数据节点自己发现、自己推
+            else if (!lost) c.publish(user, status);
+        }
+
+        @Override
+        public void localChanged(String user, boolean on, long gen) {
+            ClusterNode c = cluster;
+            if (c != null) c.announce(user, on, gen);
+        }
+    });
+    // 出站帧压缩（客户端登录时要求才用），--deflate=off 时为 null
+    FrameCompressor compressor = new FrameCompressor(512, 1);
+    // 集群模式下的节点间路由，单机时为 null
+    volatile ClusterNode cluster;
+    // 每连接发送队列容量与溢出策略
+    int outQueueCapacity = 1024;
+    OutboundQueue.Overflow outQueueOverflow = OutboundQueue.Overflow.DROP_OLDEST;
+    // 状态推送合并窗口（毫秒），0 表示不合并
+    long presenceWindowMs = 100;
+    PresenceBatcher presence;
+    // 阻塞模式下连接读/写线程的执行器（平台线程或虚拟线程）
+    private Executor connExec;
+    // 能发 STATS 的账号（--admins=a,b），默认没有
+    volatile Set<String> admins = Set.of();
+
+    // 数据目录上的独占锁，进程退出才放
+    private final FileLock dataLock;
+    public final Path dataDir;
+
+    public ChatServer() {
+        this(Paths.get(""));
+    }
+
+    // 数据文件（users.dat/idx、friends_db.txt、rooms_db.txt、history/）放在 dataDir 下；默认是当前目录。
+    // 一个数据目录只能给一个进程用：先锁 dataDir/server.lock，锁不上直接失败。
+    // 集群模式下只有数据节点的目录里有这些数据，其它节点的目录只占着锁
+    public ChatServer(Path dataDir) {
+        this.dataDir = dataDir;
+        this.dataLock = lockDataDir(dataDir);
+        users = new UserStore(dataDir, metrics);
+        friendStore = new FriendStore(dataDir.resolve("friends_db.txt").toString(), metrics);
+        historyStore = new HistoryStore(dataDir.resolve("history"), metrics);
+        roomStore = new RoomStore(dataDir.resolve("rooms_db.txt").toString());
+        roomStore.setOnDissolve(historyStore::deleteRoomHistory);
+        metrics.setOnline(online::size);
+        metrics.setExtraReport(this::extraReport);
+    }
+
+    private static FileLock lockDataDir(Path dir) {
+        Path f = dir.resolve("server.lock");
+        FileLock l;
+        try {
+            FileChannel ch = FileChannel.open(f, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            try {
+                l = ch.tryLock();
+            } catch (OverlappingFileLockException e) {
+                l = null;
+            }
+            if (l == null) {
+                ch.close();
+                throw new IllegalStateException("数据目录已被另一个服务进程使用: " + dir.toAbsolutePath());
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("无法锁定数据目录 " + dir.toAbsolutePath() + ": " + e.getMessage());
+        }
+        return l;
+    }
+
+    public boolean isAdmin(String user) {
+        return user != null && admins.contains(user);
+    }
+
+    // 指标报告末尾：各连接发送队列积压（取报告时现算）、状态推送合并、压缩统计
+    private String extraReport() {
+        long queued = 0, maxQueued = 0, dropped = 0;
+        for (ClientHandler h : online.values()) {
+            int q = h.queued();
+            queued += q;
+            maxQueued = Math.max(maxQueued, q);
+            dropped += h.dropped();
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("out_queue total=%d max=%d dropped=%d%n", queued, maxQueued, dropped));
+        sb.append(String.format("sessions online=%d presence_tracked=%d%n", online.size(), sessions.tracked()));
+        sb.append(String.format("presence suppressed=%d coalesced=%d pushed=%d%n", metrics.presenceSuppressed.sum(),
+                metrics.presenceCoalesced.sum(), metrics.presencePushed.sum()));
+        sb.append(admission.report());
+        sb.append(heartbeat.report());
+        FrameCompressor c = compressor;
+        if (c != null) sb.append("Compression:\n").append(c.report());
+        return sb.toString();
+    }
 
     public boolean isAuthed(ClientHandler h) {
-        return h != null && h.getUsername() != null && online.get(h.getUsername()) == h;
+        return h != null && (h.isProxy() || sessions.isCurrent(h.getUsername(), h));
+    }
+
+    // 登录校验：单机或本节点就是数据节点时查本地账号，否则请数据节点校验
+    CompletableFuture<Boolean> verifyLogin(String user, String password) {
+        ClusterNode c = cluster;
+        return c == null || c.isDataNode() ? users.verifyAsync(user, password) : c.verify(user, password);
+    }
+
+    SessionRegistry sessions() {
+        return sessions;
+    }
+
+    // 新登录的代数（见 ClusterNode.nextGen），单机时为 0
+    long nextLoginGen(String user) {
+        ClusterNode c = cluster;
+        return c == null ? 0 : c.nextGen(user, online.get(user));
+    }
+
+    // 本节点或（集群模式下）其它节点上在线
+    public boolean isOnline(String user) {
+        if (online.containsKey(user)) return true;
+        ClusterNode c = cluster;
+        return c != null && c.isOnlineElsewhere(user);
+    }
+
+    // 发给 user：在本节点直接发，在其它节点经链路转发；都不在返回 false
+    public boolean deliver(String user, Message m) {
+        ClientHandler h = online.get(user);
+        if (h != null) {
+            h.send(m);
+            return true;
+        }
+        ClusterNode c = cluster;
+        return c != null && c.forward(user, m);
+    }
+
+    // 群消息发给其他在线成员：整条消息只编码一次，本节点各连接共享同一份字节。
+    // 集群模式下只在数据节点上执行：在其它节点上的成员按节点分组，各发一帧带上名单
+    public void fanOutRoom(String room, Message m) {
+        SharedFrame f = new SharedFrame(m);
+        ClusterNode c = cluster;
+        Map<String, List<String>> remote = null;
+        for (String u : roomStore.membersOf(room)) {
+            if (u.equals(m.from)) continue;
+            ClientHandler h = online.get(u);
+            if (h != null) {
+                h.send(f);
+            } else if (c != null) {
+                String node = c.nodeOf(u);
+                if (node == null) continue;
+                if (remote == null) remote = new HashMap<>();
+                remote.computeIfAbsent(node, k -> new ArrayList<>()).add(u);
+            }
+        }
+        if (remote != null) c.forwardRoom(m, remote);
     }
 
-    public synchronized void onLoginSuccess(ClientHandler h) {
-        // 同账号重复登录：踢掉旧连接
+    // 其它节点按它的名单发来的群消息/状态推送：只发给名单里在本节点上的人
+    void deliverRoomLocal(Message m, Collection<String> recipients) {
+        SharedFrame f = new SharedFrame(m);
+        for (String u : recipients) {
+            ClientHandler h = online.get(u);
+            if (h != null) h.send(f);
+        }
+    }
+
+    void pushStatusLocal(String user, String status, Collection<String> recipients) {
+        for (String sub : recipients) {
+            if (online.containsKey(sub)) presence.enqueue(sub, user, status);
+        }
+    }
+
+    public void onLoginSuccess(ClientHandler h) {
         String u = h.getUsername();
-        ClientHandler old = online.put(u, h);
+        ClientHandler old = sessions.login(u, h);
+        // 同账号重复登录：踢掉旧连接（它之后自己的下线只会移除它自己，不会动新连接）
         if (old != null && old != h) {
             old.send(Message.of("KICK", "server", u, "账号在别处登录，你已下线"));
+            metrics.kicks.increment();
             kick(old);
         }
-        // 广播状态变化（可选：只通知好友；这里简化为不做好友过滤）
-        broadcastStatus(u, "ONLINE");
+        // 登记前连接已经断了（发 LOGIN_OK 时写失败）：那次 kick 没能移除，这里补上
+        if (h.isClosed()) kick(h);
     }
 
-    public synchronized void kick(ClientHandler h) {
+    public void kick(ClientHandler h) {
         if (h == null) return;
         String u = h.getUsername();
-        if (u != null) {
-            ClientHandler cur = online.get(u);
-            if (cur == h) {
-                online.remove(u);
-                broadcastStatus(u, "OFFLINE");
+        if (u != null) sessions.remove(u, h);
+        h.close();
+        ClusterNode c = cluster;
+        if (c != null) c.sessionClosed(h);
+    }
+
+    void broadcastStatus(String user, String status) {
+        // 只推给把 user 加为好友且在线的人，代价是 O(好友数) 而不是 O(在线人数)
+        // 集群模式下只在数据节点上执行：在其它节点上的好友按节点分组，把名单一起发过去
+        // 实际发送由 presence 按接收者合并后完成
+        ClusterNode c = cluster;
+        Map<String, List<String>> remote = null;
+        for (String sub : friendStore.subscribersOf(user)) {
+            if (online.containsKey(sub)) {
+                presence.enqueue(sub, user, status);
+            } else if (c != null) {
+                String node = c.nodeOf(sub);
+                if (node == null) continue;
+                if (remote == null) remote = new HashMap<>();
+                remote.computeIfAbsent(node, k -> new ArrayList<>()).add(sub);
             }
         }
-        try { h.interrupt(); } catch (Exception ignore) {}
+        if (remote != null) c.pushStatus(user, status, remote);
     }
 
-    private void broadcastStatus(String user, String status) {
-        Message m = new Message();
-        m.type = "STATUS_PUSH";
-        m.from = "server";
-        m.data = user + "=" + status;
-        m.timestamp = System.currentTimeMillis();
-
-        for (ClientHandler ch : online.values()) {
-            ch.send(m);
-        }
+    // 各种启动模式共用的后台服务；不经 start* 直接在进程内使用（基准等）时要先调用
+    public void startServices() {
+        presence = new PresenceBatcher(this, presenceWindowMs);
     }
 
+    // 阻塞模式：每个连接一个平台线程
     public void start(int port) throws IOException {
-        try (ServerSocket ss = new ServerSocket(port)) {
-            System.out.println("ChatServer started on port " + port);
+        acceptLoop(port, "thread", h -> new Thread(h, "client").start());
+    }
+
+    // 阻塞模式：每个连接一个虚拟线程（需要 JDK 21+）
+    public void startVirtual(int port) throws IOException {
+        ThreadFactory f = Thread.ofVirtual().name("vclient-", 0).factory();
+        acceptLoop(port, "virtual", h -> f.newThread(h).start());
+    }
+
+    void spawn(Runnable r) {
+        connExec.execute(r);
+    }
+
+    private void acceptLoop(int port, String mode, Executor exec) throws IOException {
+        this.connExec = exec;
+        startServices();
+        try (ServerSocket ss = new ServerSocket(port, backlog)) {
+            System.out.println("ChatServer (" + mode + ") started on port " + port);
             while (true) {
-                Socket s = ss.accept();
+                Socket s;
+                try {
+                    s = ss.accept();
+                } catch (IOException e) {
+                    acceptFailed(e);
+                    continue;
+                }
+                long wait = admission.tryAdmit(s.getInetAddress());
+                if (wait > 0) {
+                    refuse(s, wait);
+                    continue;
+                }
                 ClientHandler h = new ClientHandler(s, this);
-                h.start();
+                h.admitted();
+                exec.execute(h);
             }
         }
     }
 
+    // accept 出错不退出接入循环：记一行日志后稍等再接。
+    // 文件句柄耗尽（EMFILE）时等久一点，让已有连接有机会释放句柄，避免空转刷日志
+    static void acceptFailed(IOException e) {
+        System.err.println("accept: " + e.getMessage());
+        String msg = String.valueOf(e.getMessage());
+        long ms = msg.contains("Too many open files") ? 1000 : 50;
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // 超过接入上限：回一帧 BUSY（带重试间隔）就关，不为它起线程
+    private static void refuse(Socket s, long wait) {
+        try (s) {
+            s.getOutputStream().write(SimpleJson.toFrame(AdmissionControl.busy(wait)));
+        } catch (IOException ignore) {
+        }
+    }
+
+    // 非阻塞模式：少量事件循环线程承载全部连接
+    public void startNio(int port, int loops, int workers) throws IOException {
+        startServices();
+        new NioServer(this, loops, workers).start(port);
+    }
+
+    // 用法：ChatServer [port] [--mode=thread|virtual|nio] [--loops=N] [--nio-workers=N]
+    //                  [--out-queue=N] [--overflow=drop-oldest|disconnect] [--presence-window=ms]
+    //                  [--his-durability=batch|interval|fsync] [--his-flush-ms=N] [--his-open-files=N]
+    //                  [--his-engine=text|mapped] [--his-segment-kb=N] [--his-search=on|off] [--his-search-threads=N]
+    //                  [--his-checkpoint-sec=N(0=off)]
+    //                  [--data-dir=path]
+    //                  [--node=n1 --cluster=n1@host:port,n2@host:port,... --cluster-secret=S [--data-node=n1]]
+    //                  [--deflate=on|off] [--deflate-min=bytes] [--deflate-level=0..9] [--deflate-report-sec=N]
+    //                  [--admins=a,b] [--metrics-file=path] [--metrics-interval-sec=N]
+    //                  [--auth-threads=N] [--auth-iterations=N] [--user-cache=N]
+    //                  [--backlog=N] [--max-conns=N] [--max-unauthed=N] [--ip-conn-rate=per_sec] [--ip-login-rate=per_sec]
+    //                  [--login-timeout-sec=N] [--retry-after-ms=N] [--ping-sec=N] [--idle-timeout-sec=N(0=off)]
+    // 集群的各节点放在同一个负载均衡后面，必须用各自的 --data-dir（同一目录会拒绝启动）。
+    // 账号、好友、群、记录只保存在数据节点（--data-node，默认成员列表里的第一个）上：其它节点请它校验登录，
+    // 并把要读写这些数据的请求转给它执行，所以连到哪个节点看到的都一样
     public static void main(String[] args) throws Exception {
         int port = 9000;
-        if (args.length >= 1) port = Integer.parseInt(args[0]);
-        new ChatServer().start(port);
+        String mode = "thread";
+        int loops = Runtime.getRuntime().availableProcessors();
+        int nioWorkers = 16; // 处理读写磁盘请求的线程数，主要在等 I/O，可以比核数多
+        HistoryStore.Durability durability = HistoryStore.Durability.BATCH;
+        long hisFlushMs = 50;
+        String hisEngine = "text";
+        int hisOpenFiles = 256;
+        int hisSegmentKb = 1024;
+        boolean hisSearch = true;
+        int hisSearchThreads = Runtime.getRuntime().availableProcessors();
+        long hisCheckpointSec = 300;
+        boolean deflate = true;
+        int deflateMin = 512;
+        int deflateLevel = 1;
+        long deflateReportSec = 0;
+        String nodeId = null;
+        String clusterSpec = null;
+        String clusterSecret = null;
+        String dataNode = null;
+        String metricsFile = null;
+        long metricsIntervalSec = 10;
+        Path dataDir = Paths.get("");
+        for (String a : args) {
+            if (a.startsWith("--data-dir=")) dataDir = Paths.get(a.substring("--data-dir=".length()));
+        }
+        ChatServer server = new ChatServer(dataDir);
+        for (String a : args) {
+            if (a.startsWith("--data-dir=")) continue;
+            else if (a.startsWith("--mode=")) mode = a.substring("--mode=".length());
+            else if (a.startsWith("--loops=")) loops = Integer.parseInt(a.substring("--loops=".length()));
+            else if (a.startsWith("--nio-workers=")) nioWorkers = Integer.parseInt(a.substring("--nio-workers=".length()));
+            else if (a.startsWith("--out-queue=")) server.outQueueCapacity = Integer.parseInt(a.substring("--out-queue=".length()));
+            else if (a.startsWith("--overflow=")) server.outQueueOverflow = "disconnect".equals(a.substring("--overflow=".length()))
+                    ? OutboundQueue.Overflow.DISCONNECT : OutboundQueue.Overflow.DROP_OLDEST;
+            else if (a.startsWith("--presence-window=")) server.presenceWindowMs = Long.parseLong(a.substring("--presence-window=".length()));
+            else if (a.startsWith("--his-durability=")) durability = HistoryStore.Durability.valueOf(a.substring("--his-durability=".length()).toUpperCase());
+            else if (a.startsWith("--his-flush-ms=")) hisFlushMs = Long.parseLong(a.substring("--his-flush-ms=".length()));
+            else if (a.startsWith("--his-open-files=")) hisOpenFiles = Integer.parseInt(a.substring("--his-open-files=".length()));
+            else if (a.startsWith("--his-engine=")) hisEngine = a.substring("--his-engine=".length());
+            else if (a.startsWith("--his-segment-kb=")) hisSegmentKb = Integer.parseInt(a.substring("--his-segment-kb=".length()));
+            else if (a.startsWith("--his-search=")) hisSearch = !"off".equals(a.substring("--his-search=".length()));
+            else if (a.startsWith("--his-search-threads=")) hisSearchThreads = Integer.parseInt(a.substring("--his-search-threads=".length()));
+            else if (a.startsWith("--his-checkpoint-sec=")) hisCheckpointSec = Long.parseLong(a.substring("--his-checkpoint-sec=".length()));
+            else if (a.startsWith("--deflate=")) deflate = !"off".equals(a.substring("--deflate=".length()));
+            else if (a.startsWith("--deflate-min=")) deflateMin = Integer.parseInt(a.substring("--deflate-min=".length()));
+            else if (a.startsWith("--deflate-level=")) deflateLevel = Integer.parseInt(a.substring("--deflate-level=".length()));
+            else if (a.startsWith("--deflate-report-sec=")) deflateReportSec = Long.parseLong(a.substring("--deflate-report-sec=".length()));
+            else if (a.startsWith("--node=")) nodeId = a.substring("--node=".length());
+            else if (a.startsWith("--cluster=")) clusterSpec = a.substring("--cluster=".length());
+            else if (a.startsWith("--cluster-secret=")) clusterSecret = a.substring("--cluster-secret=".length());
+            else if (a.startsWith("--data-node=")) dataNode = a.substring("--data-node=".length());
+            else if (a.startsWith("--admins=")) server.admins = Set.copyOf(Arrays.asList(a.substring("--admins=".length()).split(",")));
+            else if (a.startsWith("--metrics-file=")) metricsFile = a.substring("--metrics-file=".length());
+            else if (a.startsWith("--metrics-interval-sec=")) metricsIntervalSec = Long.parseLong(a.substring("--metrics-interval-sec=".length()));
+            else if (a.startsWith("--auth-threads=")) server.users.setAuthThreads(Integer.parseInt(a.substring("--auth-threads=".length())));
+            else if (a.startsWith("--auth-iterations=")) server.users.setIterations(Integer.parseInt(a.substring("--auth-iterations=".length())));
+            else if (a.startsWith("--user-cache=")) server.users.setCacheSize(Integer.parseInt(a.substring("--user-cache=".length())));
+            else if (a.startsWith("--backlog=")) server.backlog = Integer.parseInt(a.substring("--backlog=".length()));
+            else if (a.startsWith("--max-conns=")) server.admission.maxConnections = Integer.parseInt(a.substring("--max-conns=".length()));
+            else if (a.startsWith("--max-unauthed=")) server.admission.maxUnauthed = Integer.parseInt(a.substring("--max-unauthed=".length()));
+            else if (a.startsWith("--ip-conn-rate=")) server.admission.setIpConnRate(Double.parseDouble(a.substring("--ip-conn-rate=".length())));
+            else if (a.startsWith("--ip-login-rate=")) server.admission.setIpLoginRate(Double.parseDouble(a.substring("--ip-login-rate=".length())));
+            else if (a.startsWith("--login-timeout-sec=")) server.admission.loginTimeoutSec = Long.parseLong(a.substring("--login-timeout-sec=".length()));
+            else if (a.startsWith("--retry-after-ms=")) server.admission.retryAfterMs = Long.parseLong(a.substring("--retry-after-ms=".length()));
+            else if (a.startsWith("--ping-sec=")) server.heartbeat.pingIntervalMs = Long.parseLong(a.substring("--ping-sec=".length())) * 1000;
+            else if (a.startsWith("--idle-timeout-sec=")) server.heartbeat.idleTimeoutMs = Long.parseLong(a.substring("--idle-timeout-sec=".length())) * 1000;
+            else port = Integer.parseInt(a);
+        }
+        server.users.importPlain(dataDir.resolve("users.txt"));
+        System.out.println("Users: " + server.users.size() + " accounts");
+        server.compressor = deflate ? new FrameCompressor(deflateMin, deflateLevel) : null;
+        if (server.compressor != null) {
+            FrameCompressor fc = server.compressor;
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> System.out.print("Compression:\n" + fc.report()),
+                    "deflate-report"));
+            if (deflateReportSec > 0) {
+                ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread t = new Thread(r, "deflate-report");
+                    t.setDaemon(true);
+                    return t;
+                });
+                timer.scheduleAtFixedRate(() -> System.out.print("Compression:\n" + fc.report()),
+                        deflateReportSec, deflateReportSec, TimeUnit.SECONDS);
+            }
+        }
+        ManagementFactory.getPlatformMBeanServer().registerMBean(server.metrics, new ObjectName("server:type=ChatMetrics"));
+        if (metricsFile != null) {
+            Path mf = Paths.get(metricsFile);
+            ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "metrics-dump");
+                t.setDaemon(true);
+                return t;
+            });
+            timer.scheduleAtFixedRate(() -> server.metrics.dump(mf), metricsIntervalSec, metricsIntervalSec, TimeUnit.SECONDS);
+        }
+        if ("mapped".equals(hisEngine)) {
+            MappedHistoryEngine engine = new MappedHistoryEngine(server.historyStore.baseDir(), hisSegmentKb * 1024);
+            engine.setMaxOpenFiles(hisOpenFiles);
+            server.historyStore.setEngine(engine);
+        } else {
+            ((TextHistoryEngine) server.historyStore.engine()).setMaxOpenFiles(hisOpenFiles);
+        }
+        server.historyStore.setDurability(durability, hisFlushMs);
+        server.historyStore.loadConversationIndex(hisSearchThreads);
+        server.historyStore.dropOrphanRooms(server.roomStore.allRooms());
+        if (hisSearch) server.historyStore.enableSearch(hisSearchThreads);
+        if (hisCheckpointSec > 0) {
+            ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "history-checkpoint");
+                t.setDaemon(true);
+                return t;
+            });
+            timer.scheduleWithFixedDelay(server.historyStore::checkpoint, hisCheckpointSec, hisCheckpointSec, TimeUnit.SECONDS);
+        }
+        if (clusterSpec != null) {
+            if (nodeId == null) throw new IllegalArgumentException("--cluster 需要同时给出 --node");
+            if (clusterSecret == null) throw new IllegalArgumentException("--cluster 需要同时给出 --cluster-secret");
+            server.cluster = new ClusterNode(server, nodeId, ClusterNode.parseMembers(clusterSpec), clusterSecret, dataNode);
+            server.cluster.start();
+        }
+        switch (mode) {
+            case "nio" -> server.startNio(port, loops, nioWorkers);
+            case "virtual" -> server.startVirtual(port);
+            default -> server.start(port);
+        }
     }
 }
@@ -1,68 +1,245 @@
 package server;
 import java.io.*;
+import java.net.InetAddress;
 import java.net.Socket;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import protocol.BinaryCodec;
+import protocol.FrameReader;
+import protocol.Message;
+import protocol.SimpleJson;
 
-public class ClientHandler extends Thread {
+// 连接处理：业务逻辑在 dispatch/handleXxx 中，与具体 I/O 模型无关。
+// 发送统一走有界队列 outbox：阻塞模式由独立写线程取出写 socket；NIO 模式由 NioClientHandler 在事件循环里写。
+public class ClientHandler implements Runnable {
     private final Socket socket;
-    private final ChatServer server;
-    private BufferedReader in;
-    private BufferedWriter out;
-    private String username = null;
+    protected final ChatServer server;
+    protected final OutboundQueue outbox;
+    private volatile FrameReader in;
+    private OutputStream out;
+    // 登录时协商成功后，发往该客户端的帧改用二进制编码
+    private volatile boolean binaryOut = false;
+    private volatile boolean writerStarted = false;
+    // 为 true 时写端不 flush，攒着等 uncork（登录时几帧合成一次写）
+    private volatile boolean corked = false;
+    private static final int WRITE_BUFFER = 32 * 1024;
+    // 登录时协商了 deflate 后不为 null，发出的大帧经它压缩
+    private volatile FrameCompressor deflateOut;
+    // 登录在校验线程里完成，读线程/事件循环上读它
+    private volatile String username = null;
+    // 密码校验进行中，期间再来的 LOGIN 直接忽略
+    private final AtomicBoolean loginPending = new AtomicBoolean();
+    // 在接入控制里占的名额：UNAUTHED -> AUTHED -> RELEASED；没经过接入控制的连接（基准等）一开始就是 RELEASED
+    private static final int UNAUTHED = 0, AUTHED = 1, RELEASED = 2;
+    private final AtomicInteger admission = new AtomicInteger(RELEASED);
+    // 登录时间（毫秒）
+    private volatile long loginAt;
+    // 登录代数（集群模式），同一账号两处登录时代数小的被踢；单机时为 0
+    private volatile long loginGen;
+    // 最后一次收到帧的时刻（nanoTime），心跳据此判断空闲
+    private volatile long lastRead = System.nanoTime();
+
+    // 集群模式下要读写账号、好友、群、记录的请求：不在数据节点上的节点把它们转给数据节点执行（见 ClusterNode）。
+    // LOGIN_BOOT 是登录成功后由节点自己发起的引导请求
+    static final Set<String> DATA_TYPES = Set.of("CHAT", "FRIEND_LIST", "FRIEND_ADD", "FRIEND_REMARK", "FRIEND_DEL",
+            "STATUS_QUERY", "HIS_LIST", "HIS_READ", "HIS_DEL", "HIS_SEARCH", "HIS_SYNC", "ROOM_CREATE", "ROOM_JOIN",
+            "ROOM_LEAVE", "ROOM_LIST", "ROOM_CHAT", "ROOM_HIS", "LOGIN_BOOT");
 
     public ClientHandler(Socket socket, ChatServer server) {
         this.socket = socket;
         this.server = server;
+        this.outbox = new OutboundQueue(server.outQueueCapacity, server.outQueueOverflow);
+    }
+
+    // 数据节点上代表其它节点某个已登录连接的会话，没有本地 socket
+    ClientHandler(ChatServer server, String username, long loginAt) {
+        this(null, server);
+        this.username = username;
+        this.loginAt = loginAt;
+    }
+
+    // 是否是上面那种代理会话：登录已由连接所在的节点验证过
+    protected boolean isProxy() {
+        return false;
     }
 
     public String getUsername() { return username; }
 
+    public long loginAt() { return loginAt; }
+
+    public long loginGen() { return loginGen; }
+
+    public long lastRead() { return lastRead; }
+
+    // 已被踢/已断开（发送队列关闭）
+    public boolean isClosed() { return outbox.isClosed(); }
+
+    // 发送队列里还没写出的帧数、因队列满丢掉的帧数（给指标报告用）
+    public int queued() { return outbox.size(); }
+
+    public long dropped() { return outbox.dropped(); }
+
+    public InetAddress remoteAddress() {
+        return socket == null ? null : socket.getInetAddress();
+    }
+
+    // 接入控制放行后调用：占一个未登录名额并开始登录超时计时
+    void admitted() {
+        admission.set(UNAUTHED);
+        server.admission.watch(this);
+    }
+
+    // 连接彻底断开时调用一次，归还名额
+    protected void released() {
+        int prev = admission.getAndSet(RELEASED);
+        if (prev != RELEASED) server.admission.released(prev == AUTHED);
+    }
+
+    // 任意线程调用，只入队不碰网络，不会被慢接收方阻塞
     public void send(Message m) {
+        FrameCompressor c = deflateOut;
+        if (c != null) enqueue(c.compress(m.type, BinaryCodec.encode(m)));
+        else enqueue(binaryOut ? BinaryCodec.encode(m) : SimpleJson.toFrame(m));
+    }
+
+    // 群发：按本连接的格式取共享的已编码帧，不再逐个编码
+    public void send(SharedFrame f) {
+        enqueue(f.bytes(binaryOut, deflateOut));
+    }
+
+    private void enqueue(byte[] frame) {
+        if (!outbox.offer(frame)) {
+            // 已在关闭（close 后正把 KICK 等最后几帧写出去）：新帧丢掉即可，不能 abort 把它们清掉
+            if (outbox.isClosed()) return;
+            // 队列满且策略为 DISCONNECT：按掉线处理
+            server.metrics.sendFailures.increment();
+            abort();
+            server.kick(this);
+            return;
+        }
+        if (!corked) wakeWriter();
+    }
+
+    // 接下来几帧先攒着，uncork 后一起写出
+    protected void cork() {
+        corked = true;
+    }
+
+    // 只发信号不入队：不占队列容量，也不会因此挤掉别的帧或触发 DISCONNECT
+    protected void uncork() {
+        corked = false;
+        outbox.wake(); // 阻塞模式：叫醒写线程把攒着的写出去
+        wakeWriter();  // NIO 模式：交给循环线程
+    }
+
+    protected boolean isCorked() {
+        return corked;
+    }
+
+    // 通知写端有新数据；阻塞模式下写线程自己在队列上等待，无需额外动作
+    protected void wakeWriter() {}
+
+    // 写线程：取队列写 socket，队列关闭并写完后关闭连接
+    private void writeLoop() {
         try {
-            String line = SimpleJson.toJson(m);
-            synchronized (out) {
-                out.write(line);
-                out.write("\n");
-                out.flush();
+            byte[] f;
+            while ((f = outbox.take()) != null) {
+                out.write(f);
+                server.metrics.bytesOut.add(f.length);
+                // 队列里还有就先写进缓冲，空了（或缓冲满时 BufferedOutputStream 自己）才真正写 socket
+                if (!corked && outbox.isEmpty()) {
+                    out.flush();
+                    server.metrics.socketWrites.increment();
+                }
             }
-        } catch (IOException e) {
+        } catch (IOException | InterruptedException e) {
             // 发送失败就当掉线处理
+            server.metrics.sendFailures.increment();
             server.kick(this);
+        } finally {
+            abort();
         }
     }
 
+    // 断开连接（被踢）：先把已排队的帧（如 KICK）写完再关 socket
+    public void close() {
+        outbox.close();
+        if (!writerStarted) abort();
+    }
+
+    // 立即断开，丢弃未发送数据
+    protected void abort() {
+        outbox.close();
+        outbox.clear();
+        try { socket.close(); } catch (IOException ignore) {}
+    }
+
     @Override
     public void run() {
         try {
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
-            out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"));
-
-            String line;
-            while ((line = in.readLine()) != null) {
-                Message m = SimpleJson.fromJson(line);
-
-                switch (m.type) {
-                    case "LOGIN" -> handleLogin(m);
-                    case "CHAT" -> handleChat(m);
-                    case "FRIEND_LIST" -> handleFriendList();
-                    case "FRIEND_ADD" -> handleFriendAdd(m);
-                    case "FRIEND_REMARK" -> handleFriendRemark(m);
-                    case "FRIEND_DEL" -> handleFriendDel(m);
-                    case "STATUS_QUERY" -> handleStatusQuery(); // 主动刷新在线状态
-                    case "HIS_LIST" -> handleHistoryList();
-                    case "HIS_READ" -> handleHistoryRead(m);
-                    case "HIS_DEL" -> handleHistoryDelete(m);
-                    default -> {
-                        // ignore
-                    }
-                }
+            in = new FrameReader(new CountingInputStream(socket.getInputStream(), server.metrics));
+            in.setMaxFrame(maxFrame());
+            out = new BufferedOutputStream(socket.getOutputStream(), WRITE_BUFFER);
+            writerStarted = true;
+            server.spawn(this::writeLoop);
+
+            Message m;
+            while ((m = in.read()) != null) {
+                dispatch(m);
             }
         } catch (IOException e) {
             // 客户端断开
         } finally {
             server.kick(this);
-            try { socket.close(); } catch (IOException ignore) {}
+            close();
+            released();
+        }
+    }
+
+    // 处理收到的一帧（JSON 行或二进制帧，已解码），按消息类型记处理耗时
+    public void dispatch(Message m) {
+        long t0 = System.nanoTime();
+        lastRead = t0;
+        try {
+            handle(m);
+        } finally {
+            server.metrics.recordMessage(m.type, System.nanoTime() - t0);
+        }
+    }
+
+    private void handle(Message m) {
+        if (forwarded(m)) return;
+        switch (m.type) {
+            case "LOGIN" -> handleLogin(m);
+            case "CHAT" -> handleChat(m);
+            case "FRIEND_LIST" -> handleFriendList();
+            case "FRIEND_ADD" -> handleFriendAdd(m);
+            case "FRIEND_REMARK" -> handleFriendRemark(m);
+            case "FRIEND_DEL" -> handleFriendDel(m);
+            case "STATUS_QUERY" -> handleStatusQuery(); // 主动刷新在线状态
+            case "HIS_LIST" -> handleHistoryList();
+            case "HIS_READ" -> handleHistoryRead(m);
+            case "HIS_DEL" -> handleHistoryDelete(m);
+            case "HIS_SEARCH" -> handleHistorySearch(m);
+            case "HIS_SYNC" -> handleHistorySync(m);
+            case "ROOM_CREATE" -> handleRoomOp(m, "create");
+            case "ROOM_JOIN" -> handleRoomOp(m, "join");
+            case "ROOM_LEAVE" -> handleRoomOp(m, "leave");
+            case "ROOM_LIST" -> handleRoomList();
+            case "ROOM_CHAT" -> handleRoomChat(m);
+            case "ROOM_HIS" -> handleRoomHistory(m);
+            case "STATS" -> handleStats();
+            case "LOGIN_BOOT" -> sendBootstrap();
+            case "PING" -> send(Message.of("PONG", "server", m.from, ""));
+            case "PONG" -> {
+                // 心跳回复，收到就已经刷新了 lastRead
+            }
+            default -> {
+                // ignore
+            }
         }
     }
 
@@ -70,37 +247,224 @@ public class ClientHandler extends Thread {
         // content 格式：password
         String user = m.from;
         String pass = m.content;
+        long wait = server.admission.tryLogin(remoteAddress());
+        if (wait > 0) {
+            Message fail = Message.of("LOGIN_FAIL", "server", user, "登录太频繁，请 " + (wait + 999) / 1000 + " 秒后再试");
+            fail.data = "retry_after=" + wait;
+            send(fail);
+            return;
+        }
+        if (!loginPending.compareAndSet(false, true)) return;
+
+        // PBKDF2 校验很慢，放到校验线程池里做，不占读线程/事件循环；结果回来后在校验线程上完成登录。
+        // 集群里账号只在数据节点上，其它节点经链路请它校验
+        server.verifyLogin(user, pass).whenComplete((ok, err) -> {
+            try {
+                if (isClosed()) return;
+                if (err != null) {
+                    // 校验线程池排满（登录风暴）时让客户端稍后重试
+                    if (!(err instanceof RejectedExecutionException)) System.err.println("login " + user + ": " + err.getMessage());
+                    Message fail = Message.of("LOGIN_FAIL", "server", user, "服务器繁忙，请稍后再试");
+                    fail.data = "retry_after=1000";
+                    send(fail);
+                } else if (ok) loginOk(user, m.data);
+                else send(Message.of("LOGIN_FAIL", "server", user, "账号或密码错误"));
+            } finally {
+                loginPending.set(false);
+            }
+        });
+    }
 
-        if (UserStore.validate(user, pass)) {
-            this.username = user;
+    // 当前允许的单帧上限：登录前只收小帧
+    protected int maxFrame() {
+        return username == null ? BinaryCodec.MAX_LOGIN_FRAME : BinaryCodec.MAX_FRAME;
+    }
+
+    private void loginOk(String user, String opts) {
+        this.username = user;
+        FrameReader r = in;
+        if (r != null) r.setMaxFrame(BinaryCodec.MAX_FRAME);
+        if (admission.compareAndSet(UNAUTHED, AUTHED)) server.admission.authed();
+        server.metrics.logins.increment();
+
+        // LOGIN_OK 本身用 JSON 发出，data 告知客户端此后可以双向使用二进制帧，
+        // 以及（客户端也要求 deflate 时）不小于多少字节的帧会压缩、（要求 boot 时）随后会收到 LOGIN_BOOT、
+        // （声明了 ping，即会回 PONG 时）本连接有心跳，长时间没有任何帧会被断开。
+        // 先发 LOGIN_OK 再登记上线，保证别人推来的消息都排在它后面。
+        Message ok = Message.of("LOGIN_OK", "server", user, "登录成功");
+        boolean bin = BinaryCodec.hasOpt(opts, "proto=bin");
+        FrameCompressor c = bin && BinaryCodec.hasOpt(opts, "deflate") ? server.compressor : null;
+        boolean boot = BinaryCodec.hasOpt(opts, "boot");
+        boolean ping = BinaryCodec.hasOpt(opts, "ping");
+        List<String> ack = new ArrayList<>();
+        if (bin) ack.add("proto=bin");
+        if (c != null) ack.add("deflate=" + c.minBytes());
+        if (boot) ack.add("boot");
+        if (ping) ack.add("ping");
+        if (!ack.isEmpty()) ok.data = String.join(";", ack);
+        // 登录的几帧攒起来一次写出，通常只占一个 TCP 包
+        cork();
+        try {
+            send(ok);
+            binaryOut = bin;
+            deflateOut = c;
+            loginAt = System.currentTimeMillis();
+            loginGen = server.nextLoginGen(user);
             server.onLoginSuccess(this);
+            // 不会回 PONG 的旧客户端不做空闲回收，登录前只受登录超时约束
+            if (ping) server.heartbeat.watch(this);
 
-            send(Message.of("LOGIN_OK", "server", user, "登录成功"));
-            // 登录成功后：下发好友列表、状态
-            handleFriendList();
-            handleStatusQuery();
-        } else {
-            send(Message.of("LOGIN_FAIL", "server", user, "账号或密码错误"));
+            // 登录成功后：下发好友列表、状态（新客户端合成一帧 LOGIN_BOOT，不用再来回请求）
+            if (boot) {
+                handle(Message.of("LOGIN_BOOT", user, "server", ""));
+            } else {
+                handle(Message.of("FRIEND_LIST", user, "server", ""));
+                handle(Message.of("STATUS_QUERY", user, "server", ""));
+            }
+        } finally {
+            uncork();
         }
     }
 
+    // 集群里本节点不是数据节点时，已登录连接 DATA_TYPES 里的请求转给数据节点，回复由它经链路发回来
+    private boolean forwarded(Message m) {
+        ClusterNode c = server.cluster;
+        if (c == null || c.isDataNode() || !DATA_TYPES.contains(m.type) || !server.isAuthed(this)) return false;
+        if (!c.forwardRequest(this, m)) {
+            send(Message.of("SYS_NOTICE", "server", username, "数据节点暂时不可用，请稍后再试"));
+        }
+        return true;
+    }
+
+    // LOGIN_BOOT：data 每行一项 key=value
+    //   user=账号  login_at=登录毫秒  friends=同 FRIEND_LIST_RES  status=同 STATUS_RES  rooms=已加入的群（同 ROOM_LIST_RES 的 data）
+    private void sendBootstrap() {
+        if (!server.isAuthed(this)) return;
+        List<String> fs = server.friendStore.listFriends(username);
+        Message res = new Message();
+        res.type = "LOGIN_BOOT";
+        res.from = "server";
+        res.to = username;
+        res.content = "";
+        res.data = "user=" + username + "\nlogin_at=" + loginAt + "\nfriends=" + String.join(";", fs)
+                + "\nstatus=" + statusData(fs) + "\nrooms=" + String.join(";", server.roomStore.roomsOf(username));
+        res.timestamp = System.currentTimeMillis();
+        send(res);
+    }
+
     private void handleChat(Message m) {
         if (!server.isAuthed(this)) return;
 
         // 记录聊天
         server.historyStore.appendChat(m.from, m.to, m.content, m.timestamp);
 
-        // 转发给对方（在线则发，不在线则只存记录）
-        ClientHandler peer = server.online.get(m.to);
-        if (peer != null) {
-            peer.send(m);
-        } else {
+        // 转发给对方（在线则发，可能在集群的其它节点上；不在线则只存记录）
+        if (!server.deliver(m.to, m)) {
             // 告知发送者对方离线（可选）
             Message back = Message.of("CHAT_OFFLINE_SAVED", "server", m.from, "对方离线，已保存到聊天记录");
             send(back);
         }
     }
 
+    // 运行指标（管理员账号才能看），content 为文本报告
+    private void handleStats() {
+        if (!server.isAuthed(this)) return;
+        Message res;
+        if (server.isAdmin(username)) {
+            res = Message.of("STATS_RES", "server", username, server.metrics.report());
+        } else {
+            res = Message.of("STATS_RES", "server", username, "没有权限");
+            res.data = "error=1";
+        }
+        send(res);
+    }
+
+    // ---- 群聊 ----
+
+    // content：群名。回复 ROOM_OP_OK / ROOM_OP_FAIL，data = "op=create|join|leave;room=群名"
+    private void handleRoomOp(Message m, String op) {
+        if (!server.isAuthed(this)) return;
+        String room = m.content.trim();
+        String fail = null;
+        if (!RoomStore.validName(room)) {
+            fail = "群名只能包含英文字母、数字、_、-，最长 " + RoomStore.MAX_NAME + " 个字符";
+        } else {
+            switch (op) {
+                case "create" -> { if (!server.roomStore.create(room, username)) fail = "群已存在"; }
+                case "join" -> {
+                    if (!server.roomStore.exists(room)) fail = "群不存在";
+                    else if (!server.roomStore.join(room, username)) fail = "你已在群里";
+                }
+                default -> { if (!server.roomStore.leave(room, username)) fail = "你不在这个群里"; }
+            }
+        }
+        Message res = Message.of(fail == null ? "ROOM_OP_OK" : "ROOM_OP_FAIL", "server", username,
+                fail == null ? ("create".equals(op) ? "建群成功" : "join".equals(op) ? "加入成功" : "已退出") : fail);
+        res.data = "op=" + op + ";room=" + room;
+        send(res);
+    }
+
+    // 回复 data = 我所在的群 "r1;r2"，content = 全部群及人数 "r1=12;r2=3"
+    private void handleRoomList() {
+        if (!server.isAuthed(this)) return;
+        StringBuilder all = new StringBuilder();
+        for (String r : server.roomStore.allRooms()) {
+            if (all.length() > 0) all.append(';');
+            all.append(r).append('=').append(server.roomStore.membersOf(r).size());
+        }
+        Message res = new Message();
+        res.type = "ROOM_LIST_RES";
+        res.from = "server";
+        res.to = username;
+        res.content = all.toString();
+        res.data = String.join(";", server.roomStore.roomsOf(username));
+        res.timestamp = System.currentTimeMillis();
+        send(res);
+    }
+
+    // to：群名。先记群聊记录，再原样发给其他在线成员（整条消息只编码一次）
+    private void handleRoomChat(Message m) {
+        if (!server.isAuthed(this)) return;
+        String room = m.to;
+        if (!server.roomStore.isMember(room, username)) {
+            send(Message.of("ROOM_OP_FAIL", "server", username, "你不在群 " + room + " 里"));
+            return;
+        }
+        m.from = username;
+        server.historyStore.appendRoom(room, username, m.content, m.timestamp);
+        server.fanOutRoom(room, m);
+    }
+
+    // content：群名，data 同 HIS_READ 分页（limit/before/after）；只有成员能看
+    private void handleRoomHistory(Message m) {
+        if (!server.isAuthed(this)) return;
+        String room = m.content.trim();
+        Message res = new Message();
+        res.type = "ROOM_HIS_RES";
+        res.from = "server";
+        res.to = username;
+        res.timestamp = System.currentTimeMillis();
+        if (!server.roomStore.isMember(room, username)) {
+            res.content = "(你不在群 " + room + " 里)";
+            res.data = "page;room=" + room;
+            send(res);
+            return;
+        }
+        try {
+            int limit = (int) longOpt(m.data, "limit", 50);
+            HistoryStore.Page page = BinaryCodec.opt(m.data, "after") != null
+                    ? server.historyStore.readRoomAfter(room, longOpt(m.data, "after", 0), limit)
+                    : server.historyStore.readRoomBefore(room, longOpt(m.data, "before", Long.MAX_VALUE), limit);
+            res.content = page.text;
+            res.data = "page;room=" + room + ";start=" + page.start + ";end=" + page.end
+                    + ";more_before=" + (page.hasBefore ? 1 : 0) + ";more_after=" + (page.hasAfter ? 1 : 0);
+        } catch (IOException | NumberFormatException e) {
+            res.content = "(读取失败: " + e.getMessage() + ")";
+            res.data = "page;room=" + room;
+        }
+        send(res);
+    }
+
     private void handleFriendList() {
         if (!server.isAuthed(this)) return;
         List<String> fs = server.friendStore.listFriends(username);
@@ -118,7 +482,7 @@ public class ClientHandler extends Thread {
         if (!server.isAuthed(this)) return;
 
         String friendAccount = m.content.trim();
-        if (!UserStore.allUsers().contains(friendAccount)) {
+        if (!server.users.exists(friendAccount)) {
             send(Message.of("FRIEND_OP_FAIL", "server", username, "好友账号不存在"));
             return;
         }
@@ -133,11 +497,10 @@ public class ClientHandler extends Thread {
         handleStatusQuery();
 
         // ⭐ 如果对方在线，也刷新对方好友列表 & 状态
-        ClientHandler peer = server.online.get(friendAccount);
-        if (peer != null) {
-            peer.send(Message.of("FRIEND_LIST", "server", friendAccount, ""));
-            peer.send(Message.of("STATUS_QUERY", "server", friendAccount, ""));
-            peer.send(Message.of("SYS_NOTICE", "server", friendAccount,
+        if (server.isOnline(friendAccount)) {
+            server.deliver(friendAccount, Message.of("FRIEND_LIST", "server", friendAccount, ""));
+            server.deliver(friendAccount, Message.of("STATUS_QUERY", "server", friendAccount, ""));
+            server.deliver(friendAccount, Message.of("SYS_NOTICE", "server", friendAccount,
                     username + " 已将你添加为好友"));
         }
     }
@@ -167,30 +530,43 @@ public class ClientHandler extends Thread {
 
     private void handleStatusQuery() {
         if (!server.isAuthed(this)) return;
-        // 对好友列表中的好友返回在线/离线
-        List<String> fs = server.friendStore.listFriends(username);
-        List<String> statusPairs = new ArrayList<>();
-        for (String item : fs) {
-            String acc = item.split("\\|", 2)[0];
-            boolean online = server.online.containsKey(acc);
-            statusPairs.add(acc + "=" + (online ? "ONLINE" : "OFFLINE"));
-        }
         Message res = new Message();
         res.type = "STATUS_RES";
         res.from = "server";
         res.to = username;
-        res.data = String.join(";", statusPairs);
+        res.data = statusData(server.friendStore.listFriends(username));
         res.timestamp = System.currentTimeMillis();
         send(res);
     }
 
+    // 对好友列表中的好友返回在线/离线，"bob=ONLINE;cathy=OFFLINE"
+    private String statusData(List<String> fs) {
+        List<String> statusPairs = new ArrayList<>();
+        for (String item : fs) {
+            String acc = item.split("\\|", 2)[0];
+            boolean online = server.isOnline(acc);
+            statusPairs.add(acc + "=" + (online ? "ONLINE" : "OFFLINE"));
+        }
+        return String.join(";", statusPairs);
+    }
+
     private void handleHistoryList() {
         if (!server.isAuthed(this)) return;
-        List<String> files = server.historyStore.listUserHistories(username);
+        // data 仍是文件名列表（最近活跃在前）；content 附带概况 "文件名=最后时间毫秒,条数,字节数;..."
+        List<String> files = new ArrayList<>();
+        StringBuilder meta = new StringBuilder();
+        for (Map.Entry<String, ConversationIndex.Stat> e : server.historyStore.listUserConversations(username)) {
+            String name = e.getKey() + ".txt";
+            ConversationIndex.Stat st = e.getValue();
+            files.add(name);
+            if (meta.length() > 0) meta.append(';');
+            meta.append(name).append('=').append(st.lastTs).append(',').append(st.count).append(',').append(st.bytes);
+        }
         Message res = new Message();
         res.type = "HIS_LIST_RES";
         res.from = "server";
         res.to = username;
+        res.content = meta.toString();
         res.data = String.join(";", files);
         res.timestamp = System.currentTimeMillis();
         send(res);
@@ -200,6 +576,12 @@ public class ClientHandler extends Thread {
         if (!server.isAuthed(this)) return;
         // content：对方账号
         String peer = m.content.trim();
+        // data 带 limit/before/after/since 时按页读；不带时保持原样，返回整个文件
+        if (BinaryCodec.opt(m.data, "limit") != null || BinaryCodec.opt(m.data, "before") != null
+                || BinaryCodec.opt(m.data, "after") != null || BinaryCodec.opt(m.data, "since") != null) {
+            handleHistoryPage(peer, m.data);
+            return;
+        }
         String text = server.historyStore.readHistory(username, peer);
 
         Message res = new Message();
@@ -211,10 +593,151 @@ public class ClientHandler extends Thread {
         send(res);
     }
 
+    // 分页：data = "limit=50" 最新一页；"before=偏移;limit=50" 更早；"after=偏移;limit=50" 更新；"since=毫秒;limit=50"
+    // 回复 data = "page;peer=..;start=..;end=..;more_before=0|1;more_after=0|1"，翻页时把 start/end 作为游标带回来
+    private void handleHistoryPage(String peer, String data) {
+        Message res = new Message();
+        res.type = "HIS_READ_RES";
+        res.from = "server";
+        res.to = username;
+        res.timestamp = System.currentTimeMillis();
+        try {
+            int limit = (int) longOpt(data, "limit", 50);
+            HistoryStore.Page page;
+            if (BinaryCodec.opt(data, "before") != null) {
+                page = server.historyStore.readBefore(username, peer, longOpt(data, "before", Long.MAX_VALUE), limit);
+            } else if (BinaryCodec.opt(data, "after") != null) {
+                page = server.historyStore.readAfter(username, peer, longOpt(data, "after", 0), limit);
+            } else if (BinaryCodec.opt(data, "since") != null) {
+                page = server.historyStore.readSince(username, peer, longOpt(data, "since", 0), limit);
+            } else {
+                page = server.historyStore.readLatest(username, peer, limit);
+            }
+            res.content = page.text;
+            res.data = "page;peer=" + peer + ";start=" + page.start + ";end=" + page.end
+                    + ";more_before=" + (page.hasBefore ? 1 : 0) + ";more_after=" + (page.hasAfter ? 1 : 0);
+        } catch (IOException | NumberFormatException e) {
+            res.content = "(读取失败: " + e.getMessage() + ")";
+            res.data = "page;peer=" + peer;
+        }
+        send(res);
+    }
+
+    // 增量同步：content 为对方账号，data = "after=偏移;epoch=..;limit=.." 或 "since=毫秒;limit=.."
+    // 纪元对不上（记录被删过）或偏移超出现有记录时从头给，reset=1 让客户端清掉本地缓存
+    // 回复 data = "sync;peer=..;epoch=..;reset=0|1;start=..;end=..;more_after=0|1"，下次把 end 作为 after 带回来
+    private void handleHistorySync(Message m) {
+        if (!server.isAuthed(this)) return;
+        String peer = m.content.trim();
+        Message res = new Message();
+        res.type = "HIS_SYNC_RES";
+        res.from = "server";
+        res.to = username;
+        res.timestamp = System.currentTimeMillis();
+        try {
+            int limit = (int) longOpt(m.data, "limit", HistoryStore.MAX_PAGE);
+            String epoch = server.historyStore.epochOf(username, peer);
+            boolean reset = false;
+            HistoryStore.Page page;
+            if (BinaryCodec.opt(m.data, "after") != null) {
+                long after = longOpt(m.data, "after", 0);
+                reset = !epoch.equals(BinaryCodec.opt(m.data, "epoch"));
+                page = server.historyStore.readAfter(username, peer, reset ? 0 : after, limit);
+                if (!reset && page.start < after) {
+                    reset = true;
+                    page = server.historyStore.readAfter(username, peer, 0, limit);
+                }
+            } else {
+                page = server.historyStore.readSince(username, peer, longOpt(m.data, "since", 0), limit);
+            }
+            res.content = page.text;
+            res.data = "sync;peer=" + peer + ";epoch=" + epoch + ";reset=" + (reset ? 1 : 0)
+                    + ";start=" + page.start + ";end=" + page.end + ";more_after=" + (page.hasAfter ? 1 : 0);
+        } catch (IOException | NumberFormatException e) {
+            res.content = "(同步失败: " + e.getMessage() + ")";
+            res.data = "sync;peer=" + peer + ";error=1";
+        }
+        send(res);
+    }
+
+    private static long longOpt(String data, String key, long def) {
+        String v = BinaryCodec.opt(data, key);
+        return v == null || v.isEmpty() ? def : Long.parseLong(v.trim());
+    }
+
+    // content：关键词（空白分隔，全部命中）；data："peer=bob;from=毫秒;to=毫秒;limit=50"，都可省略。
+    // 搜群聊记录时用 room=群名 代替 peer，只有群成员能搜
+    // 回复 content 为命中的记录原文（新的在前），data 为 "count=N;hits=会话@偏移,..."，偏移可直接用于 HIS_READ after=
+    private void handleHistorySearch(Message m) {
+        if (!server.isAuthed(this)) return;
+        Message res = new Message();
+        res.type = "HIS_SEARCH_RES";
+        res.from = "server";
+        res.to = username;
+        res.timestamp = System.currentTimeMillis();
+        String room = BinaryCodec.opt(m.data, "room");
+        if (room != null && !server.roomStore.isMember(room, username)) {
+            res.content = "(你不在群 " + room + " 里)";
+            res.data = "count=0";
+            send(res);
+            return;
+        }
+        try {
+            long from = longOpt(m.data, "from", Long.MIN_VALUE);
+            long to = longOpt(m.data, "to", Long.MAX_VALUE);
+            int limit = (int) longOpt(m.data, "limit", 50);
+            List<SearchIndex.Hit> hits = room != null
+                    ? server.historyStore.searchRoom(room, m.content, from, to, limit)
+                    : server.historyStore.search(username, BinaryCodec.opt(m.data, "peer"), m.content, from, to, limit);
+            StringBuilder text = new StringBuilder();
+            StringBuilder refs = new StringBuilder();
+            int bytes = 0, count = 0;
+            for (SearchIndex.Hit h : hits) {
+                // 回复帧不能超过 MAX_FRAME：放不下的命中不再带
+                bytes += HistoryStore.utf8Length(h.line);
+                if (count > 0 && bytes > HistoryStore.MAX_PAGE_BYTES) break;
+                count++;
+                text.append(HistoryStore.clip(h.line));
+                if (refs.length() > 0) refs.append(',');
+                refs.append(h.key).append('@').append(h.offset);
+            }
+            res.content = text.toString();
+            res.data = "count=" + count + ";hits=" + refs;
+        } catch (IOException | NumberFormatException e) {
+            res.content = "(检索失败: " + e.getMessage() + ")";
+            res.data = "count=0";
+        }
+        send(res);
+    }
+
     private void handleHistoryDelete(Message m) {
         if (!server.isAuthed(this)) return;
         String peer = m.content.trim();
         boolean ok = server.historyStore.deleteHistory(username, peer);
         send(Message.of(ok ? "HIS_DEL_OK" : "HIS_DEL_FAIL", "server", username, ok ? "删除成功" : "删除失败"));
     }
+
+    // 统计收到的字节数；套在 FrameReader 的缓冲之下，按块计数
+    private static final class CountingInputStream extends FilterInputStream {
+        private final Metrics metrics;
+
+        CountingInputStream(InputStream in, Metrics metrics) {
+            super(in);
+            this.metrics = metrics;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int c = super.read();
+            if (c >= 0) metrics.bytesIn.increment();
+            return c;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) metrics.bytesIn.add(n);
+            return n;
+        }
+    }
 }
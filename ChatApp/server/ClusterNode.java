@@ -0,0 +1,633 @@
+package server;
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import protocol.BinaryCodec;
+import protocol.FrameReader;
+import protocol.Message;
+import protocol.SimpleJson;
+
+// 集群模式：几个 ChatServer 节点两两之间连一条 TCP 链路（帧格式同客户端的二进制帧），不依赖外部中间件。
+// 成员是启动参数里的静态列表 "n1@host:port,n2@host:port,..."，id 小的一方主动连、断了每秒重连；
+// 本节点只在自己那一项的地址上监听。
+// 链路上的消息：
+//   CLUSTER_HELLO  from=节点 id，data="nonce=随机数"（连上后双方各发一次）
+//   CLUSTER_AUTH   data="auth=HMAC-SHA256(共享密钥, 自己 id\n对方 nonce\n自己 nonce)"，收到对方 HELLO 后回；
+//                  每条链路 nonce 都是新的，抓到的旧握手重放不了。验证不过或 HELLO_TIMEOUT_MS 内没完成的链路直接断开
+//   CLUSTER_ON     content=账号，data="gen=登录代数"：账号在发送方节点上线（连上后先把本节点全部在线账号发一遍）
+//   CLUSTER_OFF    content=账号：账号在发送方节点下线
+//   CLUSTER_ROOM   群消息，data="收件人1,收件人2\n原 data"：发给名单里在本节点上的人
+//   CLUSTER_STATUS content=账号，data="status=ONLINE|OFFLINE;rcpt=好友1,好友2"：推给名单里在本节点上的人
+//   CLUSTER_PUBLISH   content=账号，data="status=.."：账号在发送方节点上线/下线了，请数据节点按好友名单推送
+//   CLUSTER_VERIFY    to=账号，content=密码，data="id=N"：请数据节点校验登录；回 CLUSTER_VERIFY_RES data="id=N;ok=1|0|err"
+//   CLUSTER_REQ       to=账号，content=客户端请求（JSON），data="sid=N;login_at=毫秒"：发送方节点上的会话 N
+//                     发来的请求（ClientHandler.DATA_TYPES），数据节点按到达顺序执行；
+//                     回复逐条以 CLUSTER_RES（content=回复 JSON，data="sid=N"）发回去
+//   CLUSTER_BYE       data="sid=N"：会话 N 断开了，数据节点丢掉它的代理会话
+//   其它类型        转发给本节点上的 m.to（CHAT、好友通知等），不再往别的节点转
+// 同一账号在两个节点都有会话时，登录代数小的（相同则节点 id 小的）被踢掉。代数是每个账号的逻辑计数：
+// 新会话取本节点已知的最大代数 + 1，所以在别处已有会话时登录，新登录一定胜出，和各节点的时钟无关；
+// 两边同时登录、互相还不知道时代数相同，按节点 id 定一个。
+// 账号、聊天记录、好友、群只保存在数据节点（--data-node，默认成员列表里的第一个）上，不复制。
+// 其它节点只管连接：登录请数据节点校验，登录后要用这些数据的请求转给数据节点，由它代表该连接执行
+// （好友通知、群消息、状态推送的收件人都由它算好，再按用户所在节点转发），所以客户端连到哪个节点结果都一样。
+// 数据节点不可用时，其它节点上的登录和这些请求会失败，连接和在线状态不受影响。
+public class ClusterNode {
+    private static final long RECONNECT_MS = 1000;
+    private static final long VERIFY_TIMEOUT_MS = 10_000;
+    private static final int REQUEST_WORKERS = 16;
+    private static final int LINK_QUEUE = 65536;
+    private static final int HELLO_TIMEOUT_MS = 5000;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final ChatServer server;
+    private final String nodeId;
+    private final Map<String, InetSocketAddress> members; // 含本节点
+    private final byte[] secret;
+    private final String dataNode;
+    private final ConcurrentHashMap<String, Link> links = new ConcurrentHashMap<>();
+    // 账号 -> 所在的其它节点（有多个时记代数最大的）
+    private final ConcurrentHashMap<String, Location> where = new ConcurrentHashMap<>();
+
+    private static final class Location {
+        final String node;
+        final long gen;
+
+        Location(String node, long gen) {
+            this.node = node;
+            this.gen = gen;
+        }
+    }
+
+    private final AtomicLong nextId = new AtomicLong();
+    // 发给数据节点、还没等到回复的登录校验
+    private final ConcurrentHashMap<Long, CompletableFuture<Boolean>> verifying = new ConcurrentHashMap<>();
+    // 本节点上把请求转给数据节点的连接：会话编号 <-> 连接
+    private final ConcurrentHashMap<ClientHandler, Long> sids = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, ClientHandler> proxied = new ConcurrentHashMap<>();
+    // 数据节点上执行其它节点转来的请求
+    private ExecutorService workers;
+
+    // dataNode 为 null 时取成员列表里的第一个
+    public ClusterNode(ChatServer server, String nodeId, Map<String, InetSocketAddress> members, String secret,
+                       String dataNode) {
+        if (!members.containsKey(nodeId)) throw new IllegalArgumentException("集群成员里没有本节点: " + nodeId);
+        if (secret == null || secret.isEmpty()) throw new IllegalArgumentException("集群需要共享密钥");
+        if (dataNode == null) dataNode = members.keySet().iterator().next();
+        if (!members.containsKey(dataNode)) throw new IllegalArgumentException("集群成员里没有数据节点: " + dataNode);
+        this.server = server;
+        this.nodeId = nodeId;
+        this.members = members;
+        this.secret = secret.getBytes(StandardCharsets.UTF_8);
+        this.dataNode = dataNode;
+    }
+
+    // "n1@127.0.0.1:9101,n2@127.0.0.1:9102"
+    public static Map<String, InetSocketAddress> parseMembers(String spec) {
+        Map<String, InetSocketAddress> m = new LinkedHashMap<>();
+        for (String part : spec.split(",")) {
+            part = part.trim();
+            if (part.isEmpty()) continue;
+            int at = part.indexOf('@');
+            int colon = part.lastIndexOf(':');
+            if (at <= 0 || colon < at) throw new IllegalArgumentException("bad cluster member: " + part);
+            m.put(part.substring(0, at), new InetSocketAddress(part.substring(at + 1, colon),
+                    Integer.parseInt(part.substring(colon + 1))));
+        }
+        return m;
+    }
+
+    public String nodeId() {
+        return nodeId;
+    }
+
+    public boolean isDataNode() {
+        return nodeId.equals(dataNode);
+    }
+
+    public void start() throws IOException {
+        if (isDataNode()) {
+            AtomicInteger n = new AtomicInteger();
+            workers = Executors.newFixedThreadPool(REQUEST_WORKERS, r -> {
+                Thread t = new Thread(r, "cluster-req-" + n.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        InetSocketAddress self = members.get(nodeId);
+        ServerSocket ss = new ServerSocket(self.getPort(), 50, self.getAddress());
+        Thread acceptor = new Thread(() -> {
+            while (true) {
+                try {
+                    Socket s = ss.accept();
+                    s.setTcpNoDelay(true);
+                    s.setSoTimeout(HELLO_TIMEOUT_MS);
+                    new Link(s, null).start();
+                } catch (IOException e) {
+                    System.err.println("cluster accept: " + e.getMessage());
+                }
+            }
+        }, "cluster-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        ScheduledExecutorService dialer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "cluster-dial");
+            t.setDaemon(true);
+            return t;
+        });
+        dialer.scheduleWithFixedDelay(this::dialAll, 0, RECONNECT_MS, TimeUnit.MILLISECONDS);
+        System.out.println("Cluster node " + nodeId + " listening on " + self + ", members " + members.keySet()
+                + ", data node " + dataNode);
+    }
+
+    // 只连 id 比自己大的成员，每对节点之间只有一条链路
+    private void dialAll() {
+        for (Map.Entry<String, InetSocketAddress> e : members.entrySet()) {
+            String id = e.getKey();
+            if (id.compareTo(nodeId) <= 0 || links.containsKey(id)) continue;
+            Socket s = new Socket();
+            try {
+                s.connect(e.getValue(), 1000);
+                s.setTcpNoDelay(true);
+                s.setSoTimeout(HELLO_TIMEOUT_MS);
+                new Link(s, id).start();
+            } catch (IOException ex) {
+                try { s.close(); } catch (IOException ignore) {}
+            }
+        }
+    }
+
+    // ---- 给 ChatServer 用 ----
+
+    // 本节点上的会话有了/没了：告诉所有节点
+    public void announce(String user, boolean on, long gen) {
+        for (Link l : links.values()) l.announce(user, on, gen);
+    }
+
+    // user 在本节点新登录的代数。local 是本节点上现有的会话：顶号不会再发 CLUSTER_ON，
+    // 沿用它的代数，其它节点记着的就还是对的
+    public long nextGen(String user, ClientHandler local) {
+        Location loc = where.get(user);
+        long gen = loc == null ? 1 : loc.gen + 1;
+        return local != null ? Math.max(local.loginGen(), gen) : gen;
+    }
+
+    // 把消息转给 user 所在的其它节点；不在任何节点上返回 false
+    public boolean forward(String user, Message m) {
+        Location loc = where.get(user);
+        if (loc == null) return false;
+        Link l = links.get(loc.node);
+        return l != null && l.send(m);
+    }
+
+    // user 所在的其它节点，不在别处在线返回 null
+    public String nodeOf(String user) {
+        Location loc = where.get(user);
+        return loc == null ? null : loc.node;
+    }
+
+    // 群消息按节点分好的收件人转发出去，每个节点一帧
+    public void forwardRoom(Message m, Map<String, List<String>> byNode) {
+        for (Map.Entry<String, List<String>> e : byNode.entrySet()) {
+            Link l = links.get(e.getKey());
+            if (l == null) continue;
+            Message f = Message.of("CLUSTER_ROOM", m.from, m.to, m.content);
+            f.timestamp = m.timestamp;
+            f.data = String.join(",", e.getValue()) + "\n" + (m.data == null ? "" : m.data);
+            l.send(f);
+        }
+    }
+
+    // 状态变化按节点分好的好友名单推出去
+    public void pushStatus(String user, String status, Map<String, List<String>> byNode) {
+        for (Map.Entry<String, List<String>> e : byNode.entrySet()) {
+            Link l = links.get(e.getKey());
+            if (l == null) continue;
+            Message f = Message.of("CLUSTER_STATUS", nodeId, "", user);
+            f.data = "status=" + status + ";rcpt=" + String.join(",", e.getValue());
+            l.send(f);
+        }
+    }
+
+    public boolean isOnlineElsewhere(String user) {
+        return where.containsKey(user);
+    }
+
+    // ---- 不是数据节点时：校验、请求、状态推送交给数据节点 ----
+
+    public CompletableFuture<Boolean> verify(String user, String password) {
+        CompletableFuture<Boolean> f = new CompletableFuture<>();
+        Link l = links.get(dataNode);
+        if (l == null) {
+            f.completeExceptionally(new IOException("数据节点 " + dataNode + " 不可用"));
+            return f;
+        }
+        long id = nextId.incrementAndGet();
+        verifying.put(id, f);
+        f.whenComplete((ok, err) -> verifying.remove(id));
+        Message m = Message.of("CLUSTER_VERIFY", nodeId, user, password);
+        m.data = "id=" + id;
+        if (!l.send(m)) f.completeExceptionally(new IOException("数据节点 " + dataNode + " 不可用"));
+        return f.orTimeout(VERIFY_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    // h 的请求交给数据节点执行；链路不通返回 false
+    public boolean forwardRequest(ClientHandler h, Message m) {
+        Link l = links.get(dataNode);
+        if (l == null) return false;
+        long sid = sids.computeIfAbsent(h, k -> {
+            long id = nextId.incrementAndGet();
+            proxied.put(id, k);
+            return id;
+        });
+        Message f = Message.of("CLUSTER_REQ", nodeId, h.getUsername(), SimpleJson.toJson(m));
+        f.data = "sid=" + sid + ";login_at=" + h.loginAt();
+        return l.send(f);
+    }
+
+    // 本节点上的连接断了：数据节点上它的代理会话也不要了
+    public void sessionClosed(ClientHandler h) {
+        Long sid = sids.remove(h);
+        if (sid == null) return;
+        proxied.remove(sid);
+        Link l = links.get(dataNode);
+        if (l == null) return;
+        Message m = Message.of("CLUSTER_BYE", nodeId, "", "");
+        m.data = "sid=" + sid;
+        l.send(m);
+    }
+
+    public void publish(String user, String status) {
+        Link l = links.get(dataNode);
+        if (l == null) return;
+        Message m = Message.of("CLUSTER_PUBLISH", nodeId, "", user);
+        m.data = "status=" + status;
+        l.send(m);
+    }
+
+    // ---- 收到其它节点的消息 ----
+
+    private void onRemoteOn(Link link, String user, long gen) {
+        if (gen <= 0) {
+            System.err.println("cluster: ignore CLUSTER_ON " + user + " from " + link.node + ", bad gen");
+            return;
+        }
+        link.users.add(user);
+        where.merge(user, new Location(link.node, gen), (o, n) -> n.gen >= o.gen ? n : o);
+        server.sessions().remote(user, link.node, true);
+        // 本节点也有这个账号：代数小的一方下线
+        ClientHandler h = server.online.get(user);
+        if (h != null && (h.loginGen() < gen || (h.loginGen() == gen && nodeId.compareTo(link.node) < 0))) {
+            h.send(Message.of("KICK", "server", user, "账号在别处登录，你已下线"));
+            server.metrics.kicks.increment();
+            server.kick(h);
+        }
+    }
+
+    // lost 为 true 表示链路断了（对方没法再推送下线，由本节点推）
+    private void onRemoteOff(Link link, String user, boolean lost) {
+        link.users.remove(user);
+        where.computeIfPresent(user, (k, loc) -> loc.node.equals(link.node) ? null : loc);
+        if (lost) server.sessions().remoteLost(user, link.node);
+        else server.sessions().remote(user, link.node, false);
+    }
+
+    // ---- 数据节点上 ----
+
+    private void onVerify(Link link, Message m) {
+        String id = BinaryCodec.opt(m.data, "id");
+        server.users.verifyAsync(m.to, m.content).whenComplete((ok, err) -> {
+            Message res = Message.of("CLUSTER_VERIFY_RES", nodeId, "", "");
+            res.data = "id=" + id + ";ok=" + (err != null ? "err" : ok ? "1" : "0");
+            link.send(res);
+        });
+    }
+
+    private void onRequest(Link link, Message f) {
+        long sid = longOpt(f.data, "sid");
+        Message m = SimpleJson.fromJson(f.content);
+        if (sid <= 0 || !ClientHandler.DATA_TYPES.contains(m.type)) return;
+        RemoteSession s = link.remote.computeIfAbsent(sid, k -> new RemoteSession(link, k, f.to, longOpt(f.data, "login_at")));
+        if (s.getUsername().equals(f.to)) s.submit(m);
+    }
+
+    // 其它节点上一个已登录连接在数据节点上的代表：执行它转来的请求，回复经链路发回去
+    private final class RemoteSession extends ClientHandler {
+        private final Link link;
+        private final long sid;
+        private final ConcurrentLinkedQueue<Message> pending = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger pendingCount = new AtomicInteger();
+
+        RemoteSession(Link link, long sid, String user, long loginAt) {
+            super(ClusterNode.this.server, user, loginAt);
+            this.link = link;
+            this.sid = sid;
+        }
+
+        @Override
+        protected boolean isProxy() {
+            return true;
+        }
+
+        @Override
+        public void send(Message m) {
+            Message f = Message.of("CLUSTER_RES", nodeId, getUsername(), SimpleJson.toJson(m));
+            f.data = "sid=" + sid;
+            link.send(f);
+        }
+
+        @Override
+        public void send(SharedFrame f) {
+            send(f.message());
+        }
+
+        // 连接在对方节点上，这里没有可关的
+        @Override
+        public void close() {
+        }
+
+        @Override
+        protected void abort() {
+        }
+
+        // 同一会话的请求按到达顺序执行，同一时刻最多一个线程在跑
+        void submit(Message m) {
+            pending.add(m);
+            if (pendingCount.getAndIncrement() == 0) workers.execute(this::runPending);
+        }
+
+        private void runPending() {
+            do {
+                Message m = pending.poll();
+                try {
+                    dispatch(m);
+                } catch (RuntimeException e) {
+                    System.err.println("cluster request " + m.type + " from " + link.node + ": " + e);
+                }
+            } while (pendingCount.decrementAndGet() > 0);
+        }
+    }
+
+    // ---- 回到发起的节点 ----
+
+    private void onResponse(Message f) {
+        ClientHandler h = proxied.get(longOpt(f.data, "sid"));
+        if (h != null) h.send(SimpleJson.fromJson(f.content));
+    }
+
+    private void onVerifyResult(Message m) {
+        CompletableFuture<Boolean> f = verifying.get(longOpt(m.data, "id"));
+        if (f == null) return;
+        String ok = BinaryCodec.opt(m.data, "ok");
+        if ("1".equals(ok) || "0".equals(ok)) f.complete("1".equals(ok));
+        else f.completeExceptionally(new IOException("数据节点校验失败"));
+    }
+
+    private static long longOpt(String data, String key) {
+        try {
+            String v = BinaryCodec.opt(data, key);
+            return v == null ? 0 : Long.parseLong(v);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static long genOf(String data) {
+        try {
+            String v = BinaryCodec.opt(data, "gen");
+            return v == null ? 0 : Long.parseLong(v);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    // 握手应答：id 节点对 challenge（对方的 nonce）的回答，带上自己的 nonce
+    private String authTag(String id, String challenge, String own) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+            String msg = id + "\n" + challenge + "\n" + own;
+            return HexFormat.of().formatHex(mac.doFinal(msg.getBytes(StandardCharsets.UTF_8)));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String newNonce() {
+        byte[] b = new byte[16];
+        RANDOM.nextBytes(b);
+        return HexFormat.of().formatHex(b);
+    }
+
+    private void onRemoteRoom(Message f) {
+        int nl = f.data.indexOf('\n');
+        if (nl < 0) return;
+        Message m = Message.of("ROOM_CHAT", f.from, f.to, f.content);
+        m.timestamp = f.timestamp;
+        m.data = f.data.substring(nl + 1);
+        server.deliverRoomLocal(m, Arrays.asList(f.data.substring(0, nl).split(",")));
+    }
+
+    private void deliverLocal(Message m) {
+        ClientHandler h = server.online.get(m.to);
+        if (h != null) h.send(m);
+    }
+
+    // 与一个节点之间的链路：一个读线程、一个写线程，发送走有界队列
+    private final class Link {
+        final Socket socket;
+        final OutboundQueue outbox = new OutboundQueue(LINK_QUEUE, OutboundQueue.Overflow.DISCONNECT);
+        // 发全量在线列表时挡住增量通知，保证对方看到的先后顺序正确
+        final ReentrantLock announceLock = new ReentrantLock();
+        final Set<String> users = ConcurrentHashMap.newKeySet();
+        // 数据节点上：对方节点各会话的代理
+        final ConcurrentHashMap<Long, RemoteSession> remote = new ConcurrentHashMap<>();
+        final String nonce = newNonce();
+        volatile String node;
+        private String peerId, peerNonce; // 收到的 HELLO，只在读线程访问
+
+        Link(Socket socket, String node) {
+            this.socket = socket;
+            this.node = node;
+        }
+
+        void start() {
+            Thread r = new Thread(this::readLoop, "cluster-link-read");
+            r.setDaemon(true);
+            r.start();
+            Thread w = new Thread(this::writeLoop, "cluster-link-write");
+            w.setDaemon(true);
+            w.start();
+            Message hello = Message.of("CLUSTER_HELLO", nodeId, "", "");
+            hello.data = "nonce=" + nonce;
+            send(hello);
+        }
+
+        boolean send(Message m) {
+            return send(BinaryCodec.encode(m));
+        }
+
+        boolean send(byte[] frame) {
+            if (outbox.offer(frame)) return true;
+            // 对方太慢或已断：断开链路，由重连 + 全量同步恢复
+            close();
+            return false;
+        }
+
+        void announce(String user, boolean on, long gen) {
+            announceLock.lock();
+            try {
+                Message m = Message.of(on ? "CLUSTER_ON" : "CLUSTER_OFF", nodeId, "", user);
+                m.data = "gen=" + gen;
+                send(m);
+            } finally {
+                announceLock.unlock();
+            }
+        }
+
+        // 对方报了 id 以后登记链路并发全量在线列表
+        private boolean register(String id) {
+            if (id.equals(nodeId) || !members.containsKey(id)) return false;
+            node = id;
+            announceLock.lock();
+            try {
+                if (links.putIfAbsent(id, this) != null) return false; // 已有链路
+                for (ClientHandler h : server.online.values()) {
+                    String u = h.getUsername();
+                    if (u == null) continue;
+                    Message m = Message.of("CLUSTER_ON", nodeId, "", u);
+                    m.data = "gen=" + h.loginGen();
+                    send(m);
+                }
+            } finally {
+                announceLock.unlock();
+            }
+            System.out.println("Cluster link up: " + nodeId + " <-> " + id);
+            return true;
+        }
+
+        private void readLoop() {
+            boolean registered = false;
+            try {
+                FrameReader in = new FrameReader(socket.getInputStream());
+                Message m;
+                while ((m = in.read()) != null) {
+                    switch (m.type) {
+                        case "CLUSTER_HELLO" -> {
+                            if (peerId != null || (node != null && !node.equals(m.from))) return;
+                            String n = BinaryCodec.opt(m.data, "nonce");
+                            if (n == null || n.length() < 32 || m.from.equals(nodeId) || !members.containsKey(m.from)) return;
+                            peerId = m.from;
+                            peerNonce = n;
+                            Message auth = Message.of("CLUSTER_AUTH", nodeId, "", "");
+                            auth.data = "auth=" + authTag(nodeId, peerNonce, nonce);
+                            send(auth);
+                        }
+                        case "CLUSTER_AUTH" -> {
+                            if (peerId == null || registered) return;
+                            String auth = BinaryCodec.opt(m.data, "auth");
+                            if (auth == null || !MessageDigest.isEqual(auth.getBytes(StandardCharsets.UTF_8),
+                                    authTag(peerId, nonce, peerNonce).getBytes(StandardCharsets.UTF_8))) {
+                                System.err.println("cluster: bad AUTH from " + socket.getRemoteSocketAddress());
+                                return;
+                            }
+                            if (!register(peerId)) return;
+                            registered = true;
+                            socket.setSoTimeout(0); // 握手完成后不再限时，链路可以长时间空闲
+                        }
+                        case "CLUSTER_ON" -> {
+                            if (registered) onRemoteOn(this, m.content, genOf(m.data));
+                        }
+                        case "CLUSTER_OFF" -> {
+                            if (registered) onRemoteOff(this, m.content, false);
+                        }
+                        case "CLUSTER_ROOM" -> {
+                            if (registered) onRemoteRoom(m);
+                        }
+                        case "CLUSTER_PUBLISH" -> {
+                            String status = BinaryCodec.opt(m.data, "status");
+                            if (registered && isDataNode() && status != null) server.broadcastStatus(m.content, status);
+                        }
+                        case "CLUSTER_VERIFY" -> {
+                            if (registered && isDataNode()) onVerify(this, m);
+                        }
+                        case "CLUSTER_REQ" -> {
+                            if (registered && isDataNode()) onRequest(this, m);
+                        }
+                        case "CLUSTER_BYE" -> {
+                            if (registered) remote.remove(longOpt(m.data, "sid"));
+                        }
+                        case "CLUSTER_VERIFY_RES" -> {
+                            if (registered && dataNode.equals(node)) onVerifyResult(m);
+                        }
+                        case "CLUSTER_RES" -> {
+                            if (registered && dataNode.equals(node)) onResponse(m);
+                        }
+                        case "CLUSTER_STATUS" -> {
+                            String status = BinaryCodec.opt(m.data, "status");
+                            String rcpt = BinaryCodec.opt(m.data, "rcpt");
+                            if (registered && status != null && rcpt != null) {
+                                server.pushStatusLocal(m.content, status, Arrays.asList(rcpt.split(",")));
+                            }
+                        }
+                        default -> {
+                            if (registered) deliverLocal(m);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                // 链路断开
+            } finally {
+                close();
+                if (registered) down();
+            }
+        }
+
+        private void writeLoop() {
+            try {
+                OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+                byte[] f;
+                while ((f = outbox.take()) != null) {
+                    out.write(f);
+                    if (outbox.isEmpty()) out.flush();
+                }
+            } catch (IOException | InterruptedException e) {
+                // 链路断开
+            } finally {
+                close();
+            }
+        }
+
+        void close() {
+            outbox.close();
+            outbox.clear();
+            try { socket.close(); } catch (IOException ignore) {}
+        }
+
+        // 链路没了：对方节点上的账号都当作已下线
+        private void down() {
+            links.remove(node, this);
+            System.out.println("Cluster link down: " + nodeId + " <-> " + node);
+            remote.clear();
+            if (dataNode.equals(node)) {
+                for (CompletableFuture<Boolean> f : verifying.values()) {
+                    f.completeExceptionally(new IOException("数据节点 " + dataNode + " 断开"));
+                }
+            }
+            for (String u : users) onRemoteOff(this, u, true);
+        }
+    }
+}
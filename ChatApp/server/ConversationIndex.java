@@ -0,0 +1,214 @@
+package server;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+// 每个用户参与的会话及其概况（最后消息时间、条数、字节数），HIS_LIST 直接查这里，不再扫 history 目录。
+// 记录真正写入（引擎回调）/删除时更新；定期和关闭时存成 history/conversations.idx（检查点），
+// 每个会话带上纪元和最后一条的游标。启动时读回来，只补扫检查点之后追加的记录，纪元对不上（删过重建）的会话重扫；
+// 文件不在（第一次启动）或对不上当前引擎就从存储引擎并行扫一遍重建。
+public class ConversationIndex {
+    private static final AtomicLong INCARNATIONS = new AtomicLong();
+
+    public static final class Stat {
+        public final long lastTs;
+        public final long count;
+        public final long bytes;
+        final long lastOff;  // 最后一条记录的游标
+        final long inc;      // 会话这一“辈”的编号：删掉重建后换新，取纪元时据此判断是不是同一个会话
+        final String epoch;  // 会话纪元，检查点用；还没取过为 null
+
+        Stat(long lastTs, long count, long bytes, long lastOff, long inc, String epoch) {
+            this.lastTs = lastTs;
+            this.count = count;
+            this.bytes = bytes;
+            this.lastOff = lastOff;
+            this.inc = inc;
+            this.epoch = epoch;
+        }
+    }
+
+    private final Path file;
+    private final ConcurrentHashMap<String, Stat> stats = new ConcurrentHashMap<>();
+    // 用户 -> 他参与的会话键
+    private final ConcurrentHashMap<String, Set<String>> byUser = new ConcurrentHashMap<>();
+
+    public ConversationIndex(Path file) {
+        this.file = file;
+    }
+
+    // 会话键 a__b 的两个账号；格式不对返回 null。账号名不含 "__" 且不以 _ 开头结尾（UserStore.validName），
+    // 所以第一个 "__" 就是分隔符
+    static String[] usersOf(String key) {
+        int at = key.indexOf("__");
+        if (at <= 0 || at + 2 >= key.length()) return null;
+        return new String[]{key.substring(0, at), key.substring(at + 2)};
+    }
+
+    // 引擎回调：一条记录写入了。游标不大于已计入的最后一条时是补扫重叠的部分，跳过
+    public void onRecord(String key, long offset, long ts, long bytes) {
+        stats.compute(key, (k, o) -> {
+            if (o == null) return new Stat(ts, 1, bytes, offset, INCARNATIONS.incrementAndGet(), null);
+            if (offset <= o.lastOff) return o;
+            return new Stat(Math.max(o.lastTs, ts), o.count + 1, o.bytes + bytes, offset, o.inc, o.epoch);
+        });
+        link(key);
+    }
+
+    public void onDelete(String key) {
+        stats.remove(key);
+        String[] us = usersOf(key);
+        if (us == null) return;
+        for (String u : us) {
+            Set<String> s = byUser.get(u);
+            if (s != null) s.remove(key);
+        }
+    }
+
+    private void link(String key) {
+        String[] us = usersOf(key);
+        if (us == null) return;
+        for (String u : us) byUser.computeIfAbsent(u, k -> ConcurrentHashMap.newKeySet()).add(key);
+    }
+
+    // user 的全部会话，最近活跃的在前
+    public List<Map.Entry<String, Stat>> list(String user) {
+        List<Map.Entry<String, Stat>> out = new ArrayList<>();
+        Set<String> keys = byUser.get(user);
+        if (keys == null) return out;
+        for (String k : keys) {
+            Stat s = stats.get(k);
+            if (s != null) out.add(Map.entry(k, s));
+        }
+        out.sort((a, b) -> Long.compare(b.getValue().lastTs, a.getValue().lastTs));
+        return out;
+    }
+
+    // 没有记录（或索引里没有）返回 null
+    public Stat stat(String key) {
+        return stats.get(key);
+    }
+
+    public Set<String> keysOf(String user) {
+        Set<String> keys = byUser.get(user);
+        return keys == null ? Collections.emptySet() : keys;
+    }
+
+    public int size() {
+        return stats.size();
+    }
+
+    // 有检查点就读进来再补扫之后的记录，否则从引擎重建；返回 true 表示是重建的
+    public boolean load(HistoryEngine engine, int threads) throws IOException, InterruptedException {
+        stats.clear();
+        byUser.clear();
+        boolean loaded = readCheckpoint(engine);
+        catchUp(engine, threads);
+        return !loaded;
+    }
+
+    private boolean readCheckpoint(HistoryEngine engine) throws IOException {
+        if (!Files.exists(file)) return false;
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        // 第一行是写检查点时的引擎：游标只对同一种引擎有效。没有这行的是旧版本留下的，不用
+        if (lines.isEmpty() || !lines.get(0).equals("#engine=" + engine.getClass().getSimpleName())) return false;
+        for (String line : lines.subList(1, lines.size())) {
+            String[] p = line.split("\t");
+            if (p.length < 6) continue;
+            stats.put(p[0], new Stat(Long.parseLong(p[1]), Long.parseLong(p[2]), Long.parseLong(p[3]),
+                    Long.parseLong(p[4]), INCARNATIONS.incrementAndGet(), p[5]));
+            link(p[0]);
+        }
+        return true;
+    }
+
+    // 检查点之后的记录补进来：纪元对得上的会话从最后一条往后扫，其余的从头扫；引擎里已经没有的去掉
+    private void catchUp(HistoryEngine engine, int threads) throws InterruptedException {
+        List<String> keys = engine.keys();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+        try {
+            List<Future<?>> fs = new ArrayList<>();
+            for (String key : keys) {
+                fs.add(pool.submit(() -> {
+                    try {
+                        Stat s = stats.get(key);
+                        if (s != null && !s.epoch.equals(engine.epoch(key))) {
+                            onDelete(key);
+                            s = null;
+                        }
+                        long from = s == null ? 0 : s.lastOff;
+                        long last = s == null ? -1 : s.lastOff;
+                        long[] acc = new long[4]; // lastTs, count, bytes, lastOff
+                        acc[3] = last;
+                        engine.scan(key, from, (k, off, ts, rec) -> {
+                            if (off <= last) return;
+                            acc[0] = Math.max(acc[0], ts);
+                            acc[1]++;
+                            acc[2] += rec.length;
+                            acc[3] = off;
+                        });
+                        if (acc[1] == 0) return;
+                        Stat o = s;
+                        stats.put(key, o == null
+                                ? new Stat(acc[0], acc[1], acc[2], acc[3], INCARNATIONS.incrementAndGet(), null)
+                                : new Stat(Math.max(o.lastTs, acc[0]), o.count + acc[1], o.bytes + acc[2], acc[3],
+                                        o.inc, o.epoch));
+                        link(key);
+                    } catch (IOException e) {
+                        System.err.println("conversation index: skip " + key + ": " + e.getMessage());
+                    }
+                }));
+            }
+            for (Future<?> f : fs) {
+                try {
+                    f.get();
+                } catch (ExecutionException e) {
+                    System.err.println("conversation index: " + e.getCause());
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+        Set<String> live = new HashSet<>(keys);
+        for (String key : new ArrayList<>(stats.keySet())) {
+            if (!live.contains(key)) onDelete(key);
+        }
+    }
+
+    // 存检查点（定期和关闭时调用；先写临时文件再原子替换）。上次检查点之后新出现的会话在这里向引擎取纪元，
+    // 取的过程中被删掉重建了（换了一辈）的这次不存，下次启动从头扫
+    public synchronized void save(HistoryEngine engine) {
+        StringBuilder sb = new StringBuilder("#engine=").append(engine.getClass().getSimpleName()).append('\n');
+        for (Map.Entry<String, Stat> e : stats.entrySet()) {
+            String key = e.getKey();
+            Stat s = e.getValue();
+            if (s.epoch == null) {
+                String epoch;
+                try {
+                    epoch = engine.epoch(key);
+                } catch (IOException ex) {
+                    continue;
+                }
+                if ("0".equals(epoch)) continue;
+                long inc = s.inc;
+                Stat cur = stats.computeIfPresent(key, (k, o) -> o.inc != inc ? o
+                        : new Stat(o.lastTs, o.count, o.bytes, o.lastOff, o.inc, epoch));
+                if (cur == null || cur.inc != inc) continue;
+                s = cur;
+            }
+            sb.append(key).append('\t').append(s.lastTs).append('\t').append(s.count)
+                    .append('\t').append(s.bytes).append('\t').append(s.lastOff).append('\t').append(s.epoch)
+                    .append('\n');
+        }
+        Path tmp = Paths.get(file + ".tmp");
+        try {
+            Files.writeString(tmp, sb.toString(), StandardCharsets.UTF_8);
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("conversation index save: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package server;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Deflater;
+import protocol.BinaryCodec;
+
+// 出站帧压缩（登录时协商 deflate 的二进制连接）：帧长不小于阈值才压，逐帧独立 deflate，
+// 这样群发时压好的帧也能在多个连接之间共享。按消息类型统计压缩率和耗时，用来调阈值。
+public class FrameCompressor {
+    private static final class Stat {
+        final LongAdder frames = new LongAdder();  // 压过的帧
+        final LongAdder skipped = new LongAdder(); // 低于阈值没压的帧
+        final LongAdder rawBytes = new LongAdder();
+        final LongAdder outBytes = new LongAdder();
+        final LongAdder nanos = new LongAdder();
+    }
+
+    private final int minBytes;
+    private final int level;
+    private final ConcurrentHashMap<String, Stat> stats = new ConcurrentHashMap<>();
+
+    public FrameCompressor(int minBytes, int level) {
+        this.minBytes = minBytes;
+        this.level = level < 0 ? Deflater.DEFAULT_COMPRESSION : Math.min(level, Deflater.BEST_COMPRESSION);
+    }
+
+    public int minBytes() {
+        return minBytes;
+    }
+
+    // frame 为已编码好的二进制帧；够大就返回压缩帧（压完不更小时仍返回原帧）
+    public byte[] compress(String type, byte[] frame) {
+        Stat s = stats.computeIfAbsent(type == null ? "" : type, k -> new Stat());
+        if (frame.length < minBytes) {
+            s.skipped.increment();
+            return frame;
+        }
+        long t0 = System.nanoTime();
+        byte[] out = BinaryCodec.deflate(frame, level);
+        s.nanos.add(System.nanoTime() - t0);
+        s.frames.increment();
+        s.rawBytes.add(frame.length);
+        s.outBytes.add(out.length);
+        return out;
+    }
+
+    // 每种类型一行：压过的帧数、没压的帧数、原始/压缩后字节、压缩率、平均每帧耗时
+    public String report() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%-16s %8s %8s %12s %12s %7s %9s%n",
+                "type", "frames", "skipped", "raw", "deflated", "ratio", "us/frame"));
+        Map<String, Stat> sorted = new TreeMap<>(stats);
+        for (Map.Entry<String, Stat> e : sorted.entrySet()) {
+            Stat s = e.getValue();
+            long n = s.frames.sum();
+            long raw = s.rawBytes.sum();
+            long out = s.outBytes.sum();
+            sb.append(String.format("%-16s %8d %8d %12d %12d %7s %9s%n", e.getKey(), n, s.skipped.sum(), raw, out,
+                    raw == 0 ? "-" : String.format("%.3f", (double) out / raw),
+                    n == 0 ? "-" : String.format("%.1f", s.nanos.sum() / 1e3 / n)));
+        }
+        return sb.toString();
+    }
+}
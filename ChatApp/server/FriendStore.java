@@ -1,68 +1,234 @@
 package server;
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
 
+// 好友关系常驻内存：读不加锁、不碰磁盘。
+// 持久化 = 快照文件（friends_db.txt，原格式 user:f1,f2|备注）+ 追加日志（friends_db.txt.log）。
+// 每次修改只往日志追加一行；日志够长时把内存状态写成新快照并清空日志。启动时 快照 + 重放日志 恢复。
 public class FriendStore {
+    private static final int COMPACT_EVERY = 10_000; // 日志累计多少条后压缩
+
     private final Path dbPath;
+    private final Path logPath;
+    private final ReentrantLock lock = new ReentrantLock(); // 只串行化写操作
+    // 账号 -> 好友项列表（不可变，整体替换），项为 "账号" 或 "账号|备注"
+    private final ConcurrentHashMap<String, List<String>> friends = new ConcurrentHashMap<>();
+    // 反向索引：账号 -> 把该账号加为好友的人（状态变化只推给他们）
+    private final ConcurrentHashMap<String, Set<String>> subscribers = new ConcurrentHashMap<>();
+    private Writer log;
+    private int logRecords = 0;
+    private final Metrics metrics;
 
     public FriendStore(String file) {
+        this(file, new Metrics());
+    }
+
+    public FriendStore(String file, Metrics metrics) {
+        this.metrics = metrics;
         this.dbPath = Paths.get(file);
+        this.logPath = Paths.get(file + ".log");
         initIfMissing();
+        recover();
     }
 
     private void initIfMissing() {
         try {
-            if (!Files.exists(dbPath)) {
-                Files.createFile(dbPath);
-                // 默认给每个用户初始化空好友列表
-                for (String u : UserStore.allUsers()) {
-                    Files.writeString(dbPath, u + ":\n", StandardOpenOption.APPEND);
+            // 没有好友的账号不占行，查不到就是空列表
+            if (!Files.exists(dbPath)) Files.createFile(dbPath);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // 快照 + 重放日志；日志里的每种记录都是幂等的，压缩中途崩溃重放也不会出错
+    private void recover() {
+        friends.putAll(readSnapshot());
+        boolean replayed = false;
+        try {
+            if (Files.exists(logPath)) {
+                replayed = true;
+                for (String line : Files.readAllLines(logPath, StandardCharsets.UTF_8)) {
+                    String[] p = line.split("\t", -1);
+                    if (p.length < 3) continue; // 崩溃时写了一半的最后一行
+                    switch (p[0]) {
+                        case "A" -> applyAdd(p[1], p[2]);
+                        case "R" -> { if (p.length >= 4) applyRemark(p[1], p[2], p[3]); }
+                        case "D" -> applyDelete(p[1], p[2]);
+                        default -> { }
+                    }
                 }
             }
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
+        for (Map.Entry<String, List<String>> e : friends.entrySet()) {
+            for (String item : e.getValue()) subscribe(e.getKey(), accountOf(item));
+        }
+        if (replayed) {
+            lock.lock();
+            try {
+                compact(); // 启动时顺便把日志合进快照
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    public List<String> listFriends(String user) {
+        long t0 = System.nanoTime();
+        List<String> fs = friends.getOrDefault(user, List.of());
+        metrics.friendRead.record(System.nanoTime() - t0);
+        return fs;
     }
 
-    public synchronized List<String> listFriends(String user) {
-        Map<String, List<String>> all = readAll();
-        return new ArrayList<>(all.getOrDefault(user, new ArrayList<>()));
+    // 谁会关心 user 的上下线（只读快照，无锁）
+    public Set<String> subscribersOf(String user) {
+        long t0 = System.nanoTime();
+        Set<String> s = subscribers.get(user);
+        metrics.friendRead.record(System.nanoTime() - t0);
+        return s == null ? Collections.emptySet() : s;
     }
 
-    public synchronized void addFriend(String user, String friend) {
-        Map<String, List<String>> all = readAll();
-        all.putIfAbsent(user, new ArrayList<>());
-        if (!all.get(user).contains(friend)) all.get(user).add(friend);
-        writeAll(all);
+    public void addFriend(String user, String friend) {
+        long t0 = System.nanoTime();
+        lock.lock();
+        try {
+            if (applyAdd(user, friend)) {
+                append("A\t" + user + "\t" + friend);
+                subscribe(user, friend);
+            }
+        } finally {
+            lock.unlock();
+            metrics.friendWrite.record(System.nanoTime() - t0);
+        }
     }
 
     // “修改好友”：这里按作业常见理解：重命名/备注。
     // 由于我们是固定账号体系，不允许真正改用户名，所以用“备注名”实现：
     // 约定 friend 以 "账号|备注" 形式保存，例如 bob|室友
-    public synchronized void renameFriendRemark(String user, String friendAccount, String newRemark) {
-        Map<String, List<String>> all = readAll();
-        List<String> fs = all.getOrDefault(user, new ArrayList<>());
-        for (int i = 0; i < fs.size(); i++) {
-            String item = fs.get(i);
-            String acc = item.split("\\|", 2)[0];
-            if (acc.equals(friendAccount)) {
-                fs.set(i, friendAccount + "|" + newRemark);
+    public void renameFriendRemark(String user, String friendAccount, String newRemark) {
+        // 备注里的分隔符会破坏快照/日志格式
+        String remark = newRemark.replaceAll("[\t\r\n,;]", " ");
+        long t0 = System.nanoTime();
+        lock.lock();
+        try {
+            if (applyRemark(user, friendAccount, remark)) {
+                append("R\t" + user + "\t" + friendAccount + "\t" + remark);
+            }
+        } finally {
+            lock.unlock();
+            metrics.friendWrite.record(System.nanoTime() - t0);
+        }
+    }
+
+    public void deleteFriend(String user, String friendAccount) {
+        long t0 = System.nanoTime();
+        lock.lock();
+        try {
+            if (applyDelete(user, friendAccount)) {
+                append("D\t" + user + "\t" + friendAccount);
+                unsubscribe(user, friendAccount);
+            }
+        } finally {
+            lock.unlock();
+            metrics.friendWrite.record(System.nanoTime() - t0);
+        }
+    }
+
+    // ---- 内存修改：复制出新列表再整体替换，读端永远看到完整的列表 ----
+    private boolean applyAdd(String user, String friend) {
+        List<String> fs = friends.getOrDefault(user, List.of());
+        for (String item : fs) {
+            if (accountOf(item).equals(friend)) return false;
+        }
+        List<String> next = new ArrayList<>(fs);
+        next.add(friend);
+        friends.put(user, List.copyOf(next));
+        return true;
+    }
+
+    private boolean applyRemark(String user, String friendAccount, String remark) {
+        List<String> fs = friends.getOrDefault(user, List.of());
+        List<String> next = new ArrayList<>(fs);
+        boolean changed = false;
+        for (int i = 0; i < next.size(); i++) {
+            if (accountOf(next.get(i)).equals(friendAccount)) {
+                next.set(i, friendAccount + "|" + remark);
+                changed = true;
+            }
+        }
+        if (changed) friends.put(user, List.copyOf(next));
+        return changed;
+    }
+
+    private boolean applyDelete(String user, String friendAccount) {
+        List<String> fs = friends.getOrDefault(user, List.of());
+        List<String> next = new ArrayList<>(fs);
+        if (!next.removeIf(item -> accountOf(item).equals(friendAccount))) return false;
+        friends.put(user, List.copyOf(next));
+        return true;
+    }
+
+    private void subscribe(String user, String friend) {
+        subscribers.computeIfAbsent(friend, k -> ConcurrentHashMap.newKeySet()).add(user);
+    }
+
+    private void unsubscribe(String user, String friend) {
+        Set<String> s = subscribers.get(friend);
+        if (s != null) s.remove(user);
+    }
+
+    private static String accountOf(String item) {
+        return item.split("\\|", 2)[0];
+    }
+
+    // ---- 持久化（调用方持有 lock）----
+    private void append(String record) {
+        try {
+            if (log == null) {
+                log = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(logPath.toFile(), true),
+                        StandardCharsets.UTF_8));
             }
+            log.write(record);
+            log.write("\n");
+            log.flush();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
         }
-        all.put(user, fs);
-        writeAll(all);
+        if (++logRecords >= COMPACT_EVERY) compact();
     }
 
-    public synchronized void deleteFriend(String user, String friendAccount) {
-        Map<String, List<String>> all = readAll();
-        List<String> fs = all.getOrDefault(user, new ArrayList<>());
-        fs.removeIf(item -> item.split("\\|", 2)[0].equals(friendAccount));
-        all.put(user, fs);
-        writeAll(all);
+    // 写新快照（先写临时文件再原子替换），然后清空日志
+    private void compact() {
+        List<String> users = new ArrayList<>(friends.keySet());
+        Collections.sort(users);
+        StringBuilder sb = new StringBuilder();
+        for (String u : users) {
+            sb.append(u).append(":").append(String.join(",", friends.get(u))).append("\n");
+        }
+        Path tmp = Paths.get(dbPath + ".tmp");
+        try {
+            Files.writeString(tmp, sb.toString(), StandardCharsets.UTF_8);
+            try (FileOutputStream fos = new FileOutputStream(tmp.toFile(), true)) {
+                fos.getFD().sync();
+            }
+            Files.move(tmp, dbPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            if (log != null) {
+                log.close();
+                log = null;
+            }
+            Files.deleteIfExists(logPath);
+            logRecords = 0;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
     }
 
-    private Map<String, List<String>> readAll() {
+    private Map<String, List<String>> readSnapshot() {
         Map<String, List<String>> map = new LinkedHashMap<>();
         try {
             List<String> lines = Files.readAllLines(dbPath);
@@ -80,32 +246,11 @@ public class FriendStore {
                         if (!t.isEmpty()) fs.add(t);
                     }
                 }
-                map.put(user, fs);
+                map.put(user, List.copyOf(fs));
             }
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
-        // 确保所有内置用户存在
-        for (String u : UserStore.allUsers()) {
-            map.putIfAbsent(u, new ArrayList<>());
-        }
         return map;
     }
-
-    private void writeAll(Map<String, List<String>> map) {
-        StringBuilder sb = new StringBuilder();
-        for (Map.Entry<String, List<String>> e : map.entrySet()) {
-            sb.append(e.getKey()).append(":");
-            for (int i = 0; i < e.getValue().size(); i++) {
-                if (i > 0) sb.append(",");
-                sb.append(e.getValue().get(i));
-            }
-            sb.append("\n");
-        }
-        try {
-            Files.writeString(dbPath, sb.toString(), StandardOpenOption.TRUNCATE_EXISTING);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
-    }
 }
@@ -0,0 +1,57 @@
+package server;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import protocol.Message;
+
+// 心跳与空闲连接回收：半开的 TCP 连接（笔记本休眠、NAT 超时）读不到 EOF，靠它发现。
+// 只管登录时在 LOGIN data 里声明了 ping（会回 PONG）的连接；没声明的旧客户端不发 PING、不回收。
+// 每个连接在时间轮上只挂一个定时器，到点看最后一次收到数据的时刻：
+//   空闲超过 pingInterval：发一个 PING（客户端回 PONG，收到任何帧都算活着），再挂下一次检查；
+//   空闲超过 idleTimeout：当作已断开，走 ChatServer.kick 下线（好友看到离线）并立即关 socket。
+// 连接断开后定时器不取消，下一次到点发现已关闭就不再续挂。
+public class Heartbeat {
+    private final ChatServer server;
+    private final TimingWheel wheel;
+    volatile long pingIntervalMs = 30_000;
+    volatile long idleTimeoutMs = 90_000; // 0 表示不回收
+
+    private final LongAdder pings = new LongAdder();
+    private final LongAdder reaped = new LongAdder();
+
+    public Heartbeat(ChatServer server, TimingWheel wheel) {
+        this.server = server;
+        this.wheel = wheel;
+    }
+
+    // 声明了 ping 的连接登录成功后调用
+    void watch(ClientHandler h) {
+        if (idleTimeoutMs <= 0) return;
+        wheel.schedule(() -> check(h), Math.min(pingIntervalMs, idleTimeoutMs), TimeUnit.MILLISECONDS);
+    }
+
+    private void check(ClientHandler h) {
+        if (h.isClosed()) return;
+        long timeout = idleTimeoutMs;
+        if (timeout <= 0) return;
+        long interval = Math.min(pingIntervalMs, timeout);
+        long idle = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - h.lastRead());
+        if (idle >= timeout) {
+            reaped.increment();
+            server.kick(h);
+            h.abort(); // 对方多半已经不在了，不等发送队列写完
+            return;
+        }
+        long next = interval - idle;
+        if (idle >= interval) {
+            h.send(Message.of("PING", "server", h.getUsername() == null ? "" : h.getUsername(), ""));
+            pings.increment();
+            next = interval;
+        }
+        wheel.schedule(() -> check(h), Math.min(next, timeout - idle), TimeUnit.MILLISECONDS);
+    }
+
+    public String report() {
+        return String.format("heartbeat ping_ms=%d idle_timeout_ms=%d pings=%d reaped=%d%n", pingIntervalMs,
+                idleTimeoutMs, pings.sum(), reaped.sum());
+    }
+}
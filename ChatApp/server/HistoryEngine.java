@@ -0,0 +1,53 @@
+package server;
+import java.io.IOException;
+import java.util.List;
+
+// 聊天记录存储引擎。HistoryStore 负责拼记录行、算会话键（a__b）和协议语义，引擎只管按会话存取字节。
+// 一条记录 = 一行 "[yyyy-MM-dd HH:mm:ss] from -> to: content\n"；游标是引擎自己定义的字节偏移，对外不透明。
+public interface HistoryEngine {
+    // 记录回调：offset 为该记录的游标位置，ts 为毫秒时间
+    interface RecordListener {
+        void onRecord(String key, long offset, long ts, byte[] record);
+    }
+
+    void append(String key, byte[] record, long ts);
+
+    // 整个会话的文本，没有记录返回 null
+    String readAll(String key) throws IOException;
+
+    // cursor 之前（更早）的最多 limit 条；cursor 取 Long.MAX_VALUE 表示从最新开始
+    HistoryStore.Page readBefore(String key, long cursor, int limit) throws IOException;
+
+    // cursor 之后（更新）的最多 limit 条
+    HistoryStore.Page readAfter(String key, long cursor, int limit) throws IOException;
+
+    // 时间 >= ts（毫秒）的最早 limit 条
+    HistoryStore.Page readSince(String key, long ts, int limit) throws IOException;
+
+    // 按游标批量取记录原文（检索核对用），同一会话只加一次锁、只打开一次文件。
+    // offsets 的前 n 个应是记录起点；读不到的位置为 null
+    byte[][] readRecords(String key, long[] offsets, int n) throws IOException;
+
+    // 从游标 from（记录起点，0 为开头）起按顺序遍历某个会话的记录（重建、补建索引用）
+    void scan(String key, long from, RecordListener l) throws IOException;
+
+    default void scan(String key, RecordListener l) throws IOException {
+        scan(key, 0, l);
+    }
+
+    // 每条记录真正写入（位置确定）后回调，用于增量维护索引
+    void setListener(RecordListener l);
+
+    // 会话的创建标识：建会话时生成并保存，删除后再建会换新值；会话不存在时返回 "0"
+    String epoch(String key) throws IOException;
+
+    boolean delete(String key);
+
+    // 所有有记录的会话键
+    List<String> keys();
+
+    void setDurability(HistoryStore.Durability d, long intervalMs);
+
+    // 关闭前把没写出的都写出去
+    void close();
+}
@@ -0,0 +1,152 @@
+package server;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.List;
+
+// 单个会话文件的稀疏索引：大约每 STRIDE 字节记一条（记录起始偏移, 该记录时间戳）。
+// “记录”= 以 "[yyyy-MM-dd HH:mm:ss] " 开头的行；消息内容里的换行产生的续行不算记录起点。
+// 索引项一定落在记录起点上，所以从任意索引项开始定位读都不会切到半条消息。
+public class HistoryIndex {
+    static final int STRIDE = 4096;
+    static final int HEADER_LEN = 22; // "[yyyy-MM-dd HH:mm:ss] "
+
+    private long[] offs = new long[16];
+    private long[] times = new long[16];
+    private int n = 0;
+    private long size = 0; // 已索引到的文件长度
+
+    // 顺序扫一遍文件建索引（只用一块小缓冲，不把整个文件读进堆）
+    static HistoryIndex build(FileChannel ch) throws IOException {
+        HistoryIndex idx = new HistoryIndex();
+        ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+        byte[] hdr = new byte[HEADER_LEN];
+        int hdrLen = -1;     // >=0 表示正在收集某行行首
+        long lineStart = 0;
+        boolean atLineStart = true;
+        long pos = 0;
+        while (ch.read(buf, pos) > 0) {
+            buf.flip();
+            while (buf.hasRemaining()) {
+                byte c = buf.get();
+                if (atLineStart) {
+                    lineStart = pos;
+                    hdrLen = 0;
+                }
+                if (hdrLen >= 0) {
+                    hdr[hdrLen++] = c;
+                    if (hdrLen == HEADER_LEN) {
+                        idx.onRecord(lineStart, hdr, 0);
+                        hdrLen = -1;
+                    } else if (c == '\n') {
+                        hdrLen = -1;
+                    }
+                }
+                atLineStart = c == '\n';
+                pos++;
+            }
+            buf.clear();
+        }
+        idx.size = pos;
+        return idx;
+    }
+
+    // 追加了一批行（每行一条记录），base 为这批写入前的文件长度
+    void onAppend(long base, List<byte[]> lines) {
+        long p = base;
+        for (byte[] line : lines) {
+            if (line.length >= HEADER_LEN) onRecord(p, line, 0);
+            p += line.length;
+        }
+        size = p;
+    }
+
+    private void onRecord(long off, byte[] b, int at) {
+        long ts = parseTime(b, at);
+        if (ts < 0) return;
+        if (n > 0 && off - offs[n - 1] < STRIDE) return;
+        if (n == offs.length) {
+            offs = Arrays.copyOf(offs, n * 2);
+            times = Arrays.copyOf(times, n * 2);
+        }
+        offs[n] = off;
+        times[n] = ts;
+        n++;
+    }
+
+    long size() {
+        return size;
+    }
+
+    int count() {
+        return n;
+    }
+
+    long offsetAt(int i) {
+        return offs[i];
+    }
+
+    // 最后一个偏移 < off 的索引项，没有返回 -1
+    int floorBefore(long off) {
+        int lo = 0, hi = n - 1, ans = -1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (offs[mid] < off) {
+                ans = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return ans;
+    }
+
+    // 最后一个时间 < ts 的索引项，没有返回 0（从头找）
+    int floorTime(long ts) {
+        int lo = 0, hi = n - 1, ans = 0;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (times[mid] < ts) {
+                ans = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return ans;
+    }
+
+    // b[at..] 是否是记录行首
+    static boolean isRecord(byte[] b, int at, int end) {
+        return end - at >= HEADER_LEN && parseTime(b, at) >= 0;
+    }
+
+    // 解析 "[yyyy-MM-dd HH:mm:ss] "，格式不对返回 -1
+    static long parseTime(byte[] b, int at) {
+        if (b[at] != '[' || b[at + 5] != '-' || b[at + 8] != '-' || b[at + 11] != ' ' || b[at + 14] != ':'
+                || b[at + 17] != ':' || b[at + 20] != ']' || b[at + 21] != ' ') return -1;
+        int y = num(b, at + 1, 4), mo = num(b, at + 6, 2), d = num(b, at + 9, 2);
+        int h = num(b, at + 12, 2), mi = num(b, at + 15, 2), s = num(b, at + 18, 2);
+        if (y < 0 || mo < 1 || mo > 12 || d < 1 || d > 31 || h < 0 || h > 23 || mi < 0 || mi > 59 || s < 0 || s > 59) {
+            return -1;
+        }
+        try {
+            return LocalDateTime.of(y, mo, d, h, mi, s).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        } catch (RuntimeException e) {
+            return -1; // 2 月 30 日之类
+        }
+    }
+
+    private static int num(byte[] b, int at, int len) {
+        int v = 0;
+        for (int i = 0; i < len; i++) {
+            int c = b[at + i] - '0';
+            if (c < 0 || c > 9) return -1;
+            v = v * 10 + c;
+        }
+        return v;
+    }
+}
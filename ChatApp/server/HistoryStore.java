@@ -1,19 +1,170 @@
 package server;
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
-import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import protocol.BinaryCodec;
 
+// 聊天记录：对外接口（读写、分页、删除、列表），实际存储交给可替换的 HistoryEngine。
+// 默认 text 引擎（history/a__b.txt，原有布局）；mapped 引擎为按固定大小滚动的内存映射分段文件。
 public class HistoryStore {
-    private final Path baseDir = Paths.get("history");
-    private final SimpleDateFormat fmt = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+    // 落盘策略：每批写入后返回 / 由后台每 N 毫秒统一写出 / 每批写入后再 fsync
+    public enum Durability { BATCH, INTERVAL, FSYNC }
+
+    public static final int MAX_PAGE = 500;
+    // 一页正文的字节上限：回复帧要在 BinaryCodec.MAX_FRAME 以内，留一半给其它字段和 JSON 转义
+    public static final int MAX_PAGE_BYTES = BinaryCodec.MAX_FRAME / 2;
+
+    private final Path baseDir;
+    private static final DateTimeFormatter FMT =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
+
+    private volatile HistoryEngine engine;
+    private volatile SearchIndex search; // 未启用时为 null
+    private final ConversationIndex convIndex;
+    private final ReentrantLock convLoadLock = new ReentrantLock();
+    private volatile boolean convLoaded;
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private final Thread shutdownHook = new Thread(this::close, "history-shutdown");
+    private final Metrics metrics;
+
+    // 一页聊天记录。start/end 是引擎给的位置，作为翻页游标交还给客户端
+    public static final class Page {
+        public final String text;
+        public final long start;
+        public final long end;
+        public final boolean hasBefore;
+        public final boolean hasAfter;
+
+        Page(String text, long start, long end, boolean hasBefore, boolean hasAfter) {
+            this.text = text;
+            this.start = start;
+            this.end = end;
+            this.hasBefore = hasBefore;
+            this.hasAfter = hasAfter;
+        }
+    }
 
     public HistoryStore() {
+        this(new Metrics());
+    }
+
+    public HistoryStore(Metrics metrics) {
+        this(Paths.get("history"), metrics);
+    }
+
+    public HistoryStore(Path baseDir, Metrics metrics) {
+        this.baseDir = baseDir;
+        this.metrics = metrics;
+        this.convIndex = new ConversationIndex(baseDir.resolve("conversations.idx"));
         try {
             if (!Files.exists(baseDir)) Files.createDirectories(baseDir);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
+        engine = new TextHistoryEngine(baseDir);
+        engine.setListener(this::onRecord);
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    // 引擎回调：记录真正写入（游标确定）后更新会话索引和检索索引。
+    // 会话索引载入之前的记录不用管，载入时会从引擎扫到
+    private void onRecord(String key, long offset, long ts, byte[] record) {
+        if (convLoaded) convIndex.onRecord(key, offset, ts, record.length);
+        SearchIndex idx = search;
+        if (idx != null) idx.onRecord(key, offset, ts, record);
+    }
+
+    // 写出缓冲、关闭引擎并保存会话索引、检索索引；进程退出时自动调用，只生效一次。
+    // 主动关闭时顺便撤掉退出钩子，反复建/关 HistoryStore（bench）不会把已关的实例一直挂在 Runtime 上
+    public void close() {
+        if (closed.getAndSet(true)) return;
+        if (Thread.currentThread() != shutdownHook) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            } catch (IllegalStateException e) {
+                // 进程已在退出
+            }
+        }
+        engine.close();
+        if (convLoaded) convIndex.save(engine);
+        SearchIndex idx = search;
+        if (idx != null) idx.save(searchFile(), engine);
+    }
+
+    // 定期调用：存会话索引和检索索引的检查点，异常退出后启动时只需补扫之后的记录
+    public void checkpoint() {
+        if (closed.get()) return;
+        if (convLoaded) convIndex.save(engine);
+        SearchIndex idx = search;
+        if (idx != null) idx.save(searchFile(), engine);
+    }
+
+    private Path searchFile() {
+        return baseDir.resolve("search.idx");
+    }
+
+    // 启动时（开始服务之前）切换存储引擎
+    public void setEngine(HistoryEngine e) {
+        HistoryEngine old = engine;
+        old.setListener(null);
+        e.setListener(this::onRecord);
+        engine = e;
+        old.close();
+    }
+
+    // 启动时（开始服务之前）载入/重建每个用户的会话索引；没调用的话第一次 HIS_LIST 时再做
+    public void loadConversationIndex(int threads) throws IOException, InterruptedException {
+        convLoadLock.lock();
+        try {
+            if (convLoaded) return;
+            long t0 = System.currentTimeMillis();
+            boolean rebuilt = convIndex.load(engine, threads);
+            convLoaded = true;
+            System.out.println("Conversation index: " + convIndex.size() + " conversations, "
+                    + (rebuilt ? "rebuilt" : "loaded") + " in " + (System.currentTimeMillis() - t0) + " ms");
+        } finally {
+            convLoadLock.unlock();
+        }
+    }
+
+    private ConversationIndex conversations() {
+        if (!convLoaded) {
+            try {
+                loadConversationIndex(Runtime.getRuntime().availableProcessors());
+            } catch (IOException | InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        return convIndex;
+    }
+
+    // 启动时（开始服务之前）载入检索索引的检查点并补扫之后的记录（没有检查点就并行重建），之后随追加增量维护
+    public void enableSearch(int threads) throws InterruptedException {
+        long t0 = System.currentTimeMillis();
+        SearchIndex idx = new SearchIndex();
+        boolean loaded = idx.load(searchFile(), engine, threads);
+        search = idx;
+        System.out.println("Search index: " + idx.keys().size() + " conversations, " + idx.records()
+                + " records, " + (loaded ? "loaded" : "rebuilt") + " in " + (System.currentTimeMillis() - t0) + " ms");
+    }
+
+    public HistoryEngine engine() {
+        return engine;
+    }
+
+    public Path baseDir() {
+        return baseDir;
+    }
+
+    public void setDurability(Durability d, long intervalMs) {
+        engine.setDurability(d, intervalMs);
     }
 
     private String pairKey(String a, String b) {
@@ -21,50 +172,233 @@ public class HistoryStore {
         return b + "__" + a;
     }
 
-    private Path fileOf(String a, String b) {
-        return baseDir.resolve(pairKey(a, b) + ".txt");
+    public void appendChat(String from, String to, String content, long ts) {
+        long t0 = System.nanoTime();
+        String line = "[" + FMT.format(Instant.ofEpochMilli(ts)) + "] " + from + " -> " + to + ": "
+                + content + System.lineSeparator();
+        String key = pairKey(from, to);
+        byte[] record = line.getBytes(StandardCharsets.UTF_8);
+        conversations(); // 先载入会话索引，写入后的回调才会计入
+        engine.append(key, record, ts);
+        metrics.historyAppend.record(System.nanoTime() - t0);
+    }
+
+    // 群聊记录的会话键；不含 "__"，不会和两人会话混淆，也不计入任何人的 HIS_LIST
+    private static String roomKey(String room) {
+        return "#" + room;
+    }
+
+    public void appendRoom(String room, String from, String content, long ts) {
+        long t0 = System.nanoTime();
+        String line = "[" + FMT.format(Instant.ofEpochMilli(ts)) + "] " + from + " -> #" + room + ": "
+                + content + System.lineSeparator();
+        byte[] record = line.getBytes(StandardCharsets.UTF_8);
+        conversations();
+        engine.append(roomKey(room), record, ts);
+        metrics.historyAppend.record(System.nanoTime() - t0);
+    }
+
+    // 群解散时调用：删掉群的记录，之后同名新建的群看不到旧群的聊天
+    public boolean deleteRoomHistory(String room) {
+        SearchIndex idx = search;
+        if (idx != null) idx.drop(roomKey(room));
+        conversations().onDelete(roomKey(room));
+        return engine.delete(roomKey(room));
+    }
+
+    // 启动时（开始服务之前）清掉已不存在的群留下的记录（解散后、删记录前进程退出的情况）
+    public void dropOrphanRooms(Set<String> rooms) {
+        for (String key : engine.keys()) {
+            if (key.startsWith("#") && !rooms.contains(key.substring(1))) deleteRoomHistory(key.substring(1));
+        }
     }
 
-    public synchronized void appendChat(String from, String to, String content, long ts) {
-        Path f = fileOf(from, to);
-        String line = String.format("[%s] %s -> %s: %s%n", fmt.format(new Date(ts)), from, to, content);
+    public Page readRoomBefore(String room, long cursor, int limit) throws IOException {
+        long t0 = System.nanoTime();
         try {
-            Files.writeString(f, line, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
-        } catch (IOException e) {
-            e.printStackTrace();
+            return fit(n -> engine.readBefore(roomKey(room), cursor, n), limit);
+        } finally {
+            metrics.historyRead.record(System.nanoTime() - t0);
         }
     }
 
-    public synchronized String readHistory(String a, String b) {
-        Path f = fileOf(a, b);
-        if (!Files.exists(f)) return "(暂无聊天记录)";
+    public Page readRoomAfter(String room, long cursor, int limit) throws IOException {
+        long t0 = System.nanoTime();
         try {
-            return Files.readString(f);
+            return fit(n -> engine.readAfter(roomKey(room), Math.max(cursor, 0), n), limit);
+        } finally {
+            metrics.historyRead.record(System.nanoTime() - t0);
+        }
+    }
+
+    // 整个会话的原文；超过一页的字节上限时只给最近放得下的部分。
+    // 会话索引里记着每个会话的字节数，超限的直接按页读，不先把整个会话读进内存
+    public String readHistory(String a, String b) {
+        long t0 = System.nanoTime();
+        String key = pairKey(a, b);
+        try {
+            ConversationIndex.Stat s = conversations().stat(key);
+            if (s == null || s.bytes <= MAX_PAGE_BYTES) {
+                String text = engine.readAll(key);
+                if (text == null) return "(暂无聊天记录)";
+                if (utf8Length(text) <= MAX_PAGE_BYTES) return text;
+            }
+            return "(记录太长，只显示最近部分)" + System.lineSeparator()
+                    + fit(n -> engine.readBefore(key, Long.MAX_VALUE, n), MAX_PAGE).text;
         } catch (IOException e) {
             return "(读取失败: " + e.getMessage() + ")";
+        } finally {
+            metrics.historyRead.record(System.nanoTime() - t0);
         }
     }
 
-    public synchronized boolean deleteHistory(String a, String b) {
-        Path f = fileOf(a, b);
+    // ---- 分页读 ----
+
+    // 最新一页
+    public Page readLatest(String a, String b, int limit) throws IOException {
+        return readBefore(a, b, Long.MAX_VALUE, limit);
+    }
+
+    // cursor 之前（更早）的 limit 条
+    public Page readBefore(String a, String b, long cursor, int limit) throws IOException {
+        long t0 = System.nanoTime();
         try {
-            return Files.deleteIfExists(f);
-        } catch (IOException e) {
-            return false;
+            return fit(n -> engine.readBefore(pairKey(a, b), cursor, n), limit);
+        } finally {
+            metrics.historyRead.record(System.nanoTime() - t0);
+        }
+    }
+
+    // cursor 之后（更新）的 limit 条
+    public Page readAfter(String a, String b, long cursor, int limit) throws IOException {
+        long t0 = System.nanoTime();
+        try {
+            return fit(n -> engine.readAfter(pairKey(a, b), Math.max(cursor, 0), n), limit);
+        } finally {
+            metrics.historyRead.record(System.nanoTime() - t0);
         }
     }
 
-    // 列出某用户拥有的历史文件（用于“打开”选择）
-    public synchronized List<String> listUserHistories(String user) {
+    // 从某个时间点（毫秒）开始的 limit 条
+    public Page readSince(String a, String b, long ts, int limit) throws IOException {
+        long t0 = System.nanoTime();
+        try {
+            return fit(n -> engine.readSince(pairKey(a, b), ts, n), limit);
+        } finally {
+            metrics.historyRead.record(System.nanoTime() - t0);
+        }
+    }
+
+    // 会话“纪元”：引擎建会话时生成的标识。记录被删掉重来时偏移会从 0 重新数，客户端缓存靠它发现自己已过期
+    public String epochOf(String a, String b) throws IOException {
+        return engine.epoch(pairKey(a, b));
+    }
+
+    // 生成新纪元写进 f（先写临时文件再原子替换），引擎建会话时调用
+    static String newEpoch(Path f) throws IOException {
+        String id = Long.toHexString(ThreadLocalRandom.current().nextLong() | 1);
+        Path tmp = f.resolveSibling(f.getFileName() + ".tmp");
+        Files.writeString(tmp, id, StandardCharsets.UTF_8);
+        Files.move(tmp, f, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return id;
+    }
+
+    // 读会话的纪元；升级前建的会话没有这个文件，补一个（调用方持有会话锁，不会并发补出两个值）
+    static String loadEpoch(Path f) throws IOException {
+        if (Files.exists(f)) {
+            String id = Files.readString(f, StandardCharsets.UTF_8).trim();
+            if (!id.isEmpty()) return id;
+        }
+        return newEpoch(f);
+    }
+
+    private static int clampLimit(int limit) {
+        return Math.max(1, Math.min(limit, MAX_PAGE));
+    }
+
+    private interface PageRead {
+        Page read(int limit) throws IOException;
+    }
+
+    // 按条数读一页；正文超过 MAX_PAGE_BYTES 时减半重读，直到放得下。只剩一条还放不下就截断正文（游标不变）
+    private static Page fit(PageRead r, int limit) throws IOException {
+        int n = clampLimit(limit);
+        while (true) {
+            Page p = r.read(n);
+            if (utf8Length(p.text) <= MAX_PAGE_BYTES) return p;
+            if (n == 1) return new Page(clip(p.text), p.start, p.end, p.hasBefore, p.hasAfter);
+            n = Math.max(1, n / 2);
+        }
+    }
+
+    // 超过 MAX_PAGE_BYTES 的单条记录只留开头
+    static String clip(String text) {
+        if (utf8Length(text) <= MAX_PAGE_BYTES) return text;
+        int keep = MAX_PAGE_BYTES / 3; // UTF-8 每个 char 至多 3 字节
+        if (Character.isHighSurrogate(text.charAt(keep - 1))) keep--;
+        return text.substring(0, keep) + "…(过长已截断)" + System.lineSeparator();
+    }
+
+    static int utf8Length(String s) {
+        int n = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) n++;
+            else if (c < 0x800) n += 2;
+            else if (Character.isHighSurrogate(c)) {
+                n += 4;
+                i++;
+            } else n += 3;
+        }
+        return n;
+    }
+
+    public boolean deleteHistory(String a, String b) {
+        SearchIndex idx = search;
+        if (idx != null) idx.drop(pairKey(a, b));
+        conversations().onDelete(pairKey(a, b));
+        return engine.delete(pairKey(a, b));
+    }
+
+    // 在 user 参与的会话里检索（peer 为空表示全部会话），只返回 [fromTs, toTs] 内的记录
+    public List<SearchIndex.Hit> search(String user, String peer, String query, long fromTs, long toTs, int limit)
+            throws IOException {
+        List<String> keys = new ArrayList<>();
+        if (peer != null && !peer.isEmpty()) {
+            keys.add(pairKey(user, peer));
+        } else {
+            keys.addAll(conversations().keysOf(user));
+        }
+        return search(keys, query, fromTs, toTs, limit);
+    }
+
+    // 在群聊记录里检索；是否群成员由调用方检查
+    public List<SearchIndex.Hit> searchRoom(String room, String query, long fromTs, long toTs, int limit)
+            throws IOException {
+        return search(List.of(roomKey(room)), query, fromTs, toTs, limit);
+    }
+
+    private List<SearchIndex.Hit> search(List<String> keys, String query, long fromTs, long toTs, int limit)
+            throws IOException {
+        SearchIndex idx = search;
+        if (idx == null) throw new IOException("检索未启用");
+        long t0 = System.nanoTime();
+        try {
+            return idx.search(keys, query, fromTs, toTs, clampLimit(limit), engine);
+        } finally {
+            metrics.historySearch.record(System.nanoTime() - t0);
+        }
+    }
+
+    // 列出某用户拥有的历史文件（用于“打开”选择），最近活跃的在前
+    public List<String> listUserHistories(String user) {
         List<String> out = new ArrayList<>();
-        try (DirectoryStream<Path> ds = Files.newDirectoryStream(baseDir, "*.txt")) {
-            for (Path p : ds) {
-                String name = p.getFileName().toString();
-                if (name.startsWith(user + "__") || name.contains("__" + user + ".txt")) {
-                    out.add(name);
-                }
-            }
-        } catch (IOException ignore) {}
+        for (Map.Entry<String, ConversationIndex.Stat> e : conversations().list(user)) out.add(e.getKey() + ".txt");
         return out;
     }
+
+    // 同上，带最后消息时间、条数、字节数
+    public List<Map.Entry<String, ConversationIndex.Stat>> listUserConversations(String user) {
+        return conversations().list(user);
+    }
 }
@@ -0,0 +1,609 @@
+package server;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+// mapped 引擎：history/seg/<a__b>/ 下按固定大小滚动的段文件，加一个段清单 manifest.txt。
+// 段文件名是该段在会话里的起始逻辑偏移，段内记录格式：
+//   [int 长度 L][long 时间戳][L 字节记录行][int 长度 L]
+// 首尾都有长度，前后都能按记录跳；首部长度最后写，崩溃后扫到第一条不完整的记录就是段尾。
+// 追加直接拷进活动段的 MappedByteBuffer；读时只映射覆盖所需位置/时间范围的段（只读映射，数据留在页缓存，不进堆）。
+// 会话目录里的 epoch 文件存会话的纪元，建第一个段时生成。
+// 第一次打开某个会话时，如果只有旧的 history/a__b.txt，会把它按记录导入成段文件（原文件保留）。
+// 打开着的会话（各自持有活动段的读写映射和读过的封存段映射）放在有界 LRU 里，淘汰时落盘并放掉全部映射。
+public class MappedHistoryEngine implements HistoryEngine {
+    private static final int OVERHEAD = 16;
+    private static final String MANIFEST = "manifest.txt";
+    private static final String EPOCH = "epoch";
+
+    private final Path legacyDir;
+    private final Path segDir;
+    private final int segmentBytes;
+    private final ConcurrentHashMap<String, Log> logs = new ConcurrentHashMap<>();
+    private final Set<Log> dirty = ConcurrentHashMap.newKeySet();
+    // 打开着的会话，按访问顺序淘汰
+    private final LinkedHashMap<String, Log> openLru = new LinkedHashMap<>(16, 0.75f, true);
+    private final ReentrantLock lruLock = new ReentrantLock();
+    private int maxOpenLogs = 256;
+    private volatile HistoryStore.Durability durability = HistoryStore.Durability.BATCH;
+    private ScheduledExecutorService flusher;
+    private volatile RecordListener listener;
+
+    public MappedHistoryEngine(Path baseDir, int segmentBytes) {
+        this.legacyDir = baseDir;
+        this.segDir = baseDir.resolve("seg");
+        this.segmentBytes = Math.max(4096, segmentBytes);
+        try {
+            Files.createDirectories(segDir);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public void setDurability(HistoryStore.Durability d, long intervalMs) {
+        this.durability = d;
+        if (d == HistoryStore.Durability.INTERVAL && flusher == null) {
+            flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "history-flusher");
+                t.setDaemon(true);
+                return t;
+            });
+            flusher.scheduleWithFixedDelay(this::forceDirty, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // 同时打开的会话上限
+    public void setMaxOpenFiles(int n) {
+        this.maxOpenLogs = Math.max(1, n);
+    }
+
+    @Override
+    public void setListener(RecordListener l) {
+        this.listener = l;
+    }
+
+    // 取会话并加锁。create 为 false 时磁盘上没有的会话返回 null，读路径不为随便一个 key 建 Log；
+    // 拿到的 Log 恰好刚被淘汰就重取
+    private Log acquire(String key, boolean create) {
+        while (true) {
+            Log l = logs.get(key);
+            if (l == null) {
+                if (!create && !Files.exists(segDir.resolve(key).resolve(MANIFEST))
+                        && !Files.exists(legacyDir.resolve(key + ".txt"))) return null;
+                l = logs.computeIfAbsent(key, Log::new);
+            }
+            l.lock.lock();
+            if (!l.evicted) return l;
+            l.lock.unlock();
+        }
+    }
+
+    // 读端的一致视图；会话不存在时是空的
+    private Snapshot snapshot(String key) throws IOException {
+        Log l = acquire(key, false);
+        if (l == null) return Snapshot.EMPTY;
+        try {
+            l.open();
+            return new Snapshot(l.segs.toArray(new Segment[0]), l.end);
+        } finally {
+            l.lock.unlock();
+            touch(l);
+        }
+    }
+
+    @Override
+    public void append(String key, byte[] record, long ts) {
+        Log l = acquire(key, true);
+        try {
+            l.open();
+            long off = l.append(record, ts);
+            RecordListener rl = listener;
+            if (rl != null) rl.onRecord(key, off, ts, record);
+            if (durability == HistoryStore.Durability.FSYNC) l.active().map.force();
+            else if (durability == HistoryStore.Durability.INTERVAL) dirty.add(l);
+        } catch (IOException e) {
+            System.err.println("history append " + key + ": " + e.getMessage());
+        } finally {
+            l.lock.unlock();
+            touch(l);
+        }
+    }
+
+    @Override
+    public String readAll(String key) throws IOException {
+        Snapshot s = snapshot(key);
+        if (s.segs.length == 0) return null;
+        ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.min(s.end, Integer.MAX_VALUE - 8));
+        long pos = 0;
+        while (pos < s.end) {
+            Segment seg = s.segmentAt(pos);
+            int local = (int) (pos - seg.base);
+            int len = seg.recordAt(local, seg.length);
+            if (len < 0) break;
+            out.write(seg.bytes(local + 12, len));
+            pos += len + OVERHEAD;
+        }
+        return out.toString(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void scan(String key, long from, RecordListener l) throws IOException {
+        Snapshot s = snapshot(key);
+        long pos = s.align(Math.min(Math.max(from, 0), s.end), false);
+        while (pos < s.end) {
+            Segment seg = s.segmentAt(pos);
+            int local = (int) (pos - seg.base);
+            int len = seg.recordAt(local, seg.length);
+            if (len < 0) break;
+            l.onRecord(key, pos, seg.map().getLong(local + 4), seg.bytes(local + 12, len));
+            pos += len + OVERHEAD;
+        }
+    }
+
+    @Override
+    public HistoryStore.Page readBefore(String key, long cursor, int limit) throws IOException {
+        Snapshot s = snapshot(key);
+        long end = s.align(Math.min(Math.max(cursor, 0), s.end), false);
+        long pos = end;
+        Deque<byte[]> lines = new ArrayDeque<>();
+        while (lines.size() < limit && pos > 0) {
+            Segment seg = s.segmentAt(pos - 1);
+            int local = (int) (pos - seg.base);
+            if (local < OVERHEAD) break;
+            int len = seg.map().getInt(local - 4);
+            int start = local - OVERHEAD - len;
+            if (len <= 0 || start < 0 || seg.recordAt(start, local) != len) break;
+            lines.addFirst(seg.bytes(start + 12, len));
+            pos = seg.base + start;
+        }
+        return new HistoryStore.Page(join(lines), pos, end, pos > 0, end < s.end);
+    }
+
+    @Override
+    public HistoryStore.Page readAfter(String key, long cursor, int limit) throws IOException {
+        Snapshot s = snapshot(key);
+        return forward(s, s.align(Math.min(Math.max(cursor, 0), s.end), true), limit);
+    }
+
+    @Override
+    public HistoryStore.Page readSince(String key, long ts, int limit) throws IOException {
+        Snapshot s = snapshot(key);
+        // 按清单里每段的时间范围挑出第一个可能命中的段，只扫这一段
+        for (Segment seg : s.segs) {
+            if (seg.lastTs < ts) continue;
+            int local = 0;
+            int segEnd = (int) Math.min(seg.length, s.end - seg.base);
+            while (local < segEnd) {
+                int len = seg.recordAt(local, segEnd);
+                if (len < 0) break;
+                if (seg.map().getLong(local + 4) >= ts) return forward(s, seg.base + local, limit);
+                local += len + OVERHEAD;
+            }
+        }
+        return new HistoryStore.Page("", s.end, s.end, s.end > 0, false);
+    }
+
+    @Override
+    public byte[][] readRecords(String key, long[] offsets, int n) throws IOException {
+        Snapshot s = snapshot(key);
+        byte[][] out = new byte[n][];
+        for (int k = 0; k < n; k++) {
+            long pos = offsets[k];
+            if (pos < 0 || pos >= s.end) continue;
+            Segment seg = s.segmentAt(pos);
+            int local = (int) (pos - seg.base);
+            int len = seg.recordAt(local, (int) Math.min(seg.length, s.end - seg.base));
+            if (len >= 0) out[k] = seg.bytes(local + 12, len);
+        }
+        return out;
+    }
+
+    private HistoryStore.Page forward(Snapshot s, long from, int limit) throws IOException {
+        long pos = from;
+        List<byte[]> lines = new ArrayList<>();
+        while (lines.size() < limit && pos < s.end) {
+            Segment seg = s.segmentAt(pos);
+            int local = (int) (pos - seg.base);
+            int len = seg.recordAt(local, (int) Math.min(seg.length, s.end - seg.base));
+            if (len < 0) break;
+            lines.add(seg.bytes(local + 12, len));
+            pos += len + OVERHEAD;
+        }
+        return new HistoryStore.Page(join(lines), from, pos, from > 0, pos < s.end);
+    }
+
+    private static String join(Collection<byte[]> lines) {
+        int total = 0;
+        for (byte[] b : lines) total += b.length;
+        byte[] all = new byte[total];
+        int p = 0;
+        for (byte[] b : lines) {
+            System.arraycopy(b, 0, all, p, b.length);
+            p += b.length;
+        }
+        return new String(all, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public String epoch(String key) throws IOException {
+        Log l = acquire(key, false);
+        if (l == null) return "0";
+        try {
+            l.open();
+            if (l.segs.isEmpty()) return "0";
+            if (l.epoch == null) l.epoch = HistoryStore.loadEpoch(l.dir.resolve(EPOCH));
+            return l.epoch;
+        } finally {
+            l.lock.unlock();
+            touch(l);
+        }
+    }
+
+    @Override
+    public boolean delete(String key) {
+        Log l = acquire(key, false);
+        if (l == null) return false;
+        try {
+            l.open();
+            boolean had = !l.segs.isEmpty();
+            // 删掉后这个 Log 也不再用，下次追加重新建
+            l.evicted = true;
+            logs.remove(key, l);
+            untrack(l);
+            l.segs.clear(); // 旧映射交给 GC 回收
+            l.end = 0;
+            dirty.remove(l);
+            if (Files.exists(l.dir)) {
+                try (DirectoryStream<Path> ds = Files.newDirectoryStream(l.dir)) {
+                    for (Path p : ds) Files.deleteIfExists(p);
+                }
+                Files.deleteIfExists(l.dir);
+            }
+            // 导入来源也删掉，否则下次打开会被重新导入
+            had |= Files.deleteIfExists(legacyDir.resolve(key + ".txt"));
+            return had;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            l.lock.unlock();
+        }
+    }
+
+    @Override
+    public List<String> keys() {
+        Set<String> out = new TreeSet<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(segDir)) {
+            for (Path p : ds) {
+                if (Files.exists(p.resolve(MANIFEST))) out.add(p.getFileName().toString());
+            }
+        } catch (IOException ignore) {}
+        // 还没导入的旧文本文件打开时会自动导入，也算
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(legacyDir, "*.txt")) {
+            for (Path p : ds) {
+                String name = p.getFileName().toString();
+                out.add(name.substring(0, name.length() - ".txt".length()));
+            }
+        } catch (IOException ignore) {}
+        return new ArrayList<>(out);
+    }
+
+    private void forceDirty() {
+        for (Log l : dirty) {
+            dirty.remove(l);
+            l.lock.lock();
+            try {
+                Segment a = l.segs.isEmpty() ? null : l.segs.get(l.segs.size() - 1);
+                if (a != null) a.map.force();
+            } finally {
+                l.lock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        for (Log l : logs.values()) {
+            l.lock.lock();
+            try {
+                if (!l.segs.isEmpty()) {
+                    l.active().map.force();
+                    l.writeManifest();
+                }
+            } catch (IOException ignore) {
+            } finally {
+                l.lock.unlock();
+            }
+        }
+    }
+
+    // 登记/刷新用过的会话，超出上限时淘汰最久未用的。调用方不能持有任何 Log 的锁
+    private void touch(Log l) {
+        if (l.evicted) return;
+        List<Log> evicted = new ArrayList<>();
+        lruLock.lock();
+        try {
+            openLru.put(l.key, l);
+            Iterator<Log> it = openLru.values().iterator();
+            while (openLru.size() > maxOpenLogs && it.hasNext()) {
+                Log old = it.next();
+                if (old == l) continue;
+                it.remove();
+                evicted.add(old);
+            }
+        } finally {
+            lruLock.unlock();
+        }
+        for (Log old : evicted) {
+            old.lock.lock();
+            try {
+                if (old.evicted) continue;
+                old.evicted = true;
+                logs.remove(old.key, old);
+                dirty.remove(old);
+                old.release();
+            } finally {
+                old.lock.unlock();
+            }
+        }
+    }
+
+    private void untrack(Log l) {
+        lruLock.lock();
+        try {
+            openLru.remove(l.key, l);
+        } finally {
+            lruLock.unlock();
+        }
+    }
+
+    // 读端看到的一致视图：段列表 + 当时的逻辑末尾。写端只会往 end 之后写
+    private static final class Snapshot {
+        static final Snapshot EMPTY = new Snapshot(new Segment[0], 0);
+
+        final Segment[] segs;
+        final long end;
+
+        Snapshot(Segment[] segs, long end) {
+            this.segs = segs;
+            this.end = end;
+        }
+
+        // pos 所在的段（最后一个 base <= pos 的段）
+        Segment segmentAt(long pos) {
+            int lo = 0, hi = segs.length - 1, ans = 0;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (segs[mid].base <= pos) {
+                    ans = mid;
+                    lo = mid + 1;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            return segs[ans];
+        }
+
+        // 客户端带回的游标不一定落在记录边界上（换过引擎、手写的请求）。不在边界时从所在段开头按记录跳，
+        // up 为 true 取下一条记录的起点，否则取 pos 所在记录的起点，免得读出半条或一直读到空页
+        long align(long pos, boolean up) throws IOException {
+            if (pos <= 0 || pos >= end) return pos;
+            Segment seg = segmentAt(pos);
+            int target = (int) (pos - seg.base);
+            int segEnd = (int) Math.min(seg.length, end - seg.base);
+            if (seg.recordAt(target, segEnd) >= 0) {
+                // 前一条的尾部长度也对得上，就是边界
+                int prev = target >= OVERHEAD ? seg.map().getInt(target - 4) : -1;
+                if (target == 0 || (prev > 0 && seg.recordAt(target - OVERHEAD - prev, target) == prev)) return pos;
+            }
+            int local = 0;
+            while (local < target) {
+                int len = seg.recordAt(local, segEnd);
+                if (len < 0) break;
+                int next = local + len + OVERHEAD;
+                if (next > target) return seg.base + (up ? next : local);
+                local = next;
+            }
+            return seg.base + local;
+        }
+    }
+
+    private static final class Segment {
+        final long base;
+        final Path path;
+        final int capacity;
+        volatile int length;
+        volatile long firstTs, lastTs;
+        volatile MappedByteBuffer map; // 活动段为读写映射；封存的段第一次读时才做只读映射
+
+        Segment(long base, Path path, int capacity) {
+            this.base = base;
+            this.path = path;
+            this.capacity = capacity;
+        }
+
+        MappedByteBuffer map() throws IOException {
+            MappedByteBuffer m = map;
+            if (m == null) {
+                try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+                    m = ch.map(FileChannel.MapMode.READ_ONLY, 0, length);
+                }
+                map = m;
+            }
+            return m;
+        }
+
+        // local 处若是一条完整记录（不越过 limit）返回其长度，否则 -1
+        int recordAt(int local, int limit) throws IOException {
+            if (local < 0 || local + OVERHEAD > limit) return -1;
+            ByteBuffer m = map();
+            int len = m.getInt(local);
+            if (len <= 0 || len > limit - local - OVERHEAD) return -1;
+            return m.getInt(local + 12 + len) == len ? len : -1;
+        }
+
+        byte[] bytes(int local, int len) throws IOException {
+            byte[] b = new byte[len];
+            map().get(local, b);
+            return b;
+        }
+    }
+
+    private final class Log {
+        final String key;
+        final Path dir;
+        final ReentrantLock lock = new ReentrantLock();
+        final List<Segment> segs = new ArrayList<>();
+        long end;
+        String epoch; // 读过/生成过的纪元
+        private boolean opened;
+        volatile boolean evicted; // 已淘汰或已删除：不再用，拿到的人重取
+
+        Log(String key) {
+            this.key = key;
+            this.dir = segDir.resolve(key);
+        }
+
+        Segment active() {
+            return segs.get(segs.size() - 1);
+        }
+
+        // 以下调用方持有 lock
+
+        // 淘汰：活动段落盘、更新清单，放掉所有映射。手里还拿着旧快照的读者用到时会重新只读映射
+        void release() {
+            try {
+                if (!segs.isEmpty()) {
+                    active().map.force();
+                    writeManifest();
+                }
+            } catch (IOException e) {
+                System.err.println("history release " + key + ": " + e.getMessage());
+            }
+            for (Segment s : segs) s.map = null;
+            segs.clear();
+        }
+
+        void open() throws IOException {
+            if (opened) return;
+            opened = true;
+            Path manifest = dir.resolve(MANIFEST);
+            if (Files.exists(manifest)) {
+                for (String line : Files.readAllLines(manifest, StandardCharsets.UTF_8)) {
+                    String[] p = line.trim().split(" ");
+                    if (p.length < 4) continue;
+                    long base = Long.parseLong(p[0]);
+                    Path path = dir.resolve(segName(base));
+                    if (!Files.exists(path)) break;
+                    Segment s = new Segment(base, path, (int) Files.size(path));
+                    s.length = Integer.parseInt(p[1]);
+                    s.firstTs = Long.parseLong(p[2]);
+                    s.lastTs = Long.parseLong(p[3]);
+                    segs.add(s);
+                }
+                if (!segs.isEmpty()) {
+                    // 最后一段是活动段：清单里的长度可能已过期，重新扫一遍并映射成可写
+                    Segment a = active();
+                    try (FileChannel ch = FileChannel.open(a.path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                        a.map = ch.map(FileChannel.MapMode.READ_WRITE, 0, a.capacity);
+                    }
+                    recover(a);
+                    end = a.base + a.length;
+                }
+            } else {
+                Path legacy = legacyDir.resolve(key + ".txt");
+                if (Files.exists(legacy)) importLegacy(legacy);
+            }
+        }
+
+        private void recover(Segment a) throws IOException {
+            int pos = 0;
+            long first = 0, last = 0;
+            while (true) {
+                int len = a.recordAt(pos, a.capacity);
+                if (len < 0) break;
+                long ts = a.map.getLong(pos + 4);
+                if (pos == 0) first = ts;
+                last = ts;
+                pos += len + OVERHEAD;
+            }
+            a.length = pos;
+            a.firstTs = first;
+            a.lastTs = last;
+        }
+
+        long append(byte[] record, long ts) throws IOException {
+            int need = record.length + OVERHEAD;
+            if (segs.isEmpty() || active().capacity - active().length < need) roll(need);
+            Segment a = active();
+            MappedByteBuffer m = a.map;
+            int pos = a.length;
+            m.putLong(pos + 4, ts);
+            m.put(pos + 12, record);
+            m.putInt(pos + 12 + record.length, record.length);
+            m.putInt(pos, record.length); // 最后写首部长度，这条记录才算完整
+            if (pos == 0) a.firstTs = ts;
+            a.lastTs = ts;
+            a.length = pos + need;
+            end += need;
+            return a.base + pos;
+        }
+
+        // 封存当前活动段，新开一段（超长记录单独占一段）
+        private void roll(int need) throws IOException {
+            Files.createDirectories(dir);
+            if (segs.isEmpty()) epoch = HistoryStore.newEpoch(dir.resolve(EPOCH)); // 新会话（或导入旧文件）
+            int cap = Math.max(segmentBytes, need);
+            Path path = dir.resolve(segName(end));
+            Segment s = new Segment(end, path, cap);
+            try (RandomAccessFile raf = new RandomAccessFile(path.toFile(), "rw")) {
+                raf.setLength(cap);
+                s.map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, cap);
+            }
+            if (!segs.isEmpty()) active().map.force();
+            segs.add(s);
+            writeManifest();
+        }
+
+        // 每段一行：起始偏移 已用长度 首条时间 末条时间（先写临时文件再原子替换）
+        void writeManifest() throws IOException {
+            StringBuilder sb = new StringBuilder();
+            for (Segment s : segs) {
+                sb.append(s.base).append(' ').append(s.length).append(' ')
+                        .append(s.firstTs).append(' ').append(s.lastTs).append('\n');
+            }
+            Path tmp = dir.resolve(MANIFEST + ".tmp");
+            Files.writeString(tmp, sb.toString(), StandardCharsets.UTF_8);
+            Files.move(tmp, dir.resolve(MANIFEST), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        // 旧文本文件按记录行切开导入；续行（内容里的换行）并进上一条，文件开头的非记录内容单独成一条
+        private void importLegacy(Path legacy) throws IOException {
+            byte[] all = Files.readAllBytes(legacy);
+            int start = 0;
+            long ts = 0;
+            for (int p = 1; p <= all.length; p++) {
+                boolean boundary = p == all.length
+                        || (all[p - 1] == '\n' && HistoryIndex.isRecord(all, p, all.length));
+                if (!boundary) continue;
+                if (HistoryIndex.isRecord(all, start, all.length)) ts = HistoryIndex.parseTime(all, start);
+                append(Arrays.copyOfRange(all, start, p), ts);
+                start = p;
+            }
+            if (!segs.isEmpty()) {
+                active().map.force();
+                writeManifest();
+            }
+        }
+    }
+
+    private static String segName(long base) {
+        return String.format("%020d.seg", base);
+    }
+}
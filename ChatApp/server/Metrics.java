@@ -0,0 +1,224 @@
+package server;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.function.Supplier;
+
+// 服务端运行指标：按消息类型的处理次数和耗时分布、聊天记录/好友存储耗时、在线数、发送失败和踢下线次数、收发字节数。
+// 记录路径上只有无锁计数（LongAdder / AtomicLongArray），不分配对象；汇总成文本只在 STATS、JMX、定时落盘时做。
+public class Metrics implements MetricsMXBean {
+    // 固定桶的耗时直方图：第 i 个桶装 [2^(i-1), 2^i) 纳秒，最后一个桶装更长的
+    public static final class Histogram {
+        private static final int BUCKETS = 40; // 2^39 ns ≈ 9 分钟
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sumNanos = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        public void record(long nanos) {
+            if (nanos < 0) nanos = 0;
+            int i = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(nanos));
+            buckets.incrementAndGet(i);
+            count.increment();
+            sumNanos.add(nanos);
+            long m = maxNanos.get();
+            while (nanos > m && !maxNanos.compareAndSet(m, nanos)) m = maxNanos.get();
+        }
+
+        public long count() {
+            return count.sum();
+        }
+
+        public double meanMicros() {
+            long n = count.sum();
+            return n == 0 ? 0 : sumNanos.sum() / 1e3 / n;
+        }
+
+        // 分位数（取所在桶的上界，微秒）
+        public double percentileMicros(double p) {
+            long n = 0;
+            long[] snap = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) n += snap[i] = buckets.get(i);
+            if (n == 0) return 0;
+            long rank = (long) Math.ceil(p * n);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += snap[i];
+                if (seen >= rank) return Math.min(1L << i, maxNanos.get()) / 1e3;
+            }
+            return maxNanos.get() / 1e3;
+        }
+
+        public double maxMicros() {
+            return maxNanos.get() / 1e3;
+        }
+    }
+
+    private static final int MAX_TYPES = 128; // 客户端乱发类型时不让表无限长
+    private static final String OTHER = "(other)";
+
+    private final long startedAt = System.currentTimeMillis();
+    private final ConcurrentHashMap<String, Histogram> byType = new ConcurrentHashMap<>();
+    private volatile IntSupplier online = () -> 0;
+    // 报告末尾附加的内容（发送队列积压、压缩统计等），由 ChatServer 提供
+    private volatile Supplier<String> extra = () -> "";
+
+    public final Histogram historyAppend = new Histogram();
+    public final Histogram historyRead = new Histogram();
+    public final Histogram historySearch = new Histogram();
+    public final Histogram friendRead = new Histogram();
+    public final Histogram friendWrite = new Histogram();
+    public final Histogram authVerify = new Histogram();
+
+    public final LongAdder bytesIn = new LongAdder();
+    public final LongAdder bytesOut = new LongAdder();
+    public final LongAdder socketWrites = new LongAdder(); // 实际写 socket 的次数（合并写之后）
+    public final LongAdder sendFailures = new LongAdder(); // 发送队列溢出或写 socket 失败
+    public final LongAdder kicks = new LongAdder();        // 被顶号/被别的节点踢下线
+    public final LongAdder logins = new LongAdder();
+    // 状态推送合并：窗口内抵消掉的变化数、被合并（重复）的变化数、实际发出的 STATUS_PUSH 条数
+    public final LongAdder presenceSuppressed = new LongAdder();
+    public final LongAdder presenceCoalesced = new LongAdder();
+    public final LongAdder presencePushed = new LongAdder();
+
+    public void setOnline(IntSupplier online) {
+        this.online = online;
+    }
+
+    public void setExtraReport(Supplier<String> extra) {
+        this.extra = extra;
+    }
+
+    // 一条消息处理完（dispatch 返回）时调用
+    public void recordMessage(String type, long nanos) {
+        Histogram h = type == null ? null : byType.get(type);
+        if (h == null) h = typeHistogram(type);
+        h.record(nanos);
+    }
+
+    private Histogram typeHistogram(String type) {
+        if (type == null || (byType.size() >= MAX_TYPES && !byType.containsKey(type))) type = OTHER;
+        return byType.computeIfAbsent(type, k -> new Histogram());
+    }
+
+    public Map<String, Histogram> messageHistograms() {
+        return new TreeMap<>(byType);
+    }
+
+    // ---- MetricsMXBean ----
+
+    @Override
+    public int getOnlineSessions() {
+        return online.getAsInt();
+    }
+
+    @Override
+    public long getUptimeSeconds() {
+        return (System.currentTimeMillis() - startedAt) / 1000;
+    }
+
+    @Override
+    public long getMessagesTotal() {
+        long n = 0;
+        for (Histogram h : byType.values()) n += h.count();
+        return n;
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public long getSocketWrites() {
+        return socketWrites.sum();
+    }
+
+    @Override
+    public long getSendFailures() {
+        return sendFailures.sum();
+    }
+
+    @Override
+    public long getKicks() {
+        return kicks.sum();
+    }
+
+    @Override
+    public long getPresenceSuppressed() {
+        return presenceSuppressed.sum();
+    }
+
+    @Override
+    public long getPresenceCoalesced() {
+        return presenceCoalesced.sum();
+    }
+
+    @Override
+    public long getPresencePushed() {
+        return presencePushed.sum();
+    }
+
+    @Override
+    public Map<String, Long> getMessageCounts() {
+        Map<String, Long> m = new TreeMap<>();
+        for (Map.Entry<String, Histogram> e : byType.entrySet()) m.put(e.getKey(), e.getValue().count());
+        return m;
+    }
+
+    @Override
+    public Map<String, Double> getMessageP99Micros() {
+        Map<String, Double> m = new TreeMap<>();
+        for (Map.Entry<String, Histogram> e : byType.entrySet()) m.put(e.getKey(), e.getValue().percentileMicros(0.99));
+        return m;
+    }
+
+    @Override
+    public String getReport() {
+        return report();
+    }
+
+    public String report() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("uptime_s=%d online=%d logins=%d kicks=%d send_failures=%d bytes_in=%d bytes_out=%d"
+                        + " socket_writes=%d%n", getUptimeSeconds(), getOnlineSessions(), logins.sum(), kicks.sum(),
+                sendFailures.sum(), bytesIn.sum(), bytesOut.sum(), socketWrites.sum()));
+        sb.append(String.format("%-16s %10s %10s %10s %10s %10s%n", "name", "count", "mean_us", "p50_us", "p99_us", "max_us"));
+        for (Map.Entry<String, Histogram> e : messageHistograms().entrySet()) row(sb, e.getKey(), e.getValue());
+        row(sb, "history.append", historyAppend);
+        row(sb, "history.read", historyRead);
+        row(sb, "history.search", historySearch);
+        row(sb, "friend.read", friendRead);
+        row(sb, "friend.write", friendWrite);
+        row(sb, "auth.verify", authVerify);
+        sb.append(extra.get());
+        return sb.toString();
+    }
+
+    private static void row(StringBuilder sb, String name, Histogram h) {
+        sb.append(String.format("%-16s %10d %10.1f %10.1f %10.1f %10.1f%n", name, h.count(), h.meanMicros(),
+                h.percentileMicros(0.5), h.percentileMicros(0.99), h.maxMicros()));
+    }
+
+    // 定时落盘：先写临时文件再原子替换，读的人不会看到写了一半的文件
+    public void dump(Path file) {
+        Path tmp = Paths.get(file + ".tmp");
+        try {
+            Files.writeString(tmp, report(), StandardCharsets.UTF_8);
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("metrics dump: " + e.getMessage());
+        }
+    }
+}
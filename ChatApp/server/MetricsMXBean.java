@@ -0,0 +1,37 @@
+package server;
+import java.util.Map;
+
+// JMX 视图（ObjectName server:type=ChatMetrics），jconsole 里可直接看
+public interface MetricsMXBean {
+    int getOnlineSessions();
+
+    long getUptimeSeconds();
+
+    long getMessagesTotal();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getSocketWrites();
+
+    long getSendFailures();
+
+    long getKicks();
+
+    // 状态推送合并：抵消掉的、被合并的变化数，实际发出的推送条数
+    long getPresenceSuppressed();
+
+    long getPresenceCoalesced();
+
+    long getPresencePushed();
+
+    // 消息类型 -> 处理次数
+    Map<String, Long> getMessageCounts();
+
+    // 消息类型 -> p99 处理耗时（微秒）
+    Map<String, Double> getMessageP99Micros();
+
+    // 与 STATS 请求相同的文本报告
+    String getReport();
+}
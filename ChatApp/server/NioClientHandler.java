@@ -0,0 +1,257 @@
+package server;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import protocol.BinaryCodec;
+import protocol.Message;
+import protocol.SimpleJson;
+
+// NIO 模式下的连接：在 ByteBuffer 上切帧（JSON 行或二进制帧）并直接解析字节，业务处理复用 ClientHandler。
+// 读缓冲在首次收到数据时才分配；发送走基类的有界队列 outbox，由本循环线程写出。
+// 只有不碰磁盘的少数请求在循环线程上直接处理，其余按到达顺序排进 pending，由 worker 线程逐个处理。
+public class NioClientHandler extends ClientHandler {
+    private static final int INIT_BUF = 1024;
+    private static final int MAX_GATHER = 64;     // 一次 gathering write 最多带几帧，也是 writing 里最多放几帧
+    private static final long CLOSE_TIMEOUT_MS = 10_000; // close 后最多等这么久把剩下的写完，对方不收就直接关
+    private static final int MAX_PENDING = 64;   // 排队待处理的请求达到这么多时暂停读，降到一半再恢复
+    private static final int WORKER_BATCH = 16;  // worker 一次最多处理本连接几条，之后让给别的连接
+    // 只改内存、不会阻塞的请求，没有排队中的请求时直接在循环线程上处理（LOGIN 的口令校验本来就在校验线程池）
+    private static final Set<String> INLINE = Set.of("LOGIN", "PING", "PONG", "STATUS_QUERY");
+
+    private final SocketChannel channel;
+    private final NioServer.EventLoop loop;
+    SelectionKey key;
+
+    private final int[] hdr = new int[2];
+    private ByteBuffer readBuf;                                  // 只在本循环线程访问
+    private final ArrayDeque<ByteBuffer> writing = new ArrayDeque<>(); // 只在本循环线程访问
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];     // 只在本循环线程访问
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    private boolean closing = false;
+    private boolean readPaused = false;                          // 只在本循环线程访问
+    private volatile boolean closed = false;
+    private final ConcurrentLinkedQueue<Message> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingCount = new AtomicInteger();
+
+    public NioClientHandler(SocketChannel channel, NioServer.EventLoop loop, ChatServer server) {
+        super(null, server);
+        this.channel = channel;
+        this.loop = loop;
+    }
+
+    @Override
+    public InetAddress remoteAddress() {
+        return channel.socket().getInetAddress();
+    }
+
+    // send() 入队后调用：交给循环线程写出，多次入队只投递一次任务
+    @Override
+    protected void wakeWriter() {
+        if (flushScheduled.compareAndSet(false, true)) {
+            loop.execute(this::flush);
+        }
+    }
+
+    // 写完已排队数据后再关闭，保证 KICK 等最后一帧能发出去
+    @Override
+    public void close() {
+        loop.execute(() -> {
+            if (closing) return;
+            closing = true;
+            flush();
+            if (!closed) server.timers.schedule(() -> loop.execute(this::closeNow), CLOSE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        });
+    }
+
+    @Override
+    protected void abort() {
+        outbox.close();
+        outbox.clear();
+        loop.execute(this::closeNow);
+    }
+
+    void onReadable() {
+        if (readBuf == null) readBuf = ByteBuffer.allocate(INIT_BUF);
+        int n;
+        try {
+            n = channel.read(readBuf);
+        } catch (IOException e) {
+            n = -1;
+        }
+        if (n < 0) {
+            closeNow();
+            return;
+        }
+        server.metrics.bytesIn.add(n);
+
+        // 切帧：首字节区分 JSON 行与二进制帧
+        readBuf.flip();
+        byte[] arr = readBuf.array();
+        int start = readBuf.position();
+        int limit = readBuf.limit();
+        int need = 0; // 半个二进制帧时记下整帧长度，用于扩容
+        try {
+            while (start < limit) {
+                byte first = arr[start];
+                if (first == '\n' || first == '\r') {
+                    start++;
+                    continue;
+                }
+                Message m;
+                if (BinaryCodec.isBinaryStart(first)) {
+                    if (!BinaryCodec.readHeader(arr, start, limit, hdr)) break;
+                    int total = hdr[1] + hdr[0];
+                    if (limit - start < total) {
+                        need = total;
+                        break;
+                    }
+                    m = BinaryCodec.decode(first, arr, start + hdr[1], hdr[0]);
+                    start += total;
+                } else {
+                    int nl = start;
+                    while (nl < limit && arr[nl] != '\n') nl++;
+                    if (nl == limit) break;
+                    int end = nl;
+                    if (arr[end - 1] == '\r') end--;
+                    m = SimpleJson.fromJson(arr, start, end - start);
+                    start = nl + 1;
+                }
+                submit(m);
+                if (closed) return;
+            }
+        } catch (IOException e) {
+            closeNow();
+            return;
+        }
+        readBuf.position(start);
+        readBuf.compact();
+
+        if (readBuf.position() == 0) {
+            // 没有半帧残留：大缓冲归还，空闲连接不长期占内存
+            if (readBuf.capacity() > INIT_BUF) readBuf = null;
+        } else if (!readBuf.hasRemaining() || need > readBuf.capacity()) {
+            int size = Math.max(readBuf.capacity() * 2, need);
+            if (size > maxFrame()) { // 超过单帧上限（登录前更小）视为异常连接
+                closeNow();
+                return;
+            }
+            ByteBuffer bigger = ByteBuffer.allocate(size);
+            readBuf.flip();
+            bigger.put(readBuf);
+            readBuf = bigger;
+        }
+    }
+
+    void onWritable() {
+        flush();
+    }
+
+    // 循环线程上调用。同一连接的请求保持到达顺序：前面还有排队的，后面的也只能排队
+    private void submit(Message m) {
+        if (pendingCount.get() == 0 && INLINE.contains(m.type)) {
+            try {
+                dispatch(m);
+            } catch (RuntimeException e) {
+                // 同 runPending：断开连接。已在循环线程上，直接关，onReadable 看到 closed 就不再解析后面的帧
+                System.err.println("dispatch " + m.type + ": " + e);
+                closeNow();
+            }
+            return;
+        }
+        pending.add(m);
+        if (pendingCount.getAndIncrement() == 0) loop.workers().execute(this::runPending);
+        if (pendingCount.get() >= MAX_PENDING && !readPaused) {
+            readPaused = true;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        }
+    }
+
+    // worker 线程上执行，同一时刻每个连接最多一个 worker 在跑
+    private void runPending() {
+        for (int i = 0; i < WORKER_BATCH; i++) {
+            Message m = pending.poll();
+            if (!closed) {
+                try {
+                    dispatch(m);
+                } catch (RuntimeException e) {
+                    // 和阻塞模式一样，处理出错就断开这个连接
+                    System.err.println("dispatch " + m.type + ": " + e);
+                    abort();
+                }
+            }
+            int left = pendingCount.decrementAndGet();
+            if (left == MAX_PENDING / 2) loop.execute(this::resumeRead);
+            if (left == 0) return;
+        }
+        loop.workers().execute(this::runPending);
+    }
+
+    private void resumeRead() {
+        if (!readPaused || closed) return;
+        readPaused = false;
+        key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+    }
+
+    // 只在循环线程执行
+    private void flush() {
+        flushScheduled.set(false);
+        if (closed || isCorked()) return; // uncork 时会再调度
+        try {
+            // 排着的多帧用一次 gathering write 写出，而不是一帧一次系统调用。
+            // 只在 writing 有空位时才从 outbox 取：对方不收时帧留在有界的 outbox 里，由它的溢出策略处理
+            while (true) {
+                byte[] f;
+                while (writing.size() < MAX_GATHER && (f = outbox.poll()) != null) writing.add(ByteBuffer.wrap(f));
+                if (writing.isEmpty()) break;
+                int n = 0;
+                long want = 0;
+                for (ByteBuffer b : writing) {
+                    gather[n++] = b;
+                    want += b.remaining();
+                    if (n == MAX_GATHER) break;
+                }
+                long wrote = channel.write(gather, 0, n);
+                server.metrics.bytesOut.add(wrote);
+                server.metrics.socketWrites.increment();
+                Arrays.fill(gather, 0, n, null);
+                while (!writing.isEmpty() && !writing.peek().hasRemaining()) writing.poll();
+                if (wrote < want) break; // 内核发送缓冲满，等 OP_WRITE
+            }
+        } catch (IOException e) {
+            server.metrics.sendFailures.increment();
+            closeNow();
+            return;
+        }
+        if (writing.isEmpty()) {
+            if (closing) {
+                closeNow();
+                return;
+            }
+            key.interestOps(readPaused ? 0 : SelectionKey.OP_READ);
+        } else {
+            key.interestOps((readPaused ? 0 : SelectionKey.OP_READ) | SelectionKey.OP_WRITE);
+        }
+    }
+
+    private void closeNow() {
+        if (closed) return;
+        closed = true;
+        key.cancel();
+        try { channel.close(); } catch (IOException ignore) {}
+        writing.clear();
+        outbox.close();
+        outbox.clear();
+        readBuf = null;
+        server.kick(this);
+        released();
+    }
+}
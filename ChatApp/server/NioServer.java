@@ -0,0 +1,139 @@
+package server;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import protocol.SimpleJson;
+
+// 非阻塞模式：一个接入线程 + 少量事件循环线程，每个循环一个 Selector。
+// 连接建立后轮询分配给某个循环，之后该连接的读写都在这个循环线程上完成。
+// 要读写磁盘的请求（聊天记录、好友、群）交给 workers 线程池处理，回复仍经发送队列由循环线程写出。
+public class NioServer {
+    private final ChatServer server;
+    private final EventLoop[] loops;
+    private final ExecutorService workers;
+    private int next = 0;
+
+    public NioServer(ChatServer server, int loopCount, int workerCount) throws IOException {
+        this.server = server;
+        this.loops = new EventLoop[Math.max(1, loopCount)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop("nio-loop-" + i);
+        }
+        AtomicInteger seq = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(Math.max(1, workerCount), r -> {
+            Thread t = new Thread(r, "nio-worker-" + seq.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public void start(int port) throws IOException {
+        for (EventLoop loop : loops) loop.thread.start();
+        try (ServerSocketChannel ssc = ServerSocketChannel.open()) {
+            ssc.bind(new InetSocketAddress(port), server.backlog);
+            System.out.println("ChatServer (nio, " + loops.length + " loops) started on port " + port);
+            while (true) {
+                SocketChannel ch;
+                try {
+                    ch = ssc.accept(); // 接入线程阻塞 accept 即可
+                } catch (IOException e) {
+                    ChatServer.acceptFailed(e);
+                    continue;
+                }
+                long wait = server.admission.tryAdmit(ch.socket().getInetAddress());
+                if (wait > 0) {
+                    refuse(ch, wait);
+                    continue;
+                }
+                try {
+                    ch.configureBlocking(false);
+                    ch.socket().setTcpNoDelay(true);
+                } catch (IOException e) {
+                    // 单个连接出错只关掉它，接入线程继续
+                    System.err.println("accept: " + e.getMessage());
+                    try { ch.close(); } catch (IOException ignore) {}
+                    server.admission.released(false);
+                    continue;
+                }
+                EventLoop loop = loops[next];
+                next = (next + 1) % loops.length;
+                loop.execute(() -> loop.register(ch));
+            }
+        }
+    }
+
+    // 还是阻塞模式的新连接：写一帧 BUSY 就关（刚建立的连接发送缓冲是空的，不会卡住接入线程）
+    private static void refuse(SocketChannel ch, long wait) {
+        try (ch) {
+            ch.write(ByteBuffer.wrap(SimpleJson.toFrame(AdmissionControl.busy(wait))));
+        } catch (IOException ignore) {
+        }
+    }
+
+    final class EventLoop implements Runnable {
+        final Thread thread;
+        final Selector selector;
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        EventLoop(String name) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, name);
+        }
+
+        boolean inLoop() { return Thread.currentThread() == thread; }
+
+        ExecutorService workers() { return workers; }
+
+        // 其它线程把任务投递到本循环执行（注册、关注写事件、关闭等）
+        void execute(Runnable r) {
+            tasks.add(r);
+            if (!inLoop()) selector.wakeup();
+        }
+
+        void register(SocketChannel ch) {
+            try {
+                NioClientHandler h = new NioClientHandler(ch, this, server);
+                h.key = ch.register(selector, SelectionKey.OP_READ, h);
+                h.admitted();
+            } catch (IOException | RuntimeException | LinkageError e) {
+                // 句柄耗尽时连类加载都可能失败；只关掉这个连接，不能让循环线程退出
+                System.err.println("register: " + e);
+                try { ch.close(); } catch (IOException ignore) {}
+                server.admission.released(false);
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    // 有待办任务时不阻塞，避免本线程投递的写任务被延迟到下一次事件
+                    if (tasks.isEmpty()) selector.select();
+                    else selector.selectNow();
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey k = it.next();
+                        it.remove();
+                        NioClientHandler h = (NioClientHandler) k.attachment();
+                        if (!k.isValid()) continue;
+                        if (k.isReadable()) h.onReadable();
+                        if (k.isValid() && k.isWritable()) h.onWritable();
+                    }
+
+                    Runnable r;
+                    while ((r = tasks.poll()) != null) r.run();
+                } catch (Exception e) {
+                    // 单个连接的异常已在 handler 内处理，这里只防止循环线程退出
+                    System.err.println(thread.getName() + ": " + e);
+                }
+            }
+        }
+    }
+}
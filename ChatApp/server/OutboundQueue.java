@@ -0,0 +1,133 @@
+package server;
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// 每个连接一个有界发送队列：业务线程只入队，由连接自己的写线程（或 NIO 循环）取出写 socket。
+// 队列满时按策略处理：丢最旧的一帧，或判定为慢消费者断开。
+public class OutboundQueue {
+    public enum Overflow { DROP_OLDEST, DISCONNECT }
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private final ArrayDeque<byte[]> q = new ArrayDeque<>();
+    private final int capacity;
+    private final Overflow policy;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private boolean closed = false;
+    private boolean woken = false;
+    private long dropped = 0;
+
+    public OutboundQueue(int capacity, Overflow policy) {
+        this.capacity = Math.max(1, capacity);
+        this.policy = policy;
+    }
+
+    // 返回 false 表示队列已满且策略为 DISCONNECT（或已关闭），调用方应断开该连接
+    public boolean offer(byte[] frame) {
+        lock.lock();
+        try {
+            if (closed) return false;
+            if (q.size() >= capacity) {
+                if (policy == Overflow.DISCONNECT) return false;
+                q.pollFirst();
+                dropped++;
+            }
+            q.addLast(frame);
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 阻塞取一帧；队列空时被 wake 叫醒返回空帧，已关闭且取空时返回 null
+    public byte[] take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (q.isEmpty() && !closed && !woken) notEmpty.await();
+            woken = false;
+            if (q.isEmpty() && !closed) return EMPTY;
+            return q.pollFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 让等在 take 上的写线程醒来一次（如 uncork 后把攒着的写出去），不占队列容量
+    public void wake() {
+        lock.lock();
+        try {
+            woken = true;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public byte[] poll() {
+        lock.lock();
+        try {
+            return q.pollFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isEmpty() {
+        lock.lock();
+        try {
+            return q.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 关闭后不再接收新帧，已排队的帧仍可取出
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isClosed() {
+        lock.lock();
+        try {
+            return closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void clear() {
+        lock.lock();
+        try {
+            q.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return q.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long dropped() {
+        lock.lock();
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
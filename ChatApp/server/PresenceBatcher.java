@@ -0,0 +1,75 @@
+package server;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import protocol.Message;
+
+// 在线状态推送合并：按接收者攒一个短窗口，窗口结束时发一条 STATUS_PUSH（data 为多个 user=STATUS）。
+// 窗口内同一用户 下线->上线（或反之）互相抵消，不产生任何推送。
+// 抵消、合并、实际推送的条数计在 Metrics 的 presence* 里（STATS / JMX 可看）。
+public class PresenceBatcher {
+    private final ChatServer server;
+    private final long windowMs;
+    private final ConcurrentHashMap<String, Map<String, String>> pending = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService timer;
+
+    public PresenceBatcher(ChatServer server, long windowMs) {
+        this.server = server;
+        this.windowMs = windowMs;
+        this.timer = windowMs > 0 ? Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "presence-batcher");
+            t.setDaemon(true);
+            return t;
+        }) : null;
+    }
+
+    // 记录一次 user 对 recipient 可见的状态变化
+    public void enqueue(String recipient, String user, String status) {
+        if (timer == null) {
+            push(recipient, user + "=" + status);
+            return;
+        }
+        pending.compute(recipient, (k, m) -> {
+            if (m == null) {
+                m = new LinkedHashMap<>();
+                timer.schedule(() -> flush(recipient), windowMs, TimeUnit.MILLISECONDS);
+            }
+            String prev = m.get(user);
+            if (prev == null) {
+                m.put(user, status);
+            } else if (prev.equals(status)) {
+                server.metrics.presenceCoalesced.increment();
+            } else {
+                // 来回翻转：接收者看到的状态没变，两次变化都不发
+                m.remove(user);
+                server.metrics.presenceSuppressed.add(2);
+            }
+            return m;
+        });
+    }
+
+    private void flush(String recipient) {
+        Map<String, String> m = pending.remove(recipient);
+        if (m == null || m.isEmpty()) return;
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, String> e : m.entrySet()) {
+            if (sb.length() > 0) sb.append(";");
+            sb.append(e.getKey()).append("=").append(e.getValue());
+        }
+        if (m.size() > 1) server.metrics.presenceCoalesced.add(m.size() - 1);
+        push(recipient, sb.toString());
+    }
+
+    private void push(String recipient, String data) {
+        ClientHandler ch = server.online.get(recipient);
+        if (ch == null) return;
+        Message msg = new Message();
+        msg.type = "STATUS_PUSH";
+        msg.from = "server";
+        msg.to = recipient;
+        msg.data = data;
+        msg.timestamp = System.currentTimeMillis();
+        ch.send(msg);
+        server.metrics.presencePushed.increment();
+    }
+}
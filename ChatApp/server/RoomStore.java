@@ -0,0 +1,224 @@
+package server;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+// 群成员常驻内存，持久化方式同 FriendStore：快照 rooms_db.txt（每行 群名:成员1,成员2，第一个是创建者）
+// + 追加日志 rooms_db.txt.log（C/J/L 三种记录）。成员列表不可变、整体替换，群发时直接遍历不加锁。
+public class RoomStore {
+    private static final int COMPACT_EVERY = 10_000;
+    public static final int MAX_NAME = 32;
+
+    private final Path dbPath;
+    private final Path logPath;
+    private final ReentrantLock lock = new ReentrantLock(); // 只串行化写操作
+    private final ConcurrentHashMap<String, List<String>> members = new ConcurrentHashMap<>();
+    // 账号 -> 他所在的群
+    private final ConcurrentHashMap<String, Set<String>> byUser = new ConcurrentHashMap<>();
+    private Writer log;
+    private int logRecords = 0;
+    private volatile Consumer<String> onDissolve; // 群解散（最后一人退出）时回调，参数为群名
+
+    public RoomStore(String file) {
+        this.dbPath = Paths.get(file);
+        this.logPath = Paths.get(file + ".log");
+        recover();
+    }
+
+    // 群名：ASCII 字母数字、_、-，不含会话键用的 "__"（群名会出现在记录文件名里）
+    public static boolean validName(String room) {
+        if (room == null || room.isEmpty() || room.length() > MAX_NAME || room.contains("__")) return false;
+        for (int i = 0; i < room.length(); i++) {
+            char c = room.charAt(i);
+            boolean ok = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_' || c == '-';
+            if (!ok) return false;
+        }
+        return true;
+    }
+
+    private void recover() {
+        try {
+            if (Files.exists(dbPath)) {
+                for (String line : Files.readAllLines(dbPath, StandardCharsets.UTF_8)) {
+                    int idx = line.indexOf(':');
+                    if (idx <= 0) continue;
+                    List<String> ms = new ArrayList<>();
+                    for (String u : line.substring(idx + 1).split(",")) {
+                        if (!u.isBlank()) ms.add(u.trim());
+                    }
+                    members.put(line.substring(0, idx), List.copyOf(ms));
+                }
+            }
+            boolean replayed = false;
+            if (Files.exists(logPath)) {
+                replayed = true;
+                for (String line : Files.readAllLines(logPath, StandardCharsets.UTF_8)) {
+                    String[] p = line.split("\t", -1);
+                    if (p.length < 3) continue; // 崩溃时写了一半的最后一行
+                    switch (p[0]) {
+                        case "C" -> applyCreate(p[1], p[2]);
+                        case "J" -> applyJoin(p[1], p[2]);
+                        case "L" -> applyLeave(p[1], p[2]);
+                        default -> { }
+                    }
+                }
+            }
+            for (Map.Entry<String, List<String>> e : members.entrySet()) {
+                for (String u : e.getValue()) link(u, e.getKey());
+            }
+            if (replayed) {
+                lock.lock();
+                try {
+                    compact();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // 群解散时要做的清理（删群聊记录）。在写锁内调用，做完之前同名的群建不起来
+    public void setOnDissolve(Consumer<String> c) {
+        this.onDissolve = c;
+    }
+
+    public boolean exists(String room) {
+        return members.containsKey(room);
+    }
+
+    // 群成员（不可变快照），群不存在返回空列表
+    public List<String> membersOf(String room) {
+        return members.getOrDefault(room, List.of());
+    }
+
+    public boolean isMember(String room, String user) {
+        Set<String> rs = byUser.get(user);
+        return rs != null && rs.contains(room);
+    }
+
+    public Set<String> roomsOf(String user) {
+        Set<String> rs = byUser.get(user);
+        return rs == null ? Collections.emptySet() : rs;
+    }
+
+    public Set<String> allRooms() {
+        return members.keySet();
+    }
+
+    // 建群，创建者自动入群；已存在返回 false
+    public boolean create(String room, String owner) {
+        lock.lock();
+        try {
+            if (!applyCreate(room, owner)) return false;
+            append("C\t" + room + "\t" + owner);
+            link(owner, room);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean join(String room, String user) {
+        lock.lock();
+        try {
+            if (!applyJoin(room, user)) return false;
+            append("J\t" + room + "\t" + user);
+            link(user, room);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 退群；最后一个人走了群就没了
+    public boolean leave(String room, String user) {
+        lock.lock();
+        try {
+            if (!applyLeave(room, user)) return false;
+            append("L\t" + room + "\t" + user);
+            Set<String> rs = byUser.get(user);
+            if (rs != null) rs.remove(room);
+            Consumer<String> c = onDissolve;
+            if (c != null && !members.containsKey(room)) c.accept(room);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // ---- 内存修改 ----
+    private boolean applyCreate(String room, String owner) {
+        return members.putIfAbsent(room, List.of(owner)) == null;
+    }
+
+    private boolean applyJoin(String room, String user) {
+        List<String> ms = members.get(room);
+        if (ms == null || ms.contains(user)) return false;
+        List<String> next = new ArrayList<>(ms.size() + 1);
+        next.addAll(ms);
+        next.add(user);
+        members.put(room, Collections.unmodifiableList(next));
+        return true;
+    }
+
+    private boolean applyLeave(String room, String user) {
+        List<String> ms = members.get(room);
+        if (ms == null || !ms.contains(user)) return false;
+        List<String> next = new ArrayList<>(ms);
+        next.remove(user);
+        if (next.isEmpty()) members.remove(room);
+        else members.put(room, Collections.unmodifiableList(next));
+        return true;
+    }
+
+    private void link(String user, String room) {
+        byUser.computeIfAbsent(user, k -> ConcurrentHashMap.newKeySet()).add(room);
+    }
+
+    // ---- 持久化（调用方持有 lock）----
+    private void append(String record) {
+        try {
+            if (log == null) {
+                log = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(logPath.toFile(), true),
+                        StandardCharsets.UTF_8));
+            }
+            log.write(record);
+            log.write("\n");
+            log.flush();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        if (++logRecords >= COMPACT_EVERY) compact();
+    }
+
+    private void compact() {
+        List<String> rooms = new ArrayList<>(members.keySet());
+        Collections.sort(rooms);
+        StringBuilder sb = new StringBuilder();
+        for (String r : rooms) {
+            sb.append(r).append(":").append(String.join(",", members.get(r))).append("\n");
+        }
+        Path tmp = Paths.get(dbPath + ".tmp");
+        try {
+            Files.writeString(tmp, sb.toString(), StandardCharsets.UTF_8);
+            try (FileOutputStream fos = new FileOutputStream(tmp.toFile(), true)) {
+                fos.getFD().sync();
+            }
+            Files.move(tmp, dbPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            if (log != null) {
+                log.close();
+                log = null;
+            }
+            Files.deleteIfExists(logPath);
+            logRecords = 0;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
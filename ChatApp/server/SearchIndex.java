@@ -0,0 +1,735 @@
+package server;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+// 聊天记录全文检索：常驻内存的倒排索引，按会话键哈希分成若干分片，分片之间互不加锁（重建时各分片并行）。
+// 分词：中日韩文字出单字 + 相邻二元组（bigram），其它字母数字连续段按整词（小写）；词项只存 int 哈希。
+// 倒排表按 (会话, 词项) 分开存，内容是分片内递增的记录序号，delta + varint 压缩。哈希冲突、bigram 拼不回原串带来的误命中，
+// 查询时按时间从新到旧回读记录原文（每个会话一次批量读），按同样的分词规则核对，所以结果是准确的。
+// 检查点：定期和关闭时整个存成 history/search.idx，带上每个会话的纪元和最后一条的游标；
+// 启动时读回来，只补扫检查点之后追加的记录，纪元对不上（删过重建）的会话整个重扫。
+public class SearchIndex {
+    private static final int SHARDS = 8;
+    private static final int MAGIC = 0x53494458; // "SIDX"
+    private static final int VERSION = 1;
+
+    public static final class Hit {
+        public final String key;
+        public final long offset;
+        public final long ts;
+        public final String line;
+
+        Hit(String key, long offset, long ts, String line) {
+            this.key = key;
+            this.offset = offset;
+            this.ts = ts;
+            this.line = line;
+        }
+    }
+
+    private final Shard[] shards = new Shard[SHARDS];
+    private final ReentrantLock saveLock = new ReentrantLock();
+
+    public SearchIndex() {
+        for (int i = 0; i < SHARDS; i++) shards[i] = new Shard();
+    }
+
+    private Shard shardOf(String key) {
+        return shards[(key.hashCode() & 0x7fffffff) % SHARDS];
+    }
+
+    // 引擎回调：新记录写入后增量加入索引
+    public void onRecord(String key, long offset, long ts, byte[] record) {
+        IntList toks = new IntList(); // 文档侧不去重，同一记录重复的词在倒排表追加时自然跳过
+        tokenize(contentOf(record), false, toks);
+        shardOf(key).add(key, offset, ts, toks);
+    }
+
+    // 会话被删：之后的查询不再返回它的记录（已占的内存等下次重建时释放）
+    public void drop(String key) {
+        shardOf(key).drop(key);
+    }
+
+    public List<String> keys() {
+        List<String> out = new ArrayList<>();
+        for (Shard s : shards) s.keys(out);
+        return out;
+    }
+
+    public long records() {
+        long n = 0;
+        for (Shard s : shards) n += s.n;
+        return n;
+    }
+
+    // 启动时（开始服务之前）调用：有检查点就读进来再补扫之后的记录，否则从引擎现有数据整体重建。
+    // 会话按分片分组，每个分片一个任务并行扫。返回 true 表示用上了检查点
+    public boolean load(Path file, HistoryEngine engine, int threads) throws InterruptedException {
+        boolean loaded = readCheckpoint(file, engine);
+        List<String> keys = engine.keys();
+        List<List<String>> groups = new ArrayList<>();
+        for (int i = 0; i < SHARDS; i++) groups.add(new ArrayList<>());
+        for (String key : keys) groups.get((key.hashCode() & 0x7fffffff) % SHARDS).add(key);
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, SHARDS)));
+        try {
+            List<Future<?>> fs = new ArrayList<>();
+            for (int i = 0; i < SHARDS; i++) {
+                Shard s = shards[i];
+                List<String> g = groups.get(i);
+                fs.add(pool.submit(() -> {
+                    for (String key : g) {
+                        try {
+                            engine.scan(key, s.resumeFrom(key, engine), this::onRecord);
+                        } catch (IOException e) {
+                            System.err.println("search index: skip " + key + ": " + e.getMessage());
+                        }
+                    }
+                }));
+            }
+            for (Future<?> f : fs) {
+                try {
+                    f.get();
+                } catch (ExecutionException e) {
+                    System.err.println("search index: " + e.getCause());
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+        // 检查点里有、引擎里已经没有的会话
+        Set<String> live = new HashSet<>(keys);
+        for (String key : keys()) {
+            if (!live.contains(key)) drop(key);
+        }
+        return loaded;
+    }
+
+    private boolean readCheckpoint(Path file, HistoryEngine engine) {
+        if (!Files.exists(file)) return false;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readInt() != SHARDS
+                    || !in.readUTF().equals(engine.getClass().getSimpleName())) {
+                return false; // 格式或引擎换了，游标不通用
+            }
+            Shard[] read = new Shard[SHARDS];
+            for (int i = 0; i < SHARDS; i++) read[i] = Shard.read(in);
+            System.arraycopy(read, 0, shards, 0, SHARDS);
+            return true;
+        } catch (IOException | RuntimeException e) {
+            System.err.println("search index: ignore checkpoint " + file + ": " + e);
+            return false;
+        }
+    }
+
+    // 存检查点（先写临时文件再原子替换）。各分片在锁里只拷数组，写文件在锁外；
+    // 上次检查点之后新出现的会话在这里向引擎取纪元
+    public void save(Path file, HistoryEngine engine) {
+        saveLock.lock();
+        try {
+            Shard.Image[] images = new Shard.Image[SHARDS];
+            for (int i = 0; i < SHARDS; i++) {
+                images[i] = shards[i].image();
+                shards[i].fillEpochs(images[i], engine);
+            }
+            Path tmp = Paths.get(file + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(SHARDS);
+                out.writeUTF(engine.getClass().getSimpleName());
+                for (Shard.Image img : images) img.write(out);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("search index save: " + e.getMessage());
+        } finally {
+            saveLock.unlock();
+        }
+    }
+
+    // 在给定会话里找同时包含 query 各个词（按空白分开）的记录，新的在前，最多 limit 条
+    public List<Hit> search(Collection<String> keys, String query, long fromTs, long toTs, int limit,
+                            HistoryEngine engine) throws IOException {
+        String[] terms = query.toLowerCase().trim().split("\\s+");
+        IntSet qTokens = new IntSet();
+        for (String t : terms) tokenize(t, true, qTokens);
+        Segments want = new Segments(query);
+        List<Hit> out = new ArrayList<>();
+        if (qTokens.size == 0 || keys.isEmpty()) return out;
+
+        Map<Shard, Set<String>> byShard = new HashMap<>();
+        for (String key : keys) byShard.computeIfAbsent(shardOf(key), s -> new HashSet<>()).add(key);
+        List<ConvPostings> found = new ArrayList<>();
+        for (Map.Entry<Shard, Set<String>> e : byShard.entrySet()) e.getKey().postings(e.getValue(), qTokens, found);
+
+        // 锁外解码：每个会话各自求交、按时间过滤，得到按写入顺序（也就是从旧到新）排的候选
+        PriorityQueue<Cursor> heads = new PriorityQueue<>((x, y) -> Long.compare(y.ts(), x.ts()));
+        for (ConvPostings cp : found) {
+            Cursor c = cp.candidates(fromTs, toTs);
+            if (c != null) heads.add(c);
+        }
+
+        // 各会话从尾部往前归并：每轮按时间从新到旧取出还差的条数，按会话分组各批量回读一次原文，
+        // 核对后按取出的顺序收下，够 limit 条就停
+        while (out.size() < limit && !heads.isEmpty()) {
+            int need = limit - out.size();
+            ConvPostings[] src = new ConvPostings[need];
+            long[] offs = new long[need];
+            long[] tss = new long[need];
+            int got = 0;
+            while (got < need && !heads.isEmpty()) {
+                Cursor c = heads.poll();
+                int doc = c.docs[c.pos];
+                src[got] = c.src;
+                offs[got] = c.src.docOff[doc];
+                tss[got++] = c.src.docTs[doc];
+                if (--c.pos >= 0) heads.add(c);
+            }
+            Map<ConvPostings, List<Integer>> byConv = new HashMap<>();
+            for (int k = 0; k < got; k++) byConv.computeIfAbsent(src[k], x -> new ArrayList<>()).add(k);
+            byte[][] records = new byte[got][];
+            for (Map.Entry<ConvPostings, List<Integer>> e : byConv.entrySet()) {
+                List<Integer> idx = e.getValue();
+                long[] batch = new long[idx.size()];
+                for (int k = 0; k < batch.length; k++) batch[k] = offs[idx.get(k)];
+                byte[][] recs = engine.readRecords(e.getKey().key, batch, batch.length);
+                for (int k = 0; k < batch.length; k++) records[idx.get(k)] = recs[k];
+            }
+            for (int k = 0; k < got; k++) {
+                if (records[k] == null || !want.within(new Segments(contentOf(records[k])))) continue;
+                out.add(new Hit(src[k].key, offs[k], tss[k], new String(records[k], StandardCharsets.UTF_8)));
+            }
+        }
+        return out;
+    }
+
+    // 一个倒排表在某一时刻的快照：首个序号 + 之后的 delta 字节。字节数组只在尾部追加、扩容时整个换新，
+    // 已写的前 len 字节不会再改，所以拿到引用后可以在锁外解码
+    private static final class Postings {
+        final int first;
+        final byte[] data;
+        final int len;
+
+        Postings(int first, byte[] data, int len) {
+            this.first = first;
+            this.data = data;
+            this.len = len;
+        }
+
+        int[] decode() {
+            int[] out = new int[Math.max(1, len)];
+            out[0] = first;
+            int k = 1;
+            int doc = first;
+            for (int p = 0; p < len; ) {
+                int d = 0;
+                for (int shift = 0; ; shift += 7) {
+                    int x = data[p++];
+                    d |= (x & 0x7F) << shift;
+                    if ((x & 0x80) == 0) break;
+                }
+                doc += d;
+                if (k == out.length) out = Arrays.copyOf(out, k * 2);
+                out[k++] = doc;
+            }
+            return Arrays.copyOf(out, k);
+        }
+    }
+
+    // 一个会话里 query 各词的倒排表，连同当时的记录表引用（下标 < n 的部分同样不会再改）
+    private static final class ConvPostings {
+        final String key;
+        final Postings[] lists;
+        final long[] docOff;
+        final long[] docTs;
+
+        ConvPostings(String key, Postings[] lists, long[] docOff, long[] docTs) {
+            this.key = key;
+            this.lists = lists;
+            this.docOff = docOff;
+            this.docTs = docTs;
+        }
+
+        // 短的先解码，结果变空就不用再解后面的
+        Cursor candidates(long fromTs, long toTs) {
+            Arrays.sort(lists, Comparator.comparingInt(p -> p.len));
+            int[] docs = lists[0].decode();
+            for (int k = 1; k < lists.length && docs.length > 0; k++) docs = intersect(docs, lists[k].decode());
+            int n = 0;
+            for (int doc : docs) {
+                if (docTs[doc] >= fromTs && docTs[doc] <= toTs) docs[n++] = doc;
+            }
+            return n == 0 ? null : new Cursor(this, docs, n - 1);
+        }
+    }
+
+    private static final class Cursor {
+        final ConvPostings src;
+        final int[] docs;
+        int pos;
+
+        Cursor(ConvPostings src, int[] docs, int pos) {
+            this.src = src;
+            this.docs = docs;
+            this.pos = pos;
+        }
+
+        long ts() {
+            return src.docTs[docs[pos]];
+        }
+    }
+
+    private static int[] intersect(int[] a, int[] b) {
+        int[] r = new int[Math.min(a.length, b.length)];
+        int i = 0, j = 0, k = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) i++;
+            else if (a[i] > b[j]) j++;
+            else {
+                r[k++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(r, k);
+    }
+
+    // ---- 分词 ----
+
+    static boolean isCjk(int cp) {
+        return (cp >= 0x4E00 && cp <= 0x9FFF) || (cp >= 0x3400 && cp <= 0x4DBF)   // 汉字
+                || (cp >= 0x3040 && cp <= 0x30FF)                                // 假名
+                || (cp >= 0xAC00 && cp <= 0xD7AF)                                // 韩文
+                || (cp >= 0xF900 && cp <= 0xFAFF) || (cp >= 0x20000 && cp <= 0x3134F);
+    }
+
+    // 文档侧单字和二元组都出；查询侧只有一个字的段才用单字（多字段用二元组，更有区分度）
+    static void tokenize(String s, boolean query, TokenSink out) {
+        int n = s.length();
+        int prevCjk = -1;
+        int runLen = 0;
+        int wordStart = -1;
+        int wordHash = 0;
+        for (int i = 0; i <= n; ) {
+            int cp = i < n ? s.codePointAt(i) : -1;
+            boolean cjk = cp >= 0 && isCjk(cp);
+            boolean word = cp >= 0 && !cjk && Character.isLetterOrDigit(cp);
+            if (wordStart >= 0 && !word) {
+                out.add(mix(0x57, wordHash));
+                wordStart = -1;
+            }
+            if (cjk) {
+                if (!query) out.add(mix(0x31, cp));
+                if (prevCjk >= 0) out.add(mix(0x32, (long) prevCjk * 0x110000 + cp));
+                prevCjk = cp;
+                runLen++;
+            } else {
+                if (query && runLen == 1) out.add(mix(0x31, prevCjk));
+                prevCjk = -1;
+                runLen = 0;
+                if (word) {
+                    if (wordStart < 0) {
+                        wordStart = i;
+                        wordHash = 0;
+                    }
+                    wordHash = wordHash * 31 + Character.toLowerCase(cp);
+                }
+            }
+            i += cp >= 0x10000 ? 2 : 1;
+        }
+    }
+
+    // 按同样的分词规则把文本拆成中日韩连续段和字母数字整词（小写），核对候选记录用
+    static final class Segments {
+        final List<String> runs = new ArrayList<>();
+        final Set<String> words = new HashSet<>();
+
+        Segments(String s) {
+            StringBuilder run = new StringBuilder();
+            StringBuilder word = new StringBuilder();
+            int n = s.length();
+            for (int i = 0; i <= n; ) {
+                int cp = i < n ? s.codePointAt(i) : -1;
+                boolean cjk = cp >= 0 && isCjk(cp);
+                boolean w = cp >= 0 && !cjk && Character.isLetterOrDigit(cp);
+                if (!cjk && run.length() > 0) {
+                    runs.add(run.toString());
+                    run.setLength(0);
+                }
+                if (!w && word.length() > 0) {
+                    words.add(word.toString());
+                    word.setLength(0);
+                }
+                if (cjk) run.appendCodePoint(cp);
+                else if (w) word.appendCodePoint(Character.toLowerCase(cp));
+                i += cp >= 0x10000 ? 2 : 1;
+            }
+        }
+
+        // 查询的每个整词记录里都有，每个中日韩段都连续出现在记录的某一段里
+        boolean within(Segments doc) {
+            if (!doc.words.containsAll(words)) return false;
+            next:
+            for (String r : runs) {
+                for (String d : doc.runs) {
+                    if (d.contains(r)) continue next;
+                }
+                return false;
+            }
+            return true;
+        }
+    }
+
+    private static int mix(int tag, long v) {
+        long h = (v ^ ((long) tag << 56)) * 0x9E3779B97F4A7C15L;
+        h ^= h >>> 29;
+        h *= 0xBF58476D1CE4E5B9L;
+        int r = (int) (h ^ (h >>> 32));
+        return r == 0 ? 1 : r; // 0 留给开放寻址表当空位
+    }
+
+    // 记录行 "[时间] from -> to: content"，只索引 content
+    static String contentOf(byte[] record) {
+        String line = new String(record, StandardCharsets.UTF_8);
+        int at = line.indexOf(": ", HistoryIndex.HEADER_LEN);
+        return at < 0 ? line : line.substring(at + 2);
+    }
+
+    // ---- 分片 ----
+    private static final class Shard {
+        final ReentrantLock lock = new ReentrantLock();
+        // 会话：键 <-> 分片内编号；删掉的会话从 convIds 里拿掉，旧编号的记录就查不到了
+        final HashMap<String, Integer> convIds = new HashMap<>();
+        final ArrayList<String> convKeys = new ArrayList<>();
+        long[] convLastOff = new long[16];
+        String[] convEpoch = new String[16]; // 会话的纪元，检查点用；还没取过为 null
+        // 记录表
+        long[] docOff = new long[1024];
+        long[] docTs = new long[1024];
+        volatile int n = 0;
+        // 开放寻址：(会话编号, 词项哈希) -> 倒排表，倒排表按会话分开，查询只解码有权看的会话。
+        // 每个槽 5 个 int 挨着放（词项, 会话, 首个序号, 最后序号, 字节数），插入时少几次缓存缺失；
+        // 只出现过一次的 (会话, 词) 不分配字节数组
+        int[] tab = new int[1024 * 5];
+        byte[][] tokData = new byte[1024][];
+        int used = 0;
+
+        void add(String key, long off, long ts, IntList toks) {
+            lock.lock();
+            try {
+                Integer cid = convIds.get(key);
+                if (cid == null) {
+                    cid = convKeys.size();
+                    convKeys.add(key);
+                    convIds.put(key, cid);
+                    if (cid == convLastOff.length) {
+                        convLastOff = Arrays.copyOf(convLastOff, cid * 2);
+                        convEpoch = Arrays.copyOf(convEpoch, cid * 2);
+                    }
+                    convLastOff[cid] = -1;
+                }
+                if (off <= convLastOff[cid]) return; // 重建和增量重叠时的重复记录
+                convLastOff[cid] = off;
+                if (n == docOff.length) {
+                    docOff = Arrays.copyOf(docOff, n * 2);
+                    docTs = Arrays.copyOf(docTs, n * 2);
+                }
+                int doc = n;
+                docOff[doc] = off;
+                docTs[doc] = ts;
+                for (int k = 0; k < toks.n; k++) post(slot(cid, toks.a[k]), doc);
+                n = doc + 1;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void drop(String key) {
+            lock.lock();
+            try {
+                convIds.remove(key);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // 启动补扫时某个会话从哪里开始扫：检查点里有且纪元对得上就从最后一条（重复的那条 add 会跳过），否则从头
+        long resumeFrom(String key, HistoryEngine engine) throws IOException {
+            String epoch;
+            long last;
+            lock.lock();
+            try {
+                Integer cid = convIds.get(key);
+                if (cid == null) return 0;
+                epoch = convEpoch[cid];
+                last = convLastOff[cid];
+            } finally {
+                lock.unlock();
+            }
+            if (epoch != null && epoch.equals(engine.epoch(key))) return last;
+            drop(key);
+            return 0;
+        }
+
+        // 拷一份检查点要写的内容。字节数组只追加、扩容时整个换新，拷引用即可
+        Image image() {
+            lock.lock();
+            try {
+                Image img = new Image();
+                img.n = n;
+                img.docOff = Arrays.copyOf(docOff, n);
+                img.docTs = Arrays.copyOf(docTs, n);
+                img.keys = convKeys.toArray(new String[0]);
+                img.live = new boolean[img.keys.length];
+                for (int cid = 0; cid < img.keys.length; cid++) img.live[cid] = Objects.equals(convIds.get(img.keys[cid]), cid);
+                img.lastOff = Arrays.copyOf(convLastOff, img.keys.length);
+                img.epoch = Arrays.copyOf(convEpoch, img.keys.length);
+                img.tab = tab.clone();
+                img.tokData = tokData.clone();
+                img.used = used;
+                return img;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // 补上还没取过的纪元。取纪元时会话没被删过（仍是同一个编号）才算数，否则这次按删掉的存
+        void fillEpochs(Image img, HistoryEngine engine) throws IOException {
+            for (int cid = 0; cid < img.keys.length; cid++) {
+                if (!img.live[cid] || img.epoch[cid] != null) continue;
+                String e = engine.epoch(img.keys[cid]);
+                lock.lock();
+                try {
+                    if (!"0".equals(e) && Objects.equals(convIds.get(img.keys[cid]), cid)) {
+                        convEpoch[cid] = e;
+                        img.epoch[cid] = e;
+                    } else {
+                        img.live[cid] = false;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+
+        static final class Image {
+            int n;
+            long[] docOff;
+            long[] docTs;
+            String[] keys;
+            boolean[] live;
+            long[] lastOff;
+            String[] epoch;
+            int[] tab;
+            byte[][] tokData;
+            int used;
+
+            void write(DataOutputStream out) throws IOException {
+                out.writeInt(n);
+                for (int i = 0; i < n; i++) {
+                    out.writeLong(docOff[i]);
+                    out.writeLong(docTs[i]);
+                }
+                out.writeInt(keys.length);
+                for (int cid = 0; cid < keys.length; cid++) {
+                    out.writeUTF(keys[cid]);
+                    out.writeBoolean(live[cid]);
+                    out.writeLong(lastOff[cid]);
+                    out.writeUTF(epoch[cid] == null ? "" : epoch[cid]);
+                }
+                out.writeInt(tokData.length);
+                out.writeInt(used);
+                for (int i = 0; i < tokData.length; i++) {
+                    int m = i * 5;
+                    if (tab[m] == 0) continue;
+                    out.writeInt(i);
+                    for (int k = 0; k < 5; k++) out.writeInt(tab[m + k]);
+                    out.write(tokData[i] == null ? new byte[0] : tokData[i], 0, tab[m + 4]);
+                }
+                out.writeInt(-1);
+            }
+        }
+
+        static Shard read(DataInputStream in) throws IOException {
+            Shard s = new Shard();
+            int n = in.readInt();
+            s.docOff = new long[Math.max(1024, n)];
+            s.docTs = new long[Math.max(1024, n)];
+            for (int i = 0; i < n; i++) {
+                s.docOff[i] = in.readLong();
+                s.docTs[i] = in.readLong();
+            }
+            s.n = n;
+            int convs = in.readInt();
+            s.convLastOff = new long[Math.max(16, convs)];
+            s.convEpoch = new String[Math.max(16, convs)];
+            for (int cid = 0; cid < convs; cid++) {
+                String key = in.readUTF();
+                boolean live = in.readBoolean();
+                s.convKeys.add(key);
+                if (live) s.convIds.put(key, cid);
+                s.convLastOff[cid] = in.readLong();
+                String e = in.readUTF();
+                s.convEpoch[cid] = e.isEmpty() ? null : e;
+            }
+            int cap = in.readInt();
+            if (Integer.bitCount(cap) != 1) throw new IOException("bad table size " + cap);
+            s.tab = new int[cap * 5];
+            s.tokData = new byte[cap][];
+            s.used = in.readInt();
+            for (int i = in.readInt(); i >= 0; i = in.readInt()) {
+                int m = i * 5;
+                for (int k = 0; k < 5; k++) s.tab[m + k] = in.readInt();
+                int len = s.tab[m + 4];
+                if (len > 0) {
+                    s.tokData[i] = new byte[Math.max(8, len)];
+                    in.readFully(s.tokData[i], 0, len);
+                }
+            }
+            return s;
+        }
+
+        void keys(List<String> out) {
+            lock.lock();
+            try {
+                out.addAll(convIds.keySet());
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private static int home(int cid, int tok, int mask) {
+            return (tok ^ (cid * 0x9E3779B9)) & mask;
+        }
+
+        private int slot(int cid, int tok) {
+            if ((used + 1) * 2 > tokData.length) grow();
+            int mask = tokData.length - 1;
+            int i = home(cid, tok, mask);
+            while (tab[i * 5] != 0 && (tab[i * 5] != tok || tab[i * 5 + 1] != cid)) i = (i + 1) & mask;
+            if (tab[i * 5] == 0) {
+                tab[i * 5] = tok;
+                tab[i * 5 + 1] = cid;
+                tab[i * 5 + 3] = -1;
+                used++;
+            }
+            return i;
+        }
+
+        private int find(int cid, int tok) {
+            int mask = tokData.length - 1;
+            int i = home(cid, tok, mask);
+            while (tab[i * 5] != 0) {
+                if (tab[i * 5] == tok && tab[i * 5 + 1] == cid) return i;
+                i = (i + 1) & mask;
+            }
+            return -1;
+        }
+
+        private void grow() {
+            int[] ot = tab;
+            byte[][] od = tokData;
+            int cap = od.length * 2;
+            tab = new int[cap * 5];
+            tokData = new byte[cap][];
+            int mask = cap - 1;
+            for (int j = 0; j < od.length; j++) {
+                if (ot[j * 5] == 0) continue;
+                int i = home(ot[j * 5 + 1], ot[j * 5], mask);
+                while (tab[i * 5] != 0) i = (i + 1) & mask;
+                System.arraycopy(ot, j * 5, tab, i * 5, 5);
+                tokData[i] = od[j];
+            }
+        }
+
+        // 追加一个递增的记录序号：第一个记在槽里，之后的 delta + varint
+        private void post(int i, int doc) {
+            int m = i * 5;
+            int last = tab[m + 3];
+            if (last == doc) return;
+            tab[m + 3] = doc;
+            if (last < 0) {
+                tab[m + 2] = doc;
+                return;
+            }
+            int d = doc - last;
+            byte[] data = tokData[i];
+            int len = tab[m + 4];
+            if (data == null) data = tokData[i] = new byte[8];
+            else if (len + 5 > data.length) data = tokData[i] = Arrays.copyOf(data, data.length * 2);
+            while ((d & ~0x7F) != 0) {
+                data[len++] = (byte) ((d & 0x7F) | 0x80);
+                d >>>= 7;
+            }
+            data[len++] = (byte) d;
+            tab[m + 4] = len;
+        }
+
+        // 锁内只收集引用，解码和求交在锁外做，不挡同分片的写入
+        void postings(Set<String> keys, IntSet qTokens, List<ConvPostings> out) {
+            lock.lock();
+            try {
+                next:
+                for (String k : keys) {
+                    Integer cid = convIds.get(k);
+                    if (cid == null) continue;
+                    Postings[] lists = new Postings[qTokens.size];
+                    int c = 0;
+                    for (int t : qTokens.keys) {
+                        if (t == 0) continue;
+                        int i = find(cid, t);
+                        if (i < 0) continue next;
+                        lists[c++] = new Postings(tab[i * 5 + 2], tokData[i], tab[i * 5 + 4]);
+                    }
+                    out.add(new ConvPostings(k, lists, docOff, docTs));
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    interface TokenSink {
+        void add(int token);
+    }
+
+    static final class IntList implements TokenSink {
+        int[] a = new int[128];
+        int n = 0;
+
+        @Override
+        public void add(int v) {
+            if (n == a.length) a = Arrays.copyOf(a, n * 2);
+            a[n++] = v;
+        }
+    }
+
+    // 查询词项去重用的小 int 集合（0 不会出现）
+    static final class IntSet implements TokenSink {
+        int[] keys = new int[64];
+        int size = 0;
+
+        @Override
+        public void add(int v) {
+            if ((size + 1) * 2 > keys.length) {
+                int[] old = keys;
+                keys = new int[old.length * 2];
+                size = 0;
+                for (int x : old) if (x != 0) add(x);
+            }
+            int mask = keys.length - 1;
+            int i = v & mask;
+            while (keys[i] != 0) {
+                if (keys[i] == v) return;
+                i = (i + 1) & mask;
+            }
+            keys[i] = v;
+            size++;
+        }
+    }
+}
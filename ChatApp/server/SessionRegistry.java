@@ -0,0 +1,153 @@
+package server;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// 在线会话表：账号 -> 当前连接。登录顶号和下线都用 ConcurrentHashMap 的原子操作按账号完成，
+// 不同账号之间互不等待。上线/下线事件在原子操作里按发生顺序排进该账号的队列，
+// 出来以后再由某一个线程按顺序处理（不持有任何锁），保证好友最后看到的状态和实际一致。
+// 集群模式下其它节点报来的上线/下线也排进同一个队列：账号在任一节点在线就算在线，只在这个结果变化时推送。
+// 事件都在 presence.compute 里入队，处理完后既不在线、也没有待处理事件的账号从 presence 里删掉。
+public class SessionRegistry {
+    public interface PresenceSink {
+        // 账号（集群范围内）的在线状态变了：本节点会话引起的，或其它节点失联（lost）引起的。
+        // 其它节点正常报来的上线/下线由那个节点发起推送，这里不再推
+        void publish(String user, String status, boolean lost);
+
+        // 本节点上的会话有了/没了（集群模式下据此通知其它节点），gen 为该会话的登录代数
+        default void localChanged(String user, boolean on, long gen) {}
+    }
+
+    private static final class Event {
+        final boolean on;
+        final String node; // null 表示本节点
+        final long gen;
+        final boolean lost; // 其它节点失联（它来不及自己推送下线）
+
+        Event(boolean on, String node, long gen) {
+            this(on, node, gen, false);
+        }
+
+        Event(boolean on, String node, long gen, boolean lost) {
+            this.on = on;
+            this.node = node;
+            this.gen = gen;
+            this.lost = lost;
+        }
+    }
+
+    // 每个账号的事件队列；draining 为 true 表示已有线程在处理。local/remote 只在处理事件的线程里读写
+    private static final class Presence {
+        final ConcurrentLinkedQueue<Event> events = new ConcurrentLinkedQueue<>();
+        final AtomicBoolean draining = new AtomicBoolean();
+        boolean local;
+        final Set<String> remote = new HashSet<>(2);
+
+        boolean visible() {
+            return local || !remote.isEmpty();
+        }
+
+        // 在 presence 的 compute 里调用：此时没人能再入队
+        boolean idle() {
+            return !draining.get() && events.isEmpty() && !visible();
+        }
+    }
+
+    private final ConcurrentHashMap<String, ClientHandler> online;
+    private final ConcurrentHashMap<String, Presence> presence = new ConcurrentHashMap<>();
+    private final PresenceSink sink;
+
+    public SessionRegistry(ConcurrentHashMap<String, ClientHandler> online, PresenceSink sink) {
+        this.online = online;
+        this.sink = sink;
+    }
+
+    // 登记 h 为 user 的当前连接，返回被顶掉的旧连接（没有为 null）。顶号时账号一直在线，不产生状态变化
+    public ClientHandler login(String user, ClientHandler h) {
+        ClientHandler[] prev = new ClientHandler[1];
+        Presence p = presence.compute(user, (k, cur) -> {
+            Presence q = cur != null ? cur : new Presence();
+            online.compute(user, (k2, old) -> {
+                prev[0] = old;
+                if (old == null) q.events.add(new Event(true, null, h.loginGen()));
+                return h;
+            });
+            return q;
+        });
+        drain(user, p);
+        return prev[0];
+    }
+
+    // 只有 h 仍是 user 的当前连接时才移除（被顶掉的旧连接迟到的下线不影响新连接）
+    public boolean remove(String user, ClientHandler h) {
+        boolean[] removed = new boolean[1];
+        Presence p = presence.computeIfPresent(user, (k, q) -> {
+            online.computeIfPresent(user, (k2, cur) -> {
+                if (cur != h) return cur;
+                removed[0] = true;
+                q.events.add(new Event(false, null, h.loginGen()));
+                return null;
+            });
+            return q;
+        });
+        if (removed[0]) drain(user, p);
+        return removed[0];
+    }
+
+    // 其它节点报告 user 在它那里上线/下线
+    public void remote(String user, String node, boolean on) {
+        drain(user, enqueue(user, new Event(on, node, 0)));
+    }
+
+    // 和 node 的链路断了：user 当作在那里下线，由本节点推送
+    public void remoteLost(String user, String node) {
+        drain(user, enqueue(user, new Event(false, node, 0, true)));
+    }
+
+    private Presence enqueue(String user, Event e) {
+        return presence.compute(user, (k, cur) -> {
+            Presence q = cur != null ? cur : new Presence();
+            q.events.add(e);
+            return q;
+        });
+    }
+
+    public boolean isCurrent(String user, ClientHandler h) {
+        return user != null && online.get(user) == h;
+    }
+
+    // 谁抢到 draining 谁负责处理；处理完放手后再看一眼，防止别的线程刚放进来的事件没人管
+    private void drain(String user, Presence p) {
+        while (!p.events.isEmpty() && p.draining.compareAndSet(false, true)) {
+            try {
+                Event e;
+                while ((e = p.events.poll()) != null) apply(user, p, e);
+            } finally {
+                p.draining.set(false);
+            }
+        }
+        // 账号已不在线：去掉这一项，免得登录过的账号一直留在表里
+        presence.computeIfPresent(user, (k, cur) -> cur == p && p.idle() ? null : cur);
+    }
+
+    // 还有状态记录的账号数（STATS 用）
+    int tracked() {
+        return presence.size();
+    }
+
+    private void apply(String user, Presence p, Event e) {
+        boolean before = p.visible();
+        if (e.node == null) {
+            p.local = e.on;
+            sink.localChanged(user, e.on, e.gen);
+        } else if (e.on) {
+            p.remote.add(e.node);
+        } else {
+            p.remote.remove(e.node);
+        }
+        boolean after = p.visible();
+        if (before != after && (e.node == null || e.lost)) sink.publish(user, after ? "ONLINE" : "OFFLINE", e.lost);
+    }
+}
@@ -0,0 +1,41 @@
+package server;
+import protocol.BinaryCodec;
+import protocol.Message;
+import protocol.SimpleJson;
+
+// 群发用：同一条消息对所有接收者只编码一次（JSON 帧、二进制帧、压缩帧各最多一次，用到才编），
+// 编好的字节数组直接放进各连接的发送队列，各连接之间共享、不复制。
+public final class SharedFrame {
+    private final Message m;
+    private volatile byte[] json;
+    private volatile byte[] binary;
+    private volatile byte[] deflated;
+
+    public SharedFrame(Message m) {
+        this.m = m;
+    }
+
+    public Message message() {
+        return m;
+    }
+
+    // 并发时可能重复编码一次，结果相同，不影响正确性
+    public byte[] bytes(boolean bin) {
+        if (bin) {
+            byte[] b = binary;
+            if (b == null) binary = b = BinaryCodec.encode(m);
+            return b;
+        }
+        byte[] j = json;
+        if (j == null) json = j = SimpleJson.toFrame(m);
+        return j;
+    }
+
+    // c 不为 null 表示该连接协商了压缩（只会是二进制连接）
+    public byte[] bytes(boolean bin, FrameCompressor c) {
+        if (c == null || !bin) return bytes(bin);
+        byte[] d = deflated;
+        if (d == null) deflated = d = c.compress(m.type, bytes(true));
+        return d;
+    }
+}
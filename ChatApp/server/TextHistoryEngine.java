@@ -0,0 +1,578 @@
+package server;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+// 文本引擎（默认）：每个会话一个文件 history/a__b.txt，就是一行行的记录原文；旁边的 a__b.epoch 存会话的纪元。
+// 每个会话有自己的追加通道和待写队列，不同会话互不阻塞；同一会话并发追加时由先拿到写锁的线程
+// 把队列里所有行一次写出（组提交）。会话对象（连同打开的文件句柄、分页索引）放在有界 LRU 里，淘汰时一起放掉。
+public class TextHistoryEngine implements HistoryEngine {
+    private final Path baseDir;
+
+    private final ConcurrentHashMap<String, Conversation> convs = new ConcurrentHashMap<>();
+    private final Set<Conversation> dirty = ConcurrentHashMap.newKeySet();
+    // 内存里的会话，按访问顺序淘汰
+    private final LinkedHashMap<String, Conversation> openLru = new LinkedHashMap<>(16, 0.75f, true);
+    private final ReentrantLock lruLock = new ReentrantLock();
+    private int maxOpenFiles = 256;
+    private volatile HistoryStore.Durability durability = HistoryStore.Durability.BATCH;
+    private ScheduledExecutorService flusher;
+    private volatile RecordListener listener;
+
+    public TextHistoryEngine(Path baseDir) {
+        this.baseDir = baseDir;
+    }
+
+    @Override
+    public void setDurability(HistoryStore.Durability d, long intervalMs) {
+        this.durability = d;
+        if (d == HistoryStore.Durability.INTERVAL && flusher == null) {
+            flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "history-flusher");
+                t.setDaemon(true);
+                return t;
+            });
+            flusher.scheduleWithFixedDelay(this::flushDirty, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // 同时打开的会话文件上限
+    public void setMaxOpenFiles(int n) {
+        this.maxOpenFiles = Math.max(1, n);
+    }
+
+    private Conversation conv(String key) {
+        return convs.computeIfAbsent(key, k -> new Conversation(k, baseDir.resolve(k + ".txt")));
+    }
+
+    // 读路径用：取会话并拿写锁，文件不存在（也没有待写的行）时返回 null，不为随便一个 key 建会话；
+    // 拿到的恰好刚被淘汰就重取
+    private Conversation lockExisting(String key) {
+        while (true) {
+            Conversation c = convs.get(key);
+            if (c == null) {
+                if (!Files.exists(baseDir.resolve(key + ".txt"))) return null;
+                c = conv(key);
+            }
+            c.writeLock.lock();
+            if (!c.evicted) return c;
+            c.writeLock.unlock();
+            convs.remove(key, c);
+        }
+    }
+
+    @Override
+    public void setListener(RecordListener l) {
+        this.listener = l;
+    }
+
+    @Override
+    public void append(String key, byte[] record, long ts) {
+        Conversation c = conv(key);
+        while (!c.enqueue(record)) { // 刚被淘汰，换新的
+            convs.remove(key, c);
+            c = conv(key);
+        }
+        try {
+            if (durability == HistoryStore.Durability.INTERVAL) dirty.add(c);
+            else c.flush(durability == HistoryStore.Durability.FSYNC);
+        } catch (IOException e) {
+            System.err.println("history append " + key + ": " + e.getMessage());
+        }
+    }
+
+    @Override
+    public String readAll(String key) throws IOException {
+        Conversation c = convs.get(key);
+        if (c != null) c.flush(false); // 先把还在队列里的行写出去
+        Path f = baseDir.resolve(key + ".txt");
+        if (!Files.exists(f)) return null;
+        return Files.readString(f);
+    }
+
+    // ---- 分页读：靠稀疏索引定位，每页只做几次定位读 ----
+
+    @Override
+    public HistoryStore.Page readBefore(String key, long cursor, int limit) throws IOException {
+        Conversation c = lockExisting(key);
+        if (c == null) return new HistoryStore.Page("", 0, 0, false, false);
+        long size, end, floor;
+        long[] ents;
+        int n;
+        try {
+            HistoryIndex idx = c.index();
+            size = idx.size();
+            end = Math.min(Math.max(cursor, 0), size);
+            floor = floorEntry(idx, end);
+            // 每个索引区间里至少有一条记录，往回最多用 limit 个区间；多取一个，游标对齐后可能要扔掉第一个
+            int i = idx.floorBefore(end);
+            ents = new long[limit + 2];
+            n = 0;
+            for (; i >= 0 && n <= limit; i--) ents[n++] = idx.offsetAt(i);
+            if (i < 0 && (n == 0 || ents[n - 1] > 0) && end > 0) ents[n++] = 0; // 文件开头不是记录行
+        } finally {
+            c.writeLock.unlock();
+            touch(c);
+        }
+        if (n == 0) return new HistoryStore.Page("", end, end, false, end < size);
+
+        try (FileChannel ch = FileChannel.open(c.path, StandardOpenOption.READ)) {
+            end = align(ch, end, floor, size, false);
+            int skip = ents[0] >= end ? 1 : 0;
+            if (skip == n) return new HistoryStore.Page("", end, end, false, end < size);
+            if (skip > 0) {
+                System.arraycopy(ents, 1, ents, 0, n - 1);
+                n--;
+            }
+            byte[] buf = new byte[0];
+            List<Long> starts = new ArrayList<>();
+            long base = end;
+            for (int k = 0; k < n && starts.size() < limit; k++) {
+                long from = ents[k];
+                byte[] prefix = readRange(ch, from, base);
+                byte[] joined = new byte[prefix.length + buf.length];
+                System.arraycopy(prefix, 0, joined, 0, prefix.length);
+                System.arraycopy(buf, 0, joined, prefix.length, buf.length);
+                List<Long> found = new ArrayList<>();
+                found.add(from);
+                for (int p = 1; p < prefix.length; p++) {
+                    if (joined[p - 1] == '\n' && HistoryIndex.isRecord(joined, p, joined.length)) found.add(from + p);
+                }
+                found.addAll(starts);
+                starts = found;
+                buf = joined;
+                base = from;
+            }
+            long start = starts.get(Math.max(0, starts.size() - limit));
+            String text = new String(buf, (int) (start - base), (int) (end - start), StandardCharsets.UTF_8);
+            return new HistoryStore.Page(text, start, end, start > 0, end < size);
+        }
+    }
+
+    @Override
+    public HistoryStore.Page readAfter(String key, long cursor, int limit) throws IOException {
+        return readForward(key, cursor, Long.MIN_VALUE, limit);
+    }
+
+    @Override
+    public HistoryStore.Page readSince(String key, long ts, int limit) throws IOException {
+        return readForward(key, -1, ts, limit);
+    }
+
+    private HistoryStore.Page readForward(String key, long cursor, long minTs, int limit) throws IOException {
+        Conversation c = lockExisting(key);
+        if (c == null) return new HistoryStore.Page("", 0, 0, false, false);
+        long size, from, floor;
+        try {
+            HistoryIndex idx = c.index();
+            size = idx.size();
+            if (cursor >= 0) from = Math.min(cursor, size);
+            else from = idx.count() == 0 ? 0 : idx.offsetAt(idx.floorTime(minTs));
+            floor = floorEntry(idx, from);
+        } finally {
+            c.writeLock.unlock();
+            touch(c);
+        }
+        if (from >= size) return new HistoryStore.Page("", size, size, size > 0, false);
+
+        try (FileChannel ch = FileChannel.open(c.path, StandardOpenOption.READ)) {
+            from = align(ch, from, floor, size, true);
+            if (from >= size) return new HistoryStore.Page("", size, size, size > 0, false);
+            byte[] buf = new byte[8192];
+            int len = 0;
+            long pos = from;
+            long start = -1, end = size;
+            int count = 0;
+            for (int p = 0; ; p++) {
+                if (len - p < HistoryIndex.HEADER_LEN && pos < size) {
+                    if (len + 8192 > buf.length) buf = Arrays.copyOf(buf, buf.length * 2);
+                    byte[] more = readRange(ch, pos, Math.min(size, pos + 8192));
+                    System.arraycopy(more, 0, buf, len, more.length);
+                    len += more.length;
+                    pos += more.length;
+                    if (more.length == 0) break;
+                }
+                if (p >= len) break;
+                if ((p == 0 || buf[p - 1] == '\n') && HistoryIndex.isRecord(buf, p, len)) {
+                    if (start < 0) {
+                        if (minTs == Long.MIN_VALUE || HistoryIndex.parseTime(buf, p) >= minTs) {
+                            start = from + p;
+                            count = 1;
+                        }
+                    } else if (++count > limit) {
+                        end = from + p;
+                        break;
+                    }
+                }
+            }
+            if (start < 0) return new HistoryStore.Page("", size, size, size > 0, false);
+            String text = new String(buf, (int) (start - from), (int) (end - start), StandardCharsets.UTF_8);
+            return new HistoryStore.Page(text, start, end, start > 0, end < size);
+        }
+    }
+
+    @Override
+    public byte[][] readRecords(String key, long[] offsets, int n) throws IOException {
+        byte[][] out = new byte[n][];
+        Conversation c = lockExisting(key);
+        if (c == null) return out;
+        long size;
+        try {
+            c.flush(false);
+            size = Files.exists(c.path) ? Files.size(c.path) : 0;
+        } finally {
+            c.writeLock.unlock();
+            touch(c);
+        }
+        if (size == 0) return out;
+        try (FileChannel ch = FileChannel.open(c.path, StandardOpenOption.READ)) {
+            for (int k = 0; k < n; k++) {
+                if (offsets[k] >= 0 && offsets[k] < size) out[k] = recordAt(ch, offsets[k], size);
+            }
+        } catch (NoSuchFileException e) {
+            // 刚被删掉
+        }
+        return out;
+    }
+
+    // 不超过 pos 的最后一个索引项（一定是记录行首），没有取 0
+    private static long floorEntry(HistoryIndex idx, long pos) {
+        int i = idx.floorBefore(pos + 1);
+        return i < 0 ? 0 : idx.offsetAt(i);
+    }
+
+    // 客户端带回的游标不一定落在记录行首（换过引擎、手写的请求）。不在行首时从 floor（pos 之前最近的索引项）
+    // 起按记录跳：up 为 true 取下一条记录的起点，否则取 pos 所在记录的起点，免得读出半条或一直读到空页
+    private static long align(FileChannel ch, long pos, long floor, long size, boolean up) throws IOException {
+        if (pos <= 0 || pos >= size) return pos;
+        byte[] head = readRange(ch, pos - 1, Math.min(size, pos + HistoryIndex.HEADER_LEN));
+        if (head.length > 1 && head[0] == '\n' && HistoryIndex.isRecord(head, 1, head.length)) return pos;
+        long p = floor;
+        while (true) {
+            byte[] r = recordAt(ch, p, size);
+            if (r.length == 0) return up ? size : p;
+            long next = p + r.length;
+            if (next > pos) return up ? next : p;
+            if (next == pos) return pos; // 文件开头的非记录部分刚好到 pos
+            p = next;
+        }
+    }
+
+    // from 处的一条记录：读到下一个记录行首或文件末尾为止
+    private static byte[] recordAt(FileChannel ch, long from, long size) throws IOException {
+        byte[] buf = new byte[1024];
+        int len = 0;
+        long pos = from;
+        for (int p = 1; ; p++) {
+            if (len - p < HistoryIndex.HEADER_LEN && pos < size) {
+                if (len + 1024 > buf.length) buf = Arrays.copyOf(buf, buf.length * 2);
+                byte[] more = readRange(ch, pos, Math.min(size, pos + 1024));
+                System.arraycopy(more, 0, buf, len, more.length);
+                len += more.length;
+                pos += more.length;
+                if (more.length == 0) break;
+            }
+            if (p >= len) break;
+            if (buf[p - 1] == '\n' && HistoryIndex.isRecord(buf, p, len)) return Arrays.copyOf(buf, p);
+        }
+        return Arrays.copyOf(buf, len);
+    }
+
+    private static byte[] readRange(FileChannel ch, long from, long to) throws IOException {
+        ByteBuffer bb = ByteBuffer.allocate((int) (to - from));
+        while (bb.hasRemaining()) {
+            if (ch.read(bb, from + bb.position()) < 0) break;
+        }
+        return bb.position() == bb.capacity() ? bb.array() : Arrays.copyOf(bb.array(), bb.position());
+    }
+
+    // 顺序读文件，在记录行首处切分；续行归上一条
+    @Override
+    public void scan(String key, long from, RecordListener l) throws IOException {
+        Conversation c = convs.get(key);
+        if (c != null) c.flush(false);
+        Path f = baseDir.resolve(key + ".txt");
+        if (!Files.exists(f)) return;
+        try (FileChannel ch = FileChannel.open(f, StandardOpenOption.READ)) {
+            byte[] buf = new byte[64 * 1024];
+            int len = 0;
+            long base = Math.max(from, 0); // buf[0] 的文件偏移
+            long pos = base;               // 已读到的文件偏移
+            int rec = 0;        // 当前记录在 buf 里的起点
+            for (int p = 0; ; p++) {
+                if (len - p < HistoryIndex.HEADER_LEN) {
+                    // 把当前记录挪到缓冲开头再续读；单条记录比缓冲还大时扩容
+                    if (rec > 0) {
+                        System.arraycopy(buf, rec, buf, 0, len - rec);
+                        len -= rec;
+                        p -= rec;
+                        base += rec;
+                        rec = 0;
+                    }
+                    if (len == buf.length) buf = Arrays.copyOf(buf, buf.length * 2);
+                    int r = ch.read(ByteBuffer.wrap(buf, len, buf.length - len), pos);
+                    if (r > 0) {
+                        len += r;
+                        pos += r;
+                    }
+                }
+                if (p >= len) break;
+                if (p > rec && buf[p - 1] == '\n' && HistoryIndex.isRecord(buf, p, len)) {
+                    emit(key, l, buf, rec, p, base);
+                    rec = p;
+                }
+            }
+            if (len > rec) emit(key, l, buf, rec, len, base);
+        }
+    }
+
+    private static void emit(String key, RecordListener l, byte[] buf, int from, int to, long base) {
+        byte[] r = Arrays.copyOfRange(buf, from, to);
+        long ts = HistoryIndex.isRecord(r, 0, r.length) ? HistoryIndex.parseTime(r, 0) : 0;
+        l.onRecord(key, base + from, ts, r);
+    }
+
+    @Override
+    public String epoch(String key) throws IOException {
+        Conversation c = lockExisting(key);
+        if (c == null) return "0";
+        try {
+            c.flush(false);
+            if (!Files.exists(c.path)) return "0";
+            if (c.epoch == null) c.epoch = HistoryStore.loadEpoch(c.epochPath);
+            return c.epoch;
+        } finally {
+            c.writeLock.unlock();
+            touch(c);
+        }
+    }
+
+    @Override
+    public boolean delete(String key) {
+        Conversation c = lockExisting(key);
+        if (c == null) return false;
+        try {
+            c.discard();
+            // 删掉后会话对象也不再用，下次追加重新建
+            if (c.retire()) {
+                convs.remove(key, c);
+                untrack(c);
+                dirty.remove(c);
+            }
+            boolean had = Files.deleteIfExists(c.path);
+            Files.deleteIfExists(c.epochPath);
+            return had;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            c.writeLock.unlock();
+        }
+    }
+
+    @Override
+    public List<String> keys() {
+        List<String> out = new ArrayList<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(baseDir, "*.txt")) {
+            for (Path p : ds) {
+                String name = p.getFileName().toString();
+                out.add(name.substring(0, name.length() - ".txt".length()));
+            }
+        } catch (IOException ignore) {}
+        return out;
+    }
+
+    private void flushDirty() {
+        for (Conversation c : dirty) {
+            dirty.remove(c);
+            try {
+                c.flush(false);
+            } catch (IOException e) {
+                System.err.println("history flush " + c.key + ": " + e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        for (Conversation c : convs.values()) {
+            try {
+                c.flush(durability == HistoryStore.Durability.FSYNC);
+                c.writeLock.lock();
+                try {
+                    c.closeChannel();
+                } finally {
+                    c.writeLock.unlock();
+                }
+            } catch (IOException ignore) {}
+        }
+    }
+
+    // 登记/刷新用过的会话，超出上限时淘汰最久未用的：关通道、丢索引、移出 convs。
+    // 正被占用或还有待写行的放回去，算作刚用过
+    private void touch(Conversation c) {
+        if (c.evicted) return;
+        List<Conversation> evicted = new ArrayList<>();
+        lruLock.lock();
+        try {
+            openLru.put(c.key, c);
+            Iterator<Conversation> it = openLru.values().iterator();
+            while (openLru.size() > maxOpenFiles && it.hasNext()) {
+                Conversation old = it.next();
+                if (old == c) continue;
+                it.remove();
+                evicted.add(old);
+            }
+        } finally {
+            lruLock.unlock();
+        }
+        for (Conversation old : evicted) {
+            boolean done = false;
+            if (old.writeLock.tryLock()) {
+                try {
+                    done = old.retire();
+                } finally {
+                    old.writeLock.unlock();
+                }
+            }
+            if (done) {
+                convs.remove(old.key, old);
+                dirty.remove(old);
+            } else {
+                lruLock.lock();
+                try {
+                    openLru.putIfAbsent(old.key, old);
+                } finally {
+                    lruLock.unlock();
+                }
+            }
+        }
+    }
+
+    private void untrack(Conversation c) {
+        lruLock.lock();
+        try {
+            openLru.remove(c.key, c);
+        } finally {
+            lruLock.unlock();
+        }
+    }
+
+    private final class Conversation {
+        final String key;
+        final Path path;
+        final Path epochPath;
+        final ReentrantLock writeLock = new ReentrantLock();   // 持有者负责写文件
+        private final ReentrantLock queueLock = new ReentrantLock();
+        private List<byte[]> pending = new ArrayList<>();
+        private FileChannel ch;
+        private HistoryIndex index; // 第一次分页读时建立，之后随追加增量维护
+        String epoch;               // 读过/生成过的纪元，持有 writeLock 时访问
+        volatile boolean evicted;   // 已淘汰：不再接收新行，拿到的人重取
+
+        Conversation(String key, Path path) {
+            this.key = key;
+            this.path = path;
+            this.epochPath = path.resolveSibling(key + ".epoch");
+        }
+
+        // 已淘汰时返回 false
+        boolean enqueue(byte[] line) {
+            queueLock.lock();
+            try {
+                if (evicted) return false;
+                pending.add(line);
+                return true;
+            } finally {
+                queueLock.unlock();
+            }
+        }
+
+        // 组提交：拿到写锁的线程把此刻队列里所有行一次写出；自己的行已被别人写掉时直接返回
+        void flush(boolean fsync) throws IOException {
+            writeLock.lock();
+            try {
+                List<byte[]> batch;
+                queueLock.lock();
+                try {
+                    if (pending.isEmpty()) return;
+                    batch = pending;
+                    pending = new ArrayList<>();
+                } finally {
+                    queueLock.unlock();
+                }
+                if (ch == null) {
+                    if (!Files.exists(path)) epoch = HistoryStore.newEpoch(epochPath); // 新会话
+                    ch = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                            StandardOpenOption.APPEND);
+                }
+                RecordListener l = listener;
+                long base = index != null || l != null ? ch.size() : 0;
+                ByteBuffer[] bufs = new ByteBuffer[batch.size()];
+                for (int i = 0; i < bufs.length; i++) bufs[i] = ByteBuffer.wrap(batch.get(i));
+                long total = 0;
+                for (ByteBuffer b : bufs) total += b.remaining();
+                while (total > 0) total -= ch.write(bufs);
+                if (fsync) ch.force(false);
+                if (index != null) index.onAppend(base, batch);
+                if (l != null) {
+                    long p = base;
+                    for (byte[] r : batch) {
+                        l.onRecord(key, p, r.length >= HistoryIndex.HEADER_LEN ? HistoryIndex.parseTime(r, 0) : 0, r);
+                        p += r.length;
+                    }
+                }
+            } finally {
+                writeLock.unlock();
+            }
+            touch(this);
+        }
+
+        // 以下调用方持有 writeLock
+        HistoryIndex index() throws IOException {
+            flush(false);
+            if (index == null) {
+                if (!Files.exists(path)) return new HistoryIndex();
+                try (FileChannel r = FileChannel.open(path, StandardOpenOption.READ)) {
+                    index = HistoryIndex.build(r);
+                }
+            }
+            return index;
+        }
+
+        void discard() {
+            index = null;
+            queueLock.lock();
+            try {
+                pending = new ArrayList<>();
+            } finally {
+                queueLock.unlock();
+            }
+            closeChannel();
+        }
+
+        // 没有待写的行时标记为已淘汰并关通道，之后 enqueue 都会失败
+        boolean retire() {
+            queueLock.lock();
+            try {
+                if (!pending.isEmpty()) return false;
+                evicted = true;
+            } finally {
+                queueLock.unlock();
+            }
+            index = null;
+            closeChannel();
+            return true;
+        }
+
+        void closeChannel() {
+            if (ch == null) return;
+            try { ch.close(); } catch (IOException ignore) {}
+            ch = null;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package server;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// 哈希时间轮：大量连接各自挂一个粗粒度定时器（心跳、登录超时）时，加、取消都是 O(1)，
+// 每个 tick 只处理当前格子里的定时器，与定时器总数无关。
+// 一个工作线程每 tick 转一格；到期任务在工作线程上执行，只能做入队、关连接这类很快的事。
+// 任意线程 schedule/cancel 只往无锁队列里放，格子里的链表只有工作线程碰。
+public class TimingWheel {
+    private static final int PENDING = 0, CANCELLED = 1, EXPIRED = 2;
+    private static final int MAX_TRANSFER_PER_TICK = 100_000;
+
+    public static final class Timeout {
+        private final Runnable task;
+        private final long deadline; // 相对 startTime 的纳秒
+        private final AtomicInteger state = new AtomicInteger(PENDING);
+        private final TimingWheel wheel;
+        private long rounds;
+        private Timeout prev, next;
+        private Bucket bucket;
+
+        private Timeout(TimingWheel wheel, Runnable task, long deadline) {
+            this.wheel = wheel;
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        // 还没到期就取消；已到期或已取消返回 false
+        public boolean cancel() {
+            if (!state.compareAndSet(PENDING, CANCELLED)) return false;
+            wheel.cancelled.add(this);
+            return true;
+        }
+    }
+
+    private static final class Bucket {
+        Timeout head, tail;
+
+        void add(Timeout t) {
+            t.bucket = this;
+            if (head == null) {
+                head = tail = t;
+            } else {
+                tail.next = t;
+                t.prev = tail;
+                tail = t;
+            }
+        }
+
+        Timeout remove(Timeout t) {
+            Timeout next = t.next;
+            if (t.prev != null) t.prev.next = next;
+            if (next != null) next.prev = t.prev;
+            if (t == head) head = next;
+            if (t == tail) tail = t.prev;
+            t.prev = t.next = null;
+            t.bucket = null;
+            return next;
+        }
+
+        void expire(long now) {
+            Timeout t = head;
+            while (t != null) {
+                if (t.rounds > 0) {
+                    t.rounds--;
+                    t = t.next;
+                    continue;
+                }
+                Timeout next = remove(t);
+                if (t.deadline <= now && t.state.compareAndSet(PENDING, EXPIRED)) {
+                    try {
+                        t.task.run();
+                    } catch (RuntimeException e) {
+                        System.err.println("timer task: " + e);
+                    }
+                }
+                t = next;
+            }
+        }
+    }
+
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final long startTime = System.nanoTime();
+    private final ConcurrentLinkedQueue<Timeout> pending = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+    private long tick; // 只在工作线程访问
+
+    // tick 为一格的时长，slots 向上取整到 2 的幂；定时精度就是一个 tick
+    public TimingWheel(long tick, TimeUnit unit, int slots, String name) {
+        this.tickNanos = unit.toNanos(tick);
+        int n = Integer.highestOneBit(Math.max(2, slots) * 2 - 1);
+        this.wheel = new Bucket[n];
+        for (int i = 0; i < n; i++) wheel[i] = new Bucket();
+        this.mask = n - 1;
+        Thread worker = new Thread(this::run, name);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        Timeout t = new Timeout(this, task, System.nanoTime() - startTime + unit.toNanos(Math.max(0, delay)));
+        pending.add(t);
+        return t;
+    }
+
+    private void run() {
+        while (true) {
+            long deadline = tickNanos * (tick + 1);
+            long sleep = deadline - (System.nanoTime() - startTime);
+            if (sleep > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                continue;
+            }
+            removeCancelled();
+            transferPending();
+            wheel[(int) (tick & mask)].expire(deadline);
+            tick++;
+        }
+    }
+
+    private void removeCancelled() {
+        Timeout t;
+        while ((t = cancelled.poll()) != null) {
+            if (t.bucket != null) t.bucket.remove(t);
+        }
+    }
+
+    // 新定时器放进对应的格子；离现在超过一圈的记下还要转几圈
+    private void transferPending() {
+        for (int i = 0; i < MAX_TRANSFER_PER_TICK; i++) {
+            Timeout t = pending.poll();
+            if (t == null) return;
+            if (t.state.get() != PENDING) continue;
+            long ticks = t.deadline / tickNanos;
+            t.rounds = Math.max(0, (ticks - tick) / wheel.length);
+            wheel[(int) (Math.max(ticks, tick) & mask)].add(t);
+        }
+    }
+}
@@ -1,21 +1,443 @@
 package server;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
 
+// 账号库：支持上百万账号，启动时不把账号读进内存。
+//   users.dat  追加写的账号记录：[int 记录长度][short 名字长度][名字 UTF-8][byte 盐长][盐][byte 摘要长][摘要][int 迭代次数]
+//   users.idx  内存映射的开放寻址哈希表：头 [magic][容量][账号数][已索引到的 dat 长度]，之后每槽 8 字节
+//              = 名字哈希(高 32 位) | 记录在 dat 中的偏移(低 32 位)，0 为空槽。装载率超过 1/2 时翻倍重建。
+// 查账号：算哈希 -> 探测映射的槽（只比哈希）-> 哈希相同才按偏移读一条记录比名字，O(1) 次磁盘读。
+// 热点账号的记录放在有界 LRU 缓存里。密码存 PBKDF2-SHA256(随机盐)，校验在专门的线程池里做，不占连接的 I/O 线程；
+// 校验通过后在缓存项里记一个便宜的 SHA-256(盐+密码)，同一账号再次登录时不必重算 PBKDF2。
+// 异常退出时 idx 可能落后于 dat，打开时把 dat 尾部没进索引的记录补进去。
 public class UserStore {
-    // 内置账号：你可以按作业要求改成更多
-    private static final Map<String, String> USERS = new HashMap<>();
-    static {
-        USERS.put("alice", "123");
-        USERS.put("bob", "123");
-        USERS.put("cathy", "123");
-        USERS.put("david", "123");
+    public static final int MAX_NAME_BYTES = 64;
+    private static final int MAGIC = 0x55494458; // "UIDX"
+    private static final int HEADER = 24;
+    private static final int DAT_MAGIC_LEN = 8;
+    private static final byte[] DAT_MAGIC = "CHATUSR1".getBytes(StandardCharsets.US_ASCII);
+    private static final int MAX_RECORD = 4 + 2 + MAX_NAME_BYTES + 1 + 32 + 1 + 64 + 4;
+    private static final int SALT_BYTES = 16;
+    private static final VarHandle SLOT = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    // 一条账号记录（缓存项）
+    private static final class Account {
+        final byte[] salt;
+        final byte[] hash;
+        final int iterations;
+        volatile byte[] quick; // 校验通过后的 SHA-256(盐+密码)
+
+        Account(byte[] salt, byte[] hash, int iterations) {
+            this.salt = salt;
+            this.hash = hash;
+            this.iterations = iterations;
+        }
+    }
+
+    // 当前哈希表；翻倍时整体换掉
+    private static final class Table {
+        final MappedByteBuffer map;
+        final int capacity;
+
+        Table(MappedByteBuffer map, int capacity) {
+            this.map = map;
+            this.capacity = capacity;
+        }
+
+        long slot(int i) {
+            return (long) SLOT.getVolatile(map, HEADER + (i << 3));
+        }
+
+        void setSlot(int i, long v) {
+            SLOT.setVolatile(map, HEADER + (i << 3), v);
+        }
+    }
+
+    private final Path datPath;
+    private final Path idxPath;
+    private final FileChannel dat;
+    private final ReentrantLock writeLock = new ReentrantLock(); // 只串行化新增账号
+    private volatile Table table;
+    private volatile int count;
+    private long datEnd;
+
+    // 新建账号的 PBKDF2 迭代次数（每条记录自带次数，改了不影响老账号）
+    private volatile int iterations = 20_000;
+    private volatile int cacheSize = 10_000;
+    private final ReentrantLock cacheLock = new ReentrantLock();
+    private final LinkedHashMap<String, Account> cache = new LinkedHashMap<>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Account> e) {
+            return size() > cacheSize;
+        }
+    };
+    // 校验线程池：排队满了直接拒绝（登录风暴时让客户端稍后重试，而不是无限堆积）
+    private final ThreadPoolExecutor authPool = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(4096), r -> {
+                Thread t = new Thread(r, "auth");
+                t.setDaemon(true);
+                return t;
+            });
+    private final SecureRandom random = new SecureRandom();
+    // 账号不存在时也算一遍，响应时间不泄露账号是否存在；迭代次数跟着当前设置（setIterations 时重建）
+    private volatile Account dummy;
+    private final Metrics metrics;
+
+    // dir 下放 users.dat / users.idx；库为空时建内置账号
+    public UserStore(Path dir, Metrics metrics) {
+        this.datPath = dir.resolve("users.dat");
+        this.idxPath = dir.resolve("users.idx");
+        this.metrics = metrics;
+        int n = Runtime.getRuntime().availableProcessors();
+        authPool.setMaximumPoolSize(n);
+        authPool.setCorePoolSize(n);
+        try {
+            Files.createDirectories(dir);
+            boolean fresh = !Files.exists(datPath);
+            dat = FileChannel.open(datPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            if (fresh) {
+                dat.write(ByteBuffer.wrap(DAT_MAGIC), 0);
+                dat.force(true);
+            }
+            openIndex();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        this.dummy = new Account(new byte[SALT_BYTES], new byte[32], iterations);
+        if (count == 0) {
+            for (String u : new String[]{"alice", "bob", "cathy", "david"}) add(u, "123");
+        }
+    }
+
+    public void setIterations(int iterations) {
+        this.iterations = Math.max(1000, iterations);
+        this.dummy = new Account(new byte[SALT_BYTES], new byte[32], this.iterations);
+    }
+
+    public void setCacheSize(int cacheSize) {
+        this.cacheSize = Math.max(16, cacheSize);
+    }
+
+    public void setAuthThreads(int n) {
+        n = Math.max(1, n);
+        if (n > authPool.getMaximumPoolSize()) {
+            authPool.setMaximumPoolSize(n);
+            authPool.setCorePoolSize(n);
+        } else {
+            authPool.setCorePoolSize(n);
+            authPool.setMaximumPoolSize(n);
+        }
+    }
+
+    // ---- 索引文件 ----
+
+    private void openIndex() throws IOException {
+        long size = dat.size();
+        if (Files.exists(idxPath)) {
+            try (FileChannel ch = FileChannel.open(idxPath, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                if (ch.size() >= HEADER) {
+                    MappedByteBuffer map = ch.map(FileChannel.MapMode.READ_WRITE, 0, ch.size());
+                    int cap = map.getInt(4);
+                    if (map.getInt(0) == MAGIC && Integer.bitCount(cap) == 1
+                            && ch.size() == HEADER + (long) cap * 8 && map.getLong(16) <= size) {
+                        table = new Table(map, cap);
+                        count = map.getInt(8);
+                        datEnd = map.getLong(16);
+                    }
+                }
+            }
+        }
+        if (table == null) { // 没有或损坏：从 dat 重建
+            table = createTable(1024);
+            count = 0;
+            datEnd = DAT_MAGIC_LEN;
+        }
+        long before = datEnd;
+        replayTail(size);
+        if (datEnd != before) System.out.println("User index: indexed " + (datEnd - before) + " bytes of users.dat tail");
+    }
+
+    private Table createTable(int cap) throws IOException {
+        Path tmp = Paths.get(idxPath + ".tmp");
+        Files.deleteIfExists(tmp);
+        MappedByteBuffer map;
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            map = ch.map(FileChannel.MapMode.READ_WRITE, 0, HEADER + (long) cap * 8);
+        }
+        map.putInt(0, MAGIC);
+        map.putInt(4, cap);
+        Table t = new Table(map, cap);
+        Table old = table;
+        if (old != null) {
+            for (int i = 0; i < old.capacity; i++) {
+                long v = old.slot(i);
+                if (v != 0) insert(t, v);
+            }
+            map.putInt(8, count);
+            map.putLong(16, datEnd);
+        }
+        map.force();
+        Files.move(tmp, idxPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return t;
+    }
+
+    private static void insert(Table t, long v) {
+        int mask = t.capacity - 1;
+        int i = (int) (v >>> 32) & mask;
+        while (t.slot(i) != 0) i = (i + 1) & mask;
+        t.setSlot(i, v);
+    }
+
+    // 把 dat 里 datEnd 之后（上次没来得及进索引）的记录补进索引；末尾写了一半的记录截掉
+    private void replayTail(long size) throws IOException {
+        ByteBuffer len = ByteBuffer.allocate(4);
+        while (datEnd + 4 <= size) {
+            len.clear();
+            dat.read(len, datEnd);
+            int n = len.getInt(0);
+            if (n < 4 || n > MAX_RECORD || datEnd + n > size) break;
+            String name = readName(datEnd);
+            if (name == null) break;
+            index(name, datEnd);
+            datEnd += n;
+        }
+        if (datEnd < size) dat.truncate(datEnd);
+        Table t = table;
+        t.map.putInt(8, count);
+        t.map.putLong(16, datEnd);
+    }
+
+    private void index(String name, long offset) throws IOException {
+        if (find(name) >= 0) return;
+        if ((count + 1) * 2 > table.capacity) table = createTable(table.capacity * 2);
+        insert(table, ((long) hash(name) << 32) | offset);
+        count++;
+    }
+
+    private static int hash(String name) {
+        int h = name.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    // 账号记录的偏移，不存在返回 -1
+    private long find(String name) throws IOException {
+        Table t = table;
+        int h = hash(name);
+        int mask = t.capacity - 1;
+        for (int i = h & mask; ; i = (i + 1) & mask) {
+            long v = t.slot(i);
+            if (v == 0) return -1;
+            if ((int) (v >>> 32) == h) {
+                long off = v & 0xFFFFFFFFL;
+                if (name.equals(readName(off))) return off;
+            }
+        }
+    }
+
+    private String readName(long off) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(6 + MAX_NAME_BYTES);
+        dat.read(b, off);
+        if (b.position() < 6) return null;
+        int n = b.getShort(4);
+        if (n <= 0 || n > MAX_NAME_BYTES || b.position() < 6 + n) return null;
+        return new String(b.array(), 6, n, StandardCharsets.UTF_8);
+    }
+
+    private Account readAccount(long off) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(MAX_RECORD);
+        dat.read(b, off);
+        b.flip();
+        b.getInt();
+        int nameLen = b.getShort();
+        b.position(b.position() + nameLen);
+        byte[] salt = new byte[b.get() & 0xFF];
+        b.get(salt);
+        byte[] hash = new byte[b.get() & 0xFF];
+        b.get(hash);
+        return new Account(salt, hash, b.getInt());
+    }
+
+    // ---- 对外接口 ----
+
+    // 账号名：1~64 字节 UTF-8，不含空白、冒号、分隔符（会出现在好友快照、会话文件名里）。
+    // 不含 "__"、也不以 _ 开头或结尾：会话键 a__b 里的 "__" 只能是分隔符，不同的两人拼不出同一个键
+    public static boolean validName(String user) {
+        if (user == null || user.isEmpty() || user.getBytes(StandardCharsets.UTF_8).length > MAX_NAME_BYTES) return false;
+        if (user.contains("__") || user.startsWith("_") || user.endsWith("_")) return false;
+        for (int i = 0; i < user.length(); i++) {
+            char c = user.charAt(i);
+            if (Character.isWhitespace(c) || Character.isISOControl(c) || ":,;|=/\\#".indexOf(c) >= 0) return false;
+        }
+        return true;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public boolean exists(String user) {
+        if (!validName(user)) return false;
+        cacheLock.lock();
+        try {
+            if (cache.containsKey(user)) return true;
+        } finally {
+            cacheLock.unlock();
+        }
+        try {
+            return find(user) >= 0;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // 新建账号；名字不合法或已存在返回 false
+    public boolean add(String user, String password) {
+        if (!validName(user)) return false;
+        byte[] salt = new byte[SALT_BYTES];
+        random.nextBytes(salt);
+        int iter = iterations;
+        return addHashed(user, salt, pbkdf2(password, salt, iter), iter);
+    }
+
+    private boolean addHashed(String user, byte[] salt, byte[] hash, int iter) {
+        byte[] name = user.getBytes(StandardCharsets.UTF_8);
+        int n = 4 + 2 + name.length + 1 + salt.length + 1 + hash.length + 4;
+        ByteBuffer b = ByteBuffer.allocate(n);
+        b.putInt(n).putShort((short) name.length).put(name).put((byte) salt.length).put(salt)
+                .put((byte) hash.length).put(hash).putInt(iter).flip();
+        writeLock.lock();
+        try {
+            if (find(user) >= 0) return false;
+            if (datEnd + n > 0xFFFFFFFFL) throw new IOException("users.dat 超过 4GB");
+            long off = datEnd;
+            while (b.hasRemaining()) dat.write(b, off + b.position());
+            dat.force(false);
+            datEnd += n;
+            index(user, off);
+            Table t = table;
+            t.map.putInt(8, count);
+            t.map.putLong(16, datEnd);
+            return true;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // 阻塞校验（要算 PBKDF2，不要在 I/O 线程上调）
+    public boolean verify(String user, String password) {
+        long t0 = System.nanoTime();
+        try {
+            Account a = validName(user) ? account(user) : null;
+            byte[] quick = a == null ? null : a.quick;
+            if (quick != null && MessageDigest.isEqual(quick, sha256(a.salt, password))) return true;
+            Account check = a == null ? dummy : a;
+            boolean ok = MessageDigest.isEqual(check.hash, pbkdf2(password, check.salt, check.iterations)) && a != null;
+            if (ok) a.quick = sha256(a.salt, password);
+            return ok;
+        } finally {
+            metrics.authVerify.record(System.nanoTime() - t0);
+        }
+    }
+
+    // 在校验线程池里校验；池子排满时返回的 future 以 RejectedExecutionException 失败
+    public CompletableFuture<Boolean> verifyAsync(String user, String password) {
+        try {
+            return CompletableFuture.supplyAsync(() -> verify(user, password), authPool);
+        } catch (RejectedExecutionException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    private Account account(String user) {
+        cacheLock.lock();
+        try {
+            Account a = cache.get(user);
+            if (a != null) return a;
+        } finally {
+            cacheLock.unlock();
+        }
+        try {
+            long off = find(user);
+            if (off < 0) return null;
+            Account a = readAccount(off);
+            cacheLock.lock();
+            try {
+                Account raced = cache.putIfAbsent(user, a);
+                return raced != null ? raced : a;
+            } finally {
+                cacheLock.unlock();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static byte[] pbkdf2(String password, byte[] salt, int iterations) {
+        try {
+            PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, 256);
+            return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] sha256(byte[] salt, String password) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(salt);
+            return md.digest(password.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
     }
 
-    public static boolean validate(String username, String password) {
-        return USERS.containsKey(username) && USERS.get(username).equals(password);
+    public void close() {
+        authPool.shutdownNow();
+        try {
+            dat.close();
+        } catch (IOException ignore) {
+        }
     }
 
-    public static Set<String> allUsers() {
-        return USERS.keySet();
+    // 导入明文账号文件（每行 账号:密码，如 LoadGen --init-users 生成的 users.txt），
+    // 导入完改名为 xxx.imported，明文不再被读；已有的账号跳过
+    public void importPlain(Path plainFile) throws IOException {
+        if (!Files.exists(plainFile)) return;
+        long t0 = System.currentTimeMillis();
+        List<String[]> todo = new ArrayList<>();
+        for (String line : Files.readAllLines(plainFile, StandardCharsets.UTF_8)) {
+            int idx = line.indexOf(':');
+            if (idx <= 0) continue;
+            String u = line.substring(0, idx).trim();
+            if (validName(u) && !exists(u)) todo.add(new String[]{u, line.substring(idx + 1).trim()});
+        }
+        // 哈希可以并行算，写入仍是串行的
+        int iter = iterations;
+        todo.parallelStream().forEach(p -> {
+            byte[] salt = new byte[SALT_BYTES];
+            random.nextBytes(salt);
+            addHashed(p[0], salt, pbkdf2(p[1], salt, iter), iter);
+        });
+        Files.move(plainFile, Paths.get(plainFile + ".imported"), StandardCopyOption.REPLACE_EXISTING);
+        System.out.println("Users: imported " + todo.size() + " accounts from " + plainFile + " in "
+                + (System.currentTimeMillis() - t0) + " ms");
     }
 }